@@ -19,6 +19,8 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.net.ConnectivityManager;
+import android.net.wifi.WifiManager;
 import android.os.Bundle;
 import android.os.IBinder;
 import android.support.v7.app.AppCompatActivity;
@@ -33,19 +35,34 @@ import com.google.android.gms.cast.framework.CastButtonFactory;
 import com.google.android.gms.cast.framework.CastContext;
 import com.google.android.gms.cast.framework.CastSession;
 import com.google.android.gms.cast.framework.media.RemoteMediaClient;
+import com.stephenmcgruer.simpleupnp.cling.ActionCoalescer;
+import com.stephenmcgruer.simpleupnp.cling.ActionScheduler;
+import com.stephenmcgruer.simpleupnp.cling.BrowseFilter;
+import com.stephenmcgruer.simpleupnp.cling.ContainerListingCache;
+import com.stephenmcgruer.simpleupnp.cling.DeviceCapabilitiesCache;
+import com.stephenmcgruer.simpleupnp.cling.DeviceDescriptorCache;
+import com.stephenmcgruer.simpleupnp.cling.LibraryIndexer;
+import com.stephenmcgruer.simpleupnp.cling.ListingPrefetcher;
 import com.stephenmcgruer.simpleupnp.database.BookmarksContract.Bookmark;
 import com.stephenmcgruer.simpleupnp.database.BookmarksDbHelper;
 import com.stephenmcgruer.simpleupnp.database.BookmarksReadTask;
+import com.stephenmcgruer.simpleupnp.database.DeviceCacheDbHelper;
+import com.stephenmcgruer.simpleupnp.database.LibraryIndexDbHelper;
+import com.stephenmcgruer.simpleupnp.database.ListingCacheDbHelper;
 import com.stephenmcgruer.simpleupnp.fragments.FileBrowserFragment;
+import com.stephenmcgruer.simpleupnp.fragments.NavigationSession;
 import com.stephenmcgruer.simpleupnp.fragments.ServerBrowserFragment;
 
+import org.fourthline.cling.android.AndroidUpnpService;
 import org.fourthline.cling.android.AndroidUpnpServiceImpl;
 import org.fourthline.cling.model.meta.Device;
 import org.fourthline.cling.model.meta.Service;
 import org.fourthline.cling.model.types.UDAServiceType;
 
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class MainActivity extends AppCompatActivity implements
         ServerBrowserFragment.OnFragmentInteractionListener,
@@ -58,11 +75,27 @@ public class MainActivity extends AppCompatActivity implements
     private FileBrowserFragment mFileBrowserFragment = null;
 
     private BookmarksDbHelper mBookmarksDbHelper = null;
+    private ListingCacheDbHelper mListingCacheDbHelper = null;
+    private LibraryIndexDbHelper mLibraryIndexDbHelper = null;
+    private LibraryIndexer mLibraryIndexer = null;
+    private ListingPrefetcher mListingPrefetcher = null;
+    private DeviceCacheDbHelper mDeviceCacheDbHelper = null;
+    private DeviceDescriptorCache mDeviceDescriptorCache = null;
+
+    // Shared between file browsers so that the per-device limits hold across fragment transitions.
+    private final ActionScheduler mActionScheduler = new ActionScheduler();
+    private final ActionCoalescer mActionCoalescer = new ActionCoalescer(mActionScheduler);
+    private final ContainerListingCache mListingCache = new ContainerListingCache();
+    private final DeviceCapabilitiesCache mCapabilitiesCache = new DeviceCapabilitiesCache();
+
+    // Where the user was on each device, keyed by UDN, so that re-entering a device carries on from there.
+    private final Map<String, NavigationSession> mNavigationSessions = new HashMap<>();
 
     private final ServiceConnection mServiceConnection = new ServiceConnection() {
         @Override
         public void onServiceConnected(ComponentName name, IBinder service) {
             Log.d(TAG, "onServiceConnected: " + name.flattenToShortString() + ", " + service.toString());
+            mDeviceDescriptorCache.start((AndroidUpnpService) service);
         }
 
         @Override
@@ -94,6 +127,19 @@ public class MainActivity extends AppCompatActivity implements
 
         // Initialize the database connection.
         mBookmarksDbHelper = new BookmarksDbHelper(getApplicationContext());
+        mListingCacheDbHelper = new ListingCacheDbHelper(getApplicationContext());
+        mLibraryIndexDbHelper = new LibraryIndexDbHelper(getApplicationContext());
+        mLibraryIndexer = new LibraryIndexer(mActionScheduler, mCapabilitiesCache, mLibraryIndexDbHelper);
+        mListingCache.setChangeListener(mLibraryIndexer);
+        mListingPrefetcher = new ListingPrefetcher(mActionCoalescer, mListingCache,
+                (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE));
+
+        // Start reading the known devices now, so that they can be hydrated as soon as the UPnP service is connected.
+        mDeviceCacheDbHelper = new DeviceCacheDbHelper(getApplicationContext());
+        mDeviceDescriptorCache = new DeviceDescriptorCache(mDeviceCacheDbHelper,
+                (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE),
+                (WifiManager) getApplicationContext().getSystemService(Context.WIFI_SERVICE));
+        mDeviceDescriptorCache.load();
 
         if (mServerBrowserFragment != null)
             throw new IllegalStateException("mServerBrowserFragment should be null in onCreate");
@@ -107,8 +153,25 @@ public class MainActivity extends AppCompatActivity implements
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        // The response sizes show what each BrowseFilter profile saves, for tuning them against real servers.
+        Log.d(TAG, "onDestroy: Browse results by filter profile:\n" + BrowseFilter.dumpStats());
+        Log.d(TAG, "onDestroy: action queues:\n" + mActionScheduler.dumpState());
+        mListingPrefetcher.cancel();
+        // Ends the cache's event subscriptions, so must happen before the UPnP service is unbound.
+        mListingCache.close();
+        // Also closes mLibraryIndexDbHelper, once the index writes already queued are done.
+        mLibraryIndexer.close();
+        mDeviceDescriptorCache.close();
         getApplicationContext().unbindService(mServiceConnection);
         mBookmarksDbHelper.close();
+        mListingCacheDbHelper.close();
+        mDeviceCacheDbHelper.close();
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        mListingPrefetcher.onTrimMemory(level);
     }
 
     @Override
@@ -196,11 +259,71 @@ public class MainActivity extends AppCompatActivity implements
                 MediaStatus.REPEAT_MODE_REPEAT_ALL_AND_SHUFFLE, null);
     }
 
+    @Override
+    public void appendFiles(List<MediaQueueItem> mediaItems) {
+        CastSession castSession =
+                CastContext.getSharedInstance(this).getSessionManager().getCurrentCastSession();
+        if (castSession == null)
+            return;
+
+        // Keep the queue shuffled, as in playFiles.
+        Collections.shuffle(mediaItems);
+
+        Log.d(TAG, "appendFiles: appending " + mediaItems.size() + " files to the Chromecast queue");
+        castSession.getRemoteMediaClient().queueInsertItems(mediaItems.toArray(new MediaQueueItem[0]),
+                MediaQueueItem.INVALID_ITEM_ID, null);
+    }
+
     @Override
     public SQLiteOpenHelper getDbHelper() {
         return mBookmarksDbHelper;
     }
 
+    @Override
+    public ActionCoalescer getActionCoalescer() {
+        return mActionCoalescer;
+    }
+
+    @Override
+    public ContainerListingCache getListingCache() {
+        return mListingCache;
+    }
+
+    @Override
+    public SQLiteOpenHelper getListingCacheDbHelper() {
+        return mListingCacheDbHelper;
+    }
+
+    @Override
+    public DeviceCapabilitiesCache getCapabilitiesCache() {
+        return mCapabilitiesCache;
+    }
+
+    @Override
+    public NavigationSession getNavigationSession(String udn) {
+        NavigationSession session = mNavigationSessions.get(udn);
+        if (session == null) {
+            session = new NavigationSession();
+            mNavigationSessions.put(udn, session);
+        }
+        return session;
+    }
+
+    @Override
+    public LibraryIndexer getLibraryIndexer() {
+        return mLibraryIndexer;
+    }
+
+    @Override
+    public ListingPrefetcher getListingPrefetcher() {
+        return mListingPrefetcher;
+    }
+
+    @Override
+    public SQLiteOpenHelper getLibraryIndexDbHelper() {
+        return mLibraryIndexDbHelper;
+    }
+
     private void startFileBrowserFragment(String udn, String initialContainerId) {
         if (mServerBrowserFragment == null) {
             throw new IllegalStateException(
@@ -0,0 +1,200 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR 'CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.stephenmcgruer.simpleupnp.cling;
+
+import android.util.Log;
+
+import org.fourthline.cling.controlpoint.ActionCallback;
+import org.fourthline.cling.controlpoint.ControlPoint;
+import org.fourthline.cling.model.action.ActionArgumentValue;
+import org.fourthline.cling.model.action.ActionInvocation;
+import org.fourthline.cling.model.message.UpnpResponse;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Shares one call between identical actions that are in flight to the same device at the same time, e.g. when the
+ * user leaves and re-enters a folder before its first page has arrived.
+ *
+ * Actions are identical if they have the same name and input arguments. The shared action is executed through the
+ * ActionScheduler, at the priority of the most urgent callback waiting for it, and every callback waiting for it
+ * receives its result, copied into the callback's own invocation so that one callback failing to decode the result
+ * (e.g. Browse calling setFailure()) cannot affect the others or the scheduler. Cancelling or aborting one callback
+ * only affects the shared action once no other callback is waiting for it. Only read-only actions such as Browse should
+ * be executed through here.
+ */
+public class ActionCoalescer {
+    private static final String TAG = "ActionCoalescer";
+
+    private final ActionScheduler mScheduler;
+
+    // Shared actions that have not finished yet, keyed by getKey().
+    private final Map<String, SharedAction> mSharedActions = new HashMap<>();
+    // The shared action each waiting callback is subscribed to.
+    private final Map<ActionCallback, SharedAction> mSubscriptions = new HashMap<>();
+
+    public ActionCoalescer(ActionScheduler scheduler) {
+        mScheduler = scheduler;
+    }
+
+    /**
+     * Executes an action, or subscribes it to an identical one already in flight.
+     *
+     * @param controlPoint The control point to execute the action with.
+     * @param udn The UDN of the device the action is sent to.
+     * @param callback The action to execute.
+     * @param priority The lane to queue the action in; see ActionScheduler.
+     */
+    public synchronized void execute(ControlPoint controlPoint, String udn, ActionCallback callback,
+                                     ActionScheduler.Priority priority) {
+        String key = getKey(udn, callback.getActionInvocation());
+        SharedAction sharedAction = mSharedActions.get(key);
+        if (sharedAction != null) {
+            Log.d(TAG, "execute: joining in-flight " + key);
+            sharedAction.mSubscribers.add(callback);
+            mSubscriptions.put(callback, sharedAction);
+            if (priority.compareTo(sharedAction.mPriority) < 0) {
+                sharedAction.mPriority = priority;
+                mScheduler.promote(udn, sharedAction, priority);
+            }
+            return;
+        }
+
+        sharedAction = new SharedAction(key, callback.getActionInvocation(), priority);
+        sharedAction.mSubscribers.add(callback);
+        mSharedActions.put(key, sharedAction);
+        mSubscriptions.put(callback, sharedAction);
+        mScheduler.execute(controlPoint, udn, sharedAction, priority);
+    }
+
+    /**
+     * Stops waiting for an action if it has not started executing yet, or if other callbacks are waiting for the same
+     * result. See ActionScheduler.cancel().
+     *
+     * @return True if the callback will not be called.
+     */
+    public synchronized boolean cancel(String udn, ActionCallback callback) {
+        SharedAction sharedAction = mSubscriptions.get(callback);
+        if (sharedAction == null)
+            return false;
+
+        if (sharedAction.mSubscribers.size() == 1 && !mScheduler.cancel(udn, sharedAction))
+            return false;
+
+        unsubscribe(callback, sharedAction);
+        return true;
+    }
+
+    /**
+     * Stops waiting for an action, aborting it if no other callback is waiting for the same result. See
+     * ActionScheduler.abort().
+     */
+    public synchronized void abort(String udn, ActionCallback callback) {
+        SharedAction sharedAction = mSubscriptions.get(callback);
+        if (sharedAction == null)
+            return;
+
+        unsubscribe(callback, sharedAction);
+        if (sharedAction.mSubscribers.isEmpty()) {
+            mScheduler.abort(udn, sharedAction);
+        }
+    }
+
+    /**
+     * @return Whether the callback is still waiting for its action to finish.
+     */
+    public synchronized boolean isActive(ActionCallback callback) {
+        return mSubscriptions.containsKey(callback);
+    }
+
+    private void unsubscribe(ActionCallback callback, SharedAction sharedAction) {
+        mSubscriptions.remove(callback);
+        sharedAction.mSubscribers.remove(callback);
+        if (sharedAction.mSubscribers.isEmpty() && mSharedActions.get(sharedAction.mKey) == sharedAction) {
+            mSharedActions.remove(sharedAction.mKey);
+        }
+    }
+
+    /**
+     * Detaches a finished shared action, so that later identical actions are executed afresh.
+     *
+     * @return The callbacks that were waiting for it.
+     */
+    private synchronized List<ActionCallback> onSharedActionFinished(SharedAction sharedAction) {
+        if (mSharedActions.get(sharedAction.mKey) == sharedAction) {
+            mSharedActions.remove(sharedAction.mKey);
+        }
+        List<ActionCallback> subscribers = new ArrayList<>(sharedAction.mSubscribers);
+        for (ActionCallback callback : subscribers) {
+            mSubscriptions.remove(callback);
+        }
+        sharedAction.mSubscribers.clear();
+        return subscribers;
+    }
+
+    /**
+     * Copies the outputs and failure of a finished shared action into a callback's own invocation.
+     *
+     * @return The callback's invocation.
+     */
+    @SuppressWarnings("unchecked")
+    private static ActionInvocation copyResult(ActionInvocation from, ActionCallback callback) {
+        ActionInvocation to = callback.getActionInvocation();
+        for (ActionArgumentValue value : from.getOutput()) {
+            to.setOutput(value);
+        }
+        to.setFailure(from.getFailure());
+        return to;
+    }
+
+    private static String getKey(String udn, ActionInvocation invocation) {
+        StringBuilder key = new StringBuilder(udn).append('/').append(invocation.getAction().getName());
+        for (ActionArgumentValue value : invocation.getInput()) {
+            key.append(',').append(value.getArgument().getName()).append('=').append(value.getValue());
+        }
+        return key.toString();
+    }
+
+    private class SharedAction extends ActionCallback {
+        private final String mKey;
+        // Guarded by the ActionCoalescer's lock.
+        private final List<ActionCallback> mSubscribers = new ArrayList<>();
+        private ActionScheduler.Priority mPriority;
+
+        @SuppressWarnings("unchecked")
+        SharedAction(String key, ActionInvocation invocation, ActionScheduler.Priority priority) {
+            super(new ActionInvocation(invocation.getAction(), invocation.getInput()));
+            mKey = key;
+            mPriority = priority;
+        }
+
+        @Override
+        public void success(ActionInvocation invocation) {
+            for (ActionCallback callback : onSharedActionFinished(this)) {
+                callback.success(copyResult(invocation, callback));
+            }
+        }
+
+        @Override
+        public void failure(ActionInvocation invocation, UpnpResponse operation, String defaultMsg) {
+            for (ActionCallback callback : onSharedActionFinished(this)) {
+                callback.failure(copyResult(invocation, callback), operation, defaultMsg);
+            }
+        }
+    }
+}
@@ -0,0 +1,373 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR 'CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.stephenmcgruer.simpleupnp.cling;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.fourthline.cling.controlpoint.ActionCallback;
+import org.fourthline.cling.controlpoint.ControlPoint;
+import org.fourthline.cling.model.action.ActionException;
+import org.fourthline.cling.model.types.ErrorCode;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+/**
+ * Executes UPnP actions on behalf of the fragments, limiting how many are in flight to each device at once.
+ *
+ * Each device (keyed by UDN) has a congestion window that is managed AIMD-style: every fast, successful reply grows
+ * the window by roughly one action per window's worth of replies, while a timeout or HTTP-level failure halves it.
+ * Actions beyond the window wait in per-device FIFO queues until an in-flight action finishes.
+ *
+ * Each action is queued in a Priority lane. A lane is only served while every higher lane is empty, so a click never
+ * queues behind probes or background work. BACKGROUND actions are also kept out of the last slot of the window, so
+ * that foreground actions are not left waiting for a window full of slow background ones to finish.
+ *
+ * Actions stay in the scheduler's queues until they are granted a slot, as cling starts every action it is handed
+ * straight away. INTERACTIVE actions are only limited by the other INTERACTIVE actions in flight: they overtake a
+ * window held by lower lanes, whose actions are left to finish, so the device briefly sees more than the window.
+ */
+public class ActionScheduler {
+    private static final String TAG = "ActionScheduler";
+
+    /**
+     * How urgently an action is needed, from most to least urgent.
+     */
+    public enum Priority {
+        // Directly requested by the user, e.g. the listing of a folder they clicked on.
+        INTERACTIVE,
+        // Needed to draw what is on screen, e.g. subfolder probes.
+        VISIBLE,
+        // Speculative or bulk work, e.g. prefetching and indexing.
+        BACKGROUND
+    }
+
+    static final double INITIAL_WINDOW = 4;
+    static final double MIN_WINDOW = 1;
+    static final double MAX_WINDOW = 16;
+
+    // Replies that take longer than this are not taken as a sign that the device can handle more load.
+    static final long FAST_REPLY_MILLIS = 1000;
+
+    // Slots of the window that BACKGROUND actions may not use, if the window is large enough to spare them.
+    static final int RESERVED_FOREGROUND_SLOTS = 1;
+
+    private final Map<String, DeviceQueue> mDeviceQueues = new HashMap<>();
+
+    /**
+     * Queues an action for the given device, executing it immediately if the device's window allows.
+     *
+     * @param controlPoint The control point to execute the action with.
+     * @param udn The UDN of the device the action is sent to.
+     * @param callback The action to execute.
+     * @param priority The lane to queue the action in.
+     */
+    public synchronized void execute(ControlPoint controlPoint, String udn, ActionCallback callback,
+                                     Priority priority) {
+        callback.setControlPoint(controlPoint);
+        DeviceQueue deviceQueue = getDeviceQueue(udn);
+        deviceQueue.mPending.get(priority).add(callback);
+        drain(udn, deviceQueue);
+    }
+
+    /**
+     * Moves a queued action to a higher lane, e.g. because a more urgent caller is now waiting for it. Does nothing if
+     * the action is not queued, or is already in that lane or a higher one.
+     */
+    public synchronized void promote(String udn, ActionCallback callback, Priority priority) {
+        DeviceQueue deviceQueue = mDeviceQueues.get(udn);
+        if (deviceQueue == null)
+            return;
+
+        for (Priority lane : Priority.values()) {
+            if (lane.compareTo(priority) <= 0)
+                continue;
+
+            if (deviceQueue.mPending.get(lane).remove(callback)) {
+                deviceQueue.mPending.get(priority).add(callback);
+                drain(udn, deviceQueue);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Removes an action from its device's queue, if it has not started executing yet.
+     *
+     * @param udn The UDN of the device the action was queued for.
+     * @param callback The action to cancel.
+     * @return True if the action was removed before being executed, false if it is running or has already finished.
+     */
+    public synchronized boolean cancel(String udn, ActionCallback callback) {
+        DeviceQueue deviceQueue = mDeviceQueues.get(udn);
+        return deviceQueue != null && deviceQueue.removePending(callback);
+    }
+
+    /**
+     * Cancels an action whether or not it has started executing. A running action is interrupted, which aborts its
+     * HTTP request; its callback then sees a failure, and it is not counted against the device's window.
+     *
+     * @param udn The UDN of the device the action was queued for.
+     * @param callback The action to abort.
+     */
+    public synchronized void abort(String udn, ActionCallback callback) {
+        DeviceQueue deviceQueue = mDeviceQueues.get(udn);
+        if (deviceQueue == null || deviceQueue.removePending(callback))
+            return;
+
+        ScheduledAction action = deviceQueue.mRunning.get(callback);
+        if (action == null || action.mAborted)
+            return;
+
+        action.mAborted = true;
+        if (action.mStarted) {
+            action.mFuture.cancel(true);
+        } else {
+            // It will never run, so will not release its slot itself.
+            action.mFuture.cancel(false);
+            release(deviceQueue, action);
+            drain(udn, deviceQueue);
+        }
+    }
+
+    /**
+     * @return The current congestion window for the device, i.e. the number of actions allowed in flight at once.
+     */
+    public synchronized double getWindow(String udn) {
+        return getDeviceQueue(udn).mWindow;
+    }
+
+    /**
+     * @return The number of actions for the device waiting for space in its window.
+     */
+    public synchronized int getQueueDepth(String udn) {
+        DeviceQueue deviceQueue = getDeviceQueue(udn);
+        int depth = 0;
+        for (Deque<ActionCallback> lane : deviceQueue.mPending.values()) {
+            depth += lane.size();
+        }
+        return depth;
+    }
+
+    /**
+     * @return The number of actions for the device currently being executed.
+     */
+    public synchronized int getInFlightCount(String udn) {
+        return getDeviceQueue(udn).mInFlight;
+    }
+
+    /**
+     * @return A human-readable summary of the state of every device queue, for debugging.
+     */
+    public synchronized String dumpState() {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, DeviceQueue> entry : mDeviceQueues.entrySet()) {
+            DeviceQueue deviceQueue = entry.getValue();
+            builder.append(entry.getKey())
+                    .append(": window=").append(String.format("%.2f", deviceQueue.mWindow))
+                    .append(", inFlight=").append(deviceQueue.mInFlight)
+                    .append(", interactive=").append(deviceQueue.mInteractiveInFlight)
+                    .append(", background=").append(deviceQueue.mBackgroundInFlight);
+            for (Map.Entry<Priority, Deque<ActionCallback>> lane : deviceQueue.mPending.entrySet()) {
+                builder.append(", queued ").append(lane.getKey()).append('=').append(lane.getValue().size());
+            }
+            builder.append('\n');
+        }
+        return builder.toString();
+    }
+
+    private DeviceQueue getDeviceQueue(String udn) {
+        DeviceQueue deviceQueue = mDeviceQueues.get(udn);
+        if (deviceQueue == null) {
+            deviceQueue = new DeviceQueue();
+            mDeviceQueues.put(udn, deviceQueue);
+        }
+        return deviceQueue;
+    }
+
+    /**
+     * Starts queued actions for a device, highest lane first, until its window is full. Must be called with the lock
+     * held.
+     */
+    private void drain(String udn, DeviceQueue deviceQueue) {
+        while (true) {
+            Priority priority = deviceQueue.nextLane();
+            if (priority == null)
+                return;
+
+            ActionCallback callback = deviceQueue.mPending.get(priority).poll();
+            deviceQueue.mInFlight++;
+            if (priority == Priority.INTERACTIVE) {
+                deviceQueue.mInteractiveInFlight++;
+            } else if (priority == Priority.BACKGROUND) {
+                deviceQueue.mBackgroundInFlight++;
+            }
+            ScheduledAction action = new ScheduledAction(udn, callback, priority);
+            deviceQueue.mRunning.put(callback, action);
+            action.mFuture = callback.getControlPoint().getConfiguration().getSyncProtocolExecutorService().submit(
+                    action);
+        }
+    }
+
+    /**
+     * Frees the slot held by an action. Must be called with the lock held.
+     */
+    private void release(DeviceQueue deviceQueue, ScheduledAction action) {
+        deviceQueue.mRunning.remove(action.mCallback);
+        deviceQueue.mInFlight--;
+        if (action.mPriority == Priority.INTERACTIVE) {
+            deviceQueue.mInteractiveInFlight--;
+        } else if (action.mPriority == Priority.BACKGROUND) {
+            deviceQueue.mBackgroundInFlight--;
+        }
+    }
+
+    /**
+     * Marks an action as started, unless it was aborted before it got the chance.
+     *
+     * @return Whether the action should run.
+     */
+    private synchronized boolean onActionStarting(ScheduledAction action) {
+        if (action.mAborted)
+            return false;
+
+        action.mStarted = true;
+        return true;
+    }
+
+    private synchronized void onActionFinished(ScheduledAction action, long startMillis) {
+        String udn = action.mUdn;
+        ActionCallback callback = action.mCallback;
+        DeviceQueue deviceQueue = getDeviceQueue(udn);
+        release(deviceQueue, action);
+
+        long elapsedMillis = elapsedRealtime() - startMillis;
+        ActionException failure = callback.getActionInvocation().getFailure();
+        // The failure of an aborted action says nothing about the device's load.
+        if (failure != null && isCongestionFailure(failure) && !action.mAborted) {
+            // Only back off once per window's worth of actions; the other actions that were in flight alongside this
+            // one are likely to fail the same way and should not shrink the window again.
+            if (startMillis > deviceQueue.mLastDecreaseMillis) {
+                deviceQueue.mWindow = Math.max(MIN_WINDOW, deviceQueue.mWindow / 2);
+                deviceQueue.mLastDecreaseMillis = elapsedRealtime();
+                Log.d(TAG, "onActionFinished: " + udn + " failed (" + failure.getMessage() + "), window now "
+                        + deviceQueue.mWindow);
+            }
+        } else if (failure == null && elapsedMillis <= FAST_REPLY_MILLIS) {
+            deviceQueue.mWindow = Math.min(MAX_WINDOW, deviceQueue.mWindow + 1 / deviceQueue.mWindow);
+        }
+
+        drain(udn, deviceQueue);
+    }
+
+    /**
+     * @return The time used to measure replies. Overridden in tests.
+     */
+    long elapsedRealtime() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Determines whether an action failure indicates that the device is overloaded.
+     *
+     * Cling reports timeouts, connection errors and HTTP error responses without a UPnP error body as ACTION_FAILED.
+     * Other error codes are well-formed UPnP errors (e.g. 701, "No such object"), which say nothing about load.
+     */
+    private static boolean isCongestionFailure(ActionException failure) {
+        return failure.getErrorCode() == ErrorCode.ACTION_FAILED.getCode();
+    }
+
+    private static class DeviceQueue {
+        final Map<Priority, Deque<ActionCallback>> mPending = new EnumMap<>(Priority.class);
+        final Map<ActionCallback, ScheduledAction> mRunning = new HashMap<>();
+        int mInFlight = 0;
+        int mInteractiveInFlight = 0;
+        int mBackgroundInFlight = 0;
+        double mWindow = INITIAL_WINDOW;
+        long mLastDecreaseMillis = Long.MIN_VALUE;
+
+        DeviceQueue() {
+            for (Priority priority : Priority.values()) {
+                mPending.put(priority, new ArrayDeque<ActionCallback>());
+            }
+        }
+
+        /**
+         * @return The lane to start an action from next, or null if none may be started.
+         */
+        Priority nextLane() {
+            for (Priority priority : Priority.values()) {
+                if (mPending.get(priority).isEmpty())
+                    continue;
+
+                if (priority == Priority.INTERACTIVE)
+                    return mInteractiveInFlight < (int) mWindow ? priority : null;
+                if (mInFlight >= (int) mWindow)
+                    return null;
+                if (priority == Priority.BACKGROUND) {
+                    int backgroundSlots = Math.max(1, (int) mWindow - RESERVED_FOREGROUND_SLOTS);
+                    return mBackgroundInFlight < backgroundSlots ? priority : null;
+                }
+                return priority;
+            }
+            return null;
+        }
+
+        boolean removePending(ActionCallback callback) {
+            for (Deque<ActionCallback> lane : mPending.values()) {
+                if (lane.remove(callback))
+                    return true;
+            }
+            return false;
+        }
+    }
+
+    private class ScheduledAction implements Runnable {
+        private final String mUdn;
+        private final ActionCallback mCallback;
+        private final Priority mPriority;
+
+        // Guarded by the ActionScheduler's lock.
+        Future<?> mFuture;
+        boolean mStarted = false;
+        boolean mAborted = false;
+
+        ScheduledAction(String udn, ActionCallback callback, Priority priority) {
+            mUdn = udn;
+            mCallback = callback;
+            mPriority = priority;
+        }
+
+        @Override
+        public void run() {
+            if (!onActionStarting(this))
+                return;
+
+            long startMillis = elapsedRealtime();
+            try {
+                mCallback.run();
+            } finally {
+                onActionFinished(this, startMillis);
+                // Don't leave an abort's interrupt behind for the next task on this pooled thread.
+                Thread.interrupted();
+            }
+        }
+    }
+}
@@ -0,0 +1,102 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR 'CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.stephenmcgruer.simpleupnp.cling;
+
+import android.util.Log;
+
+import org.fourthline.cling.model.action.ActionInvocation;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * The Filter arguments used for Browse and Search actions, which limit the properties a server includes in each
+ * DIDL-Lite object. Servers otherwise send every property they have (descriptions, album art, every res variant),
+ * and response size dominates browse latency on slow networks.
+ *
+ * The id, parentID, restricted, dc:title and upnp:class of each object are always returned, whatever the filter. Also
+ * keeps a running count of the Result bytes received under each profile, for comparing them.
+ */
+public final class BrowseFilter {
+    private static final String TAG = "BrowseFilter";
+
+    public enum Profile {
+        // Enough to show and navigate a listing, but not to play its items.
+        MINIMAL("dc:title,upnp:class,@childCount"),
+        // Also the first resource of each item, as needed to cast it.
+        PLAYBACK("dc:title,upnp:class,@childCount,res,res@protocolInfo,res@duration"),
+        // Also the metadata searched in the local library index.
+        INDEX("dc:title,upnp:class,@childCount,res,res@protocolInfo,res@duration,upnp:artist,upnp:album"),
+        // Everything the server has.
+        FULL("*");
+
+        private final String mFilter;
+
+        Profile(String filter) {
+            mFilter = filter;
+        }
+
+        public String getFilter() {
+            return mFilter;
+        }
+    }
+
+    // Guarded by the class lock.
+    private static final Map<Profile, long[]> sResultStats = new EnumMap<>(Profile.class);
+
+    private BrowseFilter() {
+        // Not instantiable.
+    }
+
+    /**
+     * Adds the size of a Browse or Search response's Result to the profile's totals.
+     */
+    public static void recordResult(Profile profile, ActionInvocation invocation) {
+        Object result = invocation.getOutput("Result") != null ? invocation.getOutput("Result").getValue() : null;
+        if (result == null)
+            return;
+
+        int length = result.toString().length();
+        synchronized (BrowseFilter.class) {
+            long[] stats = sResultStats.get(profile);
+            if (stats == null) {
+                stats = new long[2];
+                sResultStats.put(profile, stats);
+            }
+            stats[0]++;
+            stats[1] += length;
+        }
+        if (Log.isLoggable(TAG, Log.VERBOSE)) {
+            Log.v(TAG, "recordResult: " + profile + " response of " + length + " chars");
+        }
+    }
+
+    /**
+     * @return A human-readable summary of the responses received under each profile, for debugging.
+     */
+    public static synchronized String dumpStats() {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<Profile, long[]> entry : sResultStats.entrySet()) {
+            long responses = entry.getValue()[0];
+            long chars = entry.getValue()[1];
+            builder.append(entry.getKey())
+                    .append(": responses=").append(responses)
+                    .append(", chars=").append(chars)
+                    .append(", mean=").append(responses > 0 ? chars / responses : 0)
+                    .append('\n');
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,57 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR 'CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.stephenmcgruer.simpleupnp.cling;
+
+import org.fourthline.cling.model.action.ActionInvocation;
+import org.fourthline.cling.model.types.UnsignedIntegerFourBytes;
+
+/**
+ * Paging rules shared by everything that pages through a container with Browse.
+ */
+public final class BrowsePaging {
+
+    private BrowsePaging() {
+    }
+
+    /**
+     * Reads an unsigned integer output argument (e.g. NumberReturned, TotalMatches) from a Browse invocation.
+     *
+     * @return The value of the argument, or -1 if it was missing.
+     */
+    public static long getUnsignedOutput(ActionInvocation invocation, String name) {
+        if (invocation.getOutput(name) == null)
+            return -1;
+        Object value = invocation.getOutput(name).getValue();
+        return value instanceof UnsignedIntegerFourBytes ? ((UnsignedIntegerFourBytes) value).getValue() : -1;
+    }
+
+    /**
+     * Decides whether a container has children left to fetch after a page.
+     *
+     * Servers may report a TotalMatches of 0 when they do not know the size of the container, or a TotalMatches
+     * smaller than the children already returned. In either case, keep paging until a short page is returned.
+     *
+     * @param loadedCount The number of children fetched so far, including this page.
+     * @param numberReturned The NumberReturned of this page.
+     * @param totalMatches The TotalMatches of this page, or 0 or less if unknown.
+     * @param requestedCount The RequestedCount the page was browsed with.
+     */
+    public static boolean hasMorePages(long loadedCount, long numberReturned, long totalMatches,
+                                       long requestedCount) {
+        if (totalMatches > 0 && totalMatches >= loadedCount)
+            return numberReturned > 0 && loadedCount < totalMatches;
+        return numberReturned >= requestedCount;
+    }
+}
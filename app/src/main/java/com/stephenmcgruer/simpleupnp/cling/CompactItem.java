@@ -0,0 +1,248 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR 'CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.stephenmcgruer.simpleupnp.cling;
+
+import org.fourthline.cling.support.model.DIDLObject;
+import org.fourthline.cling.support.model.ProtocolInfo;
+import org.fourthline.cling.support.model.Res;
+import org.fourthline.cling.support.model.item.Item;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A flat copy of the parts of a DIDL-Lite item that are needed to list and play it.
+ *
+ * Holding these instead of cling Items avoids retaining each item's property, descriptor and resource objects for as
+ * long as its listing is shown or cached. Strings that repeat across a listing (the upnp:class, protocolInfo and mime
+ * type) are interned so that each distinct value is stored once. The FilterKeys key of the title is built up front, as
+ * items are created where they are parsed, off the main thread.
+ */
+public class CompactItem {
+    // Value used by getDurationMillis() when the duration is not known.
+    public static final long UNKNOWN_DURATION = -1;
+
+    // Rough size of a CompactItem excluding its strings, used by getEstimatedSizeBytes().
+    private static final int OBJECT_OVERHEAD_BYTES = 64;
+
+    private final String mId;
+    private final String mParentId;
+    private final String mTitle;
+    private final String mUpnpClass;
+    private final String mUrl;
+    private final String mProtocolInfo;
+    private final String mMimeType;
+    private final long mDurationMillis;
+    private final String mFilterKey;
+
+    public CompactItem(String id, String parentId, String title, String upnpClass, String url, String protocolInfo,
+                       String mimeType, long durationMillis) {
+        mId = id;
+        mParentId = parentId;
+        mTitle = title;
+        mUpnpClass = intern(upnpClass);
+        mUrl = url;
+        mProtocolInfo = intern(protocolInfo);
+        mMimeType = intern(mimeType);
+        mDurationMillis = durationMillis;
+        mFilterKey = FilterKeys.normalize(title);
+    }
+
+    /**
+     * Creates a CompactItem from a cling Item, using its first resource as the item's URL.
+     */
+    public static CompactItem fromItem(Item item) {
+        String upnpClass = item.getClazz() != null ? item.getClazz().getValue() : null;
+        Res resource = item.getFirstResource();
+        if (resource == null) {
+            return new CompactItem(item.getId(), item.getParentID(), item.getTitle(), upnpClass, null, null, null,
+                    UNKNOWN_DURATION);
+        }
+
+        ProtocolInfo protocolInfo = resource.getProtocolInfo();
+        return new CompactItem(item.getId(), item.getParentID(), item.getTitle(), upnpClass, resource.getValue(),
+                protocolInfo != null ? protocolInfo.toString() : null,
+                protocolInfo != null ? protocolInfo.getContentFormat() : null,
+                parseDuration(resource.getDuration()));
+    }
+
+    public static List<CompactItem> fromItems(List<Item> items) {
+        List<CompactItem> compactItems = new ArrayList<>(items.size());
+        for (Item item : items) {
+            compactItems.add(fromItem(item));
+        }
+        return compactItems;
+    }
+
+    /**
+     * Recreates a cling Item holding the same information, e.g. so that it can be serialized as DIDL-Lite.
+     */
+    public Item toItem() {
+        Item item = new Item(mId, mParentId, mTitle, null,
+                new DIDLObject.Class(mUpnpClass != null ? mUpnpClass : "object.item"));
+        if (mUrl != null) {
+            Res resource = new Res(mProtocolInfo != null ? new ProtocolInfo(mProtocolInfo) : null, null,
+                    mDurationMillis != UNKNOWN_DURATION ? formatDuration(mDurationMillis) : null, null, mUrl);
+            item.addResource(resource);
+        }
+        return item;
+    }
+
+    public String getId() {
+        return mId;
+    }
+
+    public String getParentId() {
+        return mParentId;
+    }
+
+    public String getTitle() {
+        return mTitle;
+    }
+
+    /**
+     * @return The title in the form used for filtering rows; see FilterKeys.
+     */
+    public String getFilterKey() {
+        return mFilterKey;
+    }
+
+    public String getUpnpClass() {
+        return mUpnpClass;
+    }
+
+    /**
+     * @return The URL of the item's primary resource, or null if it has none.
+     */
+    public String getUrl() {
+        return mUrl;
+    }
+
+    public String getProtocolInfo() {
+        return mProtocolInfo;
+    }
+
+    /**
+     * @return The mime type of the item's primary resource, or null if it is not known.
+     */
+    public String getMimeType() {
+        return mMimeType;
+    }
+
+    /**
+     * @return The duration of the item's primary resource, or UNKNOWN_DURATION.
+     */
+    public long getDurationMillis() {
+        return mDurationMillis;
+    }
+
+    /**
+     * @return An estimate of the heap retained by this item. Interned strings are not counted, as they are shared.
+     */
+    public long getEstimatedSizeBytes() {
+        return OBJECT_OVERHEAD_BYTES + 2 * (length(mId) + length(mParentId) + length(mTitle) + length(mUrl)
+                + length(mFilterKey));
+    }
+
+    /**
+     * Parses a DIDL-Lite res@duration value, which has the form H+:MM:SS[.F+] or H+:MM:SS[.F0/F1].
+     *
+     * @return The duration in milliseconds, or UNKNOWN_DURATION if it could not be parsed.
+     */
+    static long parseDuration(String duration) {
+        if (duration == null)
+            return UNKNOWN_DURATION;
+
+        String[] fields = duration.trim().split(":", -1);
+        if (fields.length != 3)
+            return UNKNOWN_DURATION;
+
+        String seconds = fields[2];
+        String fraction = "";
+        int dot = seconds.indexOf('.');
+        if (dot >= 0) {
+            fraction = seconds.substring(dot + 1);
+            seconds = seconds.substring(0, dot);
+        }
+
+        long hours = parseDigits(fields[0]);
+        long minutes = parseDigits(fields[1]);
+        long wholeSeconds = parseDigits(seconds);
+        long fractionMillis = parseFractionMillis(fraction);
+        if (hours < 0 || minutes < 0 || wholeSeconds < 0 || fractionMillis < 0)
+            return UNKNOWN_DURATION;
+        return ((hours * 60 + minutes) * 60 + wholeSeconds) * 1000 + fractionMillis;
+    }
+
+    /**
+     * Parses the part of a duration after the seconds' decimal point, either decimal digits (F+) or a fraction
+     * (F0/F1, where F0 < F1).
+     *
+     * @return The fraction of a second in milliseconds, or -1 if it could not be parsed.
+     */
+    private static long parseFractionMillis(String fraction) {
+        int slash = fraction.indexOf('/');
+        if (slash >= 0) {
+            long numerator = parseDigits(fraction.substring(0, slash));
+            long denominator = parseDigits(fraction.substring(slash + 1));
+            if (numerator < 0 || denominator <= 0 || numerator >= denominator)
+                return -1;
+            return 1000 * numerator / denominator;
+        }
+
+        if (!fraction.isEmpty() && !isDigits(fraction))
+            return -1;
+        // Only the first three digits matter at millisecond precision.
+        long millis = 0;
+        for (int i = 0; i < 3; i++) {
+            millis = millis * 10 + (i < fraction.length() ? fraction.charAt(i) - '0' : 0);
+        }
+        return millis;
+    }
+
+    /**
+     * @return The value of a non-empty string of ASCII digits, or -1 if it is anything else or too long.
+     */
+    private static long parseDigits(String digits) {
+        // Long enough for any real duration, short enough not to overflow.
+        if (digits.isEmpty() || digits.length() > 12 || !isDigits(digits))
+            return -1;
+        return Long.parseLong(digits);
+    }
+
+    private static boolean isDigits(String string) {
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            if (c < '0' || c > '9')
+                return false;
+        }
+        return true;
+    }
+
+    static String formatDuration(long durationMillis) {
+        long seconds = durationMillis / 1000;
+        return String.format(Locale.US, "%d:%02d:%02d.%03d",
+                seconds / 3600, (seconds / 60) % 60, seconds % 60, durationMillis % 1000);
+    }
+
+    private static String intern(String string) {
+        return string != null ? string.intern() : null;
+    }
+
+    private static int length(String string) {
+        return string != null ? string.length() : 0;
+    }
+}
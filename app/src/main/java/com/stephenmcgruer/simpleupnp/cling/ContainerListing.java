@@ -0,0 +1,180 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR 'CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.stephenmcgruer.simpleupnp.cling;
+
+import org.fourthline.cling.support.model.Res;
+import org.fourthline.cling.support.model.container.Container;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The children of a ContentDirectory container fetched so far, along with the paging state needed to fetch the rest.
+ *
+ * Should only be modified on the main thread.
+ */
+public class ContainerListing {
+    // Rough per-object overheads used by getEstimatedSizeBytes(), based on the fields cling populates for a typical
+    // DIDL-Lite object.
+    private static final int OBJECT_OVERHEAD_BYTES = 256;
+    private static final int RESOURCE_OVERHEAD_BYTES = 128;
+
+    private final List<Container> mContainers = new ArrayList<>();
+    private final List<CompactItem> mItems = new ArrayList<>();
+    private long mNextStartingIndex = 0;
+    private long mTotalMatches = 0;
+    private boolean mHasMorePages = true;
+    private long mEstimatedSizeBytes = 0;
+    private long mSystemUpdateId = ContainerListingCache.UNKNOWN_SYSTEM_UPDATE_ID;
+
+    // Whether the children are in display order, either because the server sorted them or because ListingSorter has,
+    // and the section index built by ListingSorter for large listings.
+    private boolean mSorted = false;
+    private List<ListingSorter.Section> mSections;
+
+    // Results of probing child containers for media items, keyed by container id.
+    private final Map<String, Boolean> mMediaItemProbeResults = new HashMap<>();
+
+    /**
+     * Appends a page of children to the listing.
+     *
+     * @param containers The containers in the page.
+     * @param items The items in the page.
+     * @param numberReturned The NumberReturned reported by the server for the page.
+     * @param totalMatches The TotalMatches reported by the server, or 0 or less if unknown.
+     * @param hasMorePages Whether there are more children to fetch after this page.
+     */
+    public void addPage(List<Container> containers, List<CompactItem> items, long numberReturned, long totalMatches,
+                        boolean hasMorePages) {
+        mContainers.addAll(containers);
+        mItems.addAll(items);
+        mNextStartingIndex += numberReturned;
+        mTotalMatches = totalMatches;
+        mHasMorePages = hasMorePages;
+
+        for (Container container : containers) {
+            mEstimatedSizeBytes += estimateSizeBytes(container);
+        }
+        for (CompactItem item : items) {
+            mEstimatedSizeBytes += item.getEstimatedSizeBytes();
+        }
+    }
+
+    /**
+     * Replaces the children with the same children in display order, once every page has been fetched.
+     */
+    public void setSortedChildren(ListingSorter.Result result) {
+        mContainers.clear();
+        mContainers.addAll(result.mContainers);
+        mItems.clear();
+        mItems.addAll(result.mItems);
+        mSections = result.mSections;
+        mSorted = true;
+    }
+
+    public boolean isSorted() {
+        return mSorted;
+    }
+
+    /**
+     * Records whether the server was asked to sort the children, in which case they do not need sorting again.
+     */
+    public void setSorted(boolean sorted) {
+        mSorted = sorted;
+    }
+
+    /**
+     * @return The section index of the children, or null if there is none.
+     */
+    public List<ListingSorter.Section> getSections() {
+        return mSections;
+    }
+
+    public List<Container> getContainers() {
+        return Collections.unmodifiableList(mContainers);
+    }
+
+    public List<CompactItem> getItems() {
+        return Collections.unmodifiableList(mItems);
+    }
+
+    /**
+     * @return The StartingIndex of the next page, i.e. the number of children the server has returned so far.
+     */
+    public long getNextStartingIndex() {
+        return mNextStartingIndex;
+    }
+
+    public long getTotalMatches() {
+        return mTotalMatches;
+    }
+
+    public boolean hasMorePages() {
+        return mHasMorePages;
+    }
+
+    /**
+     * @return The SystemUpdateID of the device when the listing was started, or
+     *     ContainerListingCache.UNKNOWN_SYSTEM_UPDATE_ID if it is not known.
+     */
+    public long getSystemUpdateId() {
+        return mSystemUpdateId;
+    }
+
+    public void setSystemUpdateId(long systemUpdateId) {
+        mSystemUpdateId = systemUpdateId;
+    }
+
+    /**
+     * Records whether a child container was found to directly hold media items, so that it does not have to be probed
+     * again when the listing is reused.
+     */
+    public void setHasMediaItems(String containerId, boolean hasMediaItems) {
+        mMediaItemProbeResults.put(containerId, hasMediaItems);
+    }
+
+    /**
+     * @return Whether a child container directly holds media items, or null if it has not been probed.
+     */
+    public Boolean hasMediaItems(String containerId) {
+        return mMediaItemProbeResults.get(containerId);
+    }
+
+    /**
+     * @return An estimate of the heap retained by the children in this listing.
+     */
+    public long getEstimatedSizeBytes() {
+        return mEstimatedSizeBytes;
+    }
+
+    private static long estimateSizeBytes(Container object) {
+        long size = OBJECT_OVERHEAD_BYTES;
+        size += 2 * (length(object.getId()) + length(object.getParentID()) + length(object.getTitle()));
+        if (object instanceof KeyedContainer) {
+            size += 2 * length(((KeyedContainer) object).getFilterKey());
+        }
+        for (Res resource : object.getResources()) {
+            size += RESOURCE_OVERHEAD_BYTES + 2 * length(resource.getValue());
+        }
+        return size;
+    }
+
+    private static int length(String string) {
+        return string != null ? string.length() : 0;
+    }
+}
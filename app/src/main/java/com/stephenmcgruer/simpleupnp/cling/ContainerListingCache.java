@@ -0,0 +1,369 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR 'CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.stephenmcgruer.simpleupnp.cling;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.fourthline.cling.controlpoint.ControlPoint;
+import org.fourthline.cling.controlpoint.SubscriptionCallback;
+import org.fourthline.cling.model.gena.CancelReason;
+import org.fourthline.cling.model.gena.GENASubscription;
+import org.fourthline.cling.model.message.UpnpResponse;
+import org.fourthline.cling.model.meta.Service;
+import org.fourthline.cling.model.state.StateVariableValue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In-memory LRU cache of container listings, keyed by device UDN and container id.
+ *
+ * The cache is bounded both by the number of entries and by their estimated size. Entries are invalidated by a GENA
+ * subscription to each watched device's ContentDirectory (SystemUpdateID and ContainerUpdateIDs), and expire after a
+ * TTL in case events are missed. The TTL is much shorter for devices without a working subscription.
+ */
+public class ContainerListingCache {
+    private static final String TAG = "ContainerListingCache";
+
+    static final int MAX_ENTRIES = 64;
+    static final long MAX_SIZE_BYTES = 4 * 1024 * 1024;
+
+    static final long EVENTED_TTL_MILLIS = 30 * 60 * 1000;
+    static final long UNEVENTED_TTL_MILLIS = 30 * 1000;
+
+    // Requested GENA subscription duration.
+    private static final int SUBSCRIPTION_DURATION_SECONDS = 1800;
+
+    public static final long UNKNOWN_SYSTEM_UPDATE_ID = -1;
+
+    private static final String SYSTEM_UPDATE_ID = "SystemUpdateID";
+    private static final String CONTAINER_UPDATE_IDS = "ContainerUpdateIDs";
+
+    // Access-ordered, so iteration starts at the least recently used entry.
+    private final LinkedHashMap<Key, Entry> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private long mSizeBytes = 0;
+
+    private final Map<String, ContentDirectorySubscription> mSubscriptions = new HashMap<>();
+
+    private volatile ChangeListener mChangeListener;
+
+    /**
+     * Told about the changes evented by watched devices.
+     */
+    public interface ChangeListener {
+        /**
+         * Called on a GENA thread when a watched device's SystemUpdateID changes.
+         *
+         * @param systemUpdateId The new SystemUpdateID, or UNKNOWN_SYSTEM_UPDATE_ID if events were missed.
+         * @param changedContainerIds The containers whose children changed, or an empty list if not known.
+         */
+        void onContentChanged(String udn, long previousSystemUpdateId, long systemUpdateId,
+                              List<String> changedContainerIds);
+    }
+
+    /**
+     * Looks up a listing.
+     *
+     * @return The cached listing, or null if there is none or it has expired.
+     */
+    public synchronized ContainerListing get(String udn, String containerId) {
+        Key key = new Key(udn, containerId);
+        Entry entry = mEntries.get(key);
+        if (entry == null)
+            return null;
+
+        if (SystemClock.elapsedRealtime() - entry.mCreatedMillis > getTtlMillis(udn)) {
+            remove(key);
+            return null;
+        }
+        return entry.mListing;
+    }
+
+    /**
+     * Adds or updates a listing. Should be called again whenever more pages are added to the listing, so that its size
+     * is accounted for.
+     */
+    public synchronized void put(String udn, String containerId, ContainerListing listing) {
+        Key key = new Key(udn, containerId);
+        Entry previous = mEntries.get(key);
+        long createdMillis = SystemClock.elapsedRealtime();
+        if (previous != null) {
+            // Adding a page to a listing does not make the pages already in it any fresher.
+            if (previous.mListing == listing) {
+                createdMillis = previous.mCreatedMillis;
+            }
+            remove(key);
+        }
+
+        Entry entry = new Entry(listing, createdMillis);
+        mEntries.put(key, entry);
+        mSizeBytes += entry.mSizeBytes;
+        trim();
+    }
+
+    /**
+     * Removes all listings for a device.
+     */
+    public synchronized void invalidate(String udn) {
+        Iterator<Map.Entry<Key, Entry>> iterator = mEntries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Key, Entry> mapEntry = iterator.next();
+            if (mapEntry.getKey().mUdn.equals(udn)) {
+                mSizeBytes -= mapEntry.getValue().mSizeBytes;
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Removes the listing of a single container.
+     */
+    public synchronized void invalidate(String udn, String containerId) {
+        remove(new Key(udn, containerId));
+    }
+
+    /**
+     * Subscribes to ContentDirectory events for a device, so that its listings are invalidated when they change. Does
+     * nothing if the device is already being watched.
+     *
+     * @param controlPoint The control point to subscribe with.
+     * @param udn The UDN of the device.
+     * @param contentDirectoryService The device's ContentDirectory service.
+     */
+    public synchronized void watch(ControlPoint controlPoint, String udn, Service contentDirectoryService) {
+        if (mSubscriptions.containsKey(udn))
+            return;
+
+        ContentDirectorySubscription subscription = new ContentDirectorySubscription(udn, contentDirectoryService);
+        mSubscriptions.put(udn, subscription);
+        controlPoint.execute(subscription);
+    }
+
+    public void setChangeListener(ChangeListener changeListener) {
+        mChangeListener = changeListener;
+    }
+
+    /**
+     * @return The latest SystemUpdateID evented by a watched device, or UNKNOWN_SYSTEM_UPDATE_ID if there has not been
+     *     one yet.
+     */
+    public synchronized long getSystemUpdateId(String udn) {
+        ContentDirectorySubscription subscription = mSubscriptions.get(udn);
+        return subscription != null ? subscription.mSystemUpdateId : UNKNOWN_SYSTEM_UPDATE_ID;
+    }
+
+    /**
+     * Ends all ContentDirectory subscriptions and empties the cache.
+     */
+    public void close() {
+        List<ContentDirectorySubscription> subscriptions;
+        synchronized (this) {
+            subscriptions = new ArrayList<>(mSubscriptions.values());
+            mSubscriptions.clear();
+            mEntries.clear();
+            mSizeBytes = 0;
+        }
+
+        // Ending a subscription calls back into ended(), so must be done without holding the lock.
+        for (ContentDirectorySubscription subscription : subscriptions) {
+            subscription.end();
+        }
+    }
+
+    private long getTtlMillis(String udn) {
+        ContentDirectorySubscription subscription = mSubscriptions.get(udn);
+        return subscription != null && subscription.mEstablished ? EVENTED_TTL_MILLIS : UNEVENTED_TTL_MILLIS;
+    }
+
+    private void remove(Key key) {
+        Entry entry = mEntries.remove(key);
+        if (entry != null) {
+            mSizeBytes -= entry.mSizeBytes;
+        }
+    }
+
+    /**
+     * Evicts least recently used entries until the cache is within its bounds.
+     */
+    private void trim() {
+        Iterator<Entry> iterator = mEntries.values().iterator();
+        while (iterator.hasNext() && (mEntries.size() > MAX_ENTRIES || mSizeBytes > MAX_SIZE_BYTES)) {
+            mSizeBytes -= iterator.next().mSizeBytes;
+            iterator.remove();
+        }
+    }
+
+    private synchronized void onSystemUpdateIdChanged(String udn, List<String> changedContainerIds) {
+        if (changedContainerIds.isEmpty()) {
+            Log.d(TAG, "onSystemUpdateIdChanged: invalidating all listings for " + udn);
+            invalidate(udn);
+        } else {
+            Log.d(TAG, "onSystemUpdateIdChanged: invalidating " + changedContainerIds + " for " + udn);
+            for (String containerId : changedContainerIds) {
+                invalidate(udn, containerId);
+            }
+        }
+    }
+
+    private void notifyContentChanged(String udn, long previousSystemUpdateId, long systemUpdateId,
+                                      List<String> changedContainerIds) {
+        ChangeListener changeListener = mChangeListener;
+        if (changeListener != null) {
+            changeListener.onContentChanged(udn, previousSystemUpdateId, systemUpdateId, changedContainerIds);
+        }
+    }
+
+    private synchronized void onSubscriptionEnded(String udn, ContentDirectorySubscription subscription) {
+        if (mSubscriptions.get(udn) == subscription) {
+            mSubscriptions.remove(udn);
+        }
+    }
+
+    /**
+     * Parses the container ids out of a ContainerUpdateIDs value, which is a comma separated list of alternating
+     * container ids and update ids, with literal commas escaped as "\,".
+     */
+    static List<String> parseContainerUpdateIds(String containerUpdateIds) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        for (int i = 0; i < containerUpdateIds.length(); i++) {
+            char c = containerUpdateIds.charAt(i);
+            if (c == '\\' && i + 1 < containerUpdateIds.length()) {
+                field.append(containerUpdateIds.charAt(++i));
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+
+        List<String> containerIds = new ArrayList<>();
+        for (int i = 0; i + 1 < fields.size(); i += 2) {
+            containerIds.add(fields.get(i));
+        }
+        return containerIds;
+    }
+
+    private static class Key {
+        private final String mUdn;
+        private final String mContainerId;
+
+        Key(String udn, String containerId) {
+            mUdn = udn;
+            mContainerId = containerId;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj instanceof Key) {
+                Key other = (Key) obj;
+                return mUdn.equals(other.mUdn) && mContainerId.equals(other.mContainerId);
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * mUdn.hashCode() + mContainerId.hashCode();
+        }
+    }
+
+    private static class Entry {
+        private final ContainerListing mListing;
+        private final long mCreatedMillis;
+        // Captured on insertion, as the listing may grow while it is in the cache.
+        private final long mSizeBytes;
+
+        Entry(ContainerListing listing, long createdMillis) {
+            mListing = listing;
+            mCreatedMillis = createdMillis;
+            mSizeBytes = listing.getEstimatedSizeBytes();
+        }
+    }
+
+    private class ContentDirectorySubscription extends SubscriptionCallback {
+        private final String mUdn;
+        private volatile boolean mEstablished = false;
+        private volatile long mSystemUpdateId = UNKNOWN_SYSTEM_UPDATE_ID;
+
+        ContentDirectorySubscription(String udn, Service service) {
+            super(service, SUBSCRIPTION_DURATION_SECONDS);
+            mUdn = udn;
+        }
+
+        @Override
+        protected void established(GENASubscription subscription) {
+            Log.d(TAG, "established: subscribed to ContentDirectory events for " + mUdn);
+            mEstablished = true;
+        }
+
+        @Override
+        protected void eventReceived(GENASubscription subscription) {
+            @SuppressWarnings("unchecked")
+            Map<String, StateVariableValue> values = subscription.getCurrentValues();
+            StateVariableValue systemUpdateId = values.get(SYSTEM_UPDATE_ID);
+            if (systemUpdateId == null || systemUpdateId.getValue() == null)
+                return;
+
+            long newSystemUpdateId;
+            try {
+                newSystemUpdateId = Long.parseLong(systemUpdateId.getValue().toString());
+            } catch (NumberFormatException e) {
+                return;
+            }
+            long previousSystemUpdateId = mSystemUpdateId;
+            mSystemUpdateId = newSystemUpdateId;
+
+            // The initial event just reports the current state.
+            if (previousSystemUpdateId == UNKNOWN_SYSTEM_UPDATE_ID || previousSystemUpdateId == newSystemUpdateId)
+                return;
+
+            List<String> changedContainerIds = new ArrayList<>();
+            StateVariableValue containerUpdateIds = values.get(CONTAINER_UPDATE_IDS);
+            if (containerUpdateIds != null && containerUpdateIds.getValue() != null) {
+                changedContainerIds = parseContainerUpdateIds(containerUpdateIds.getValue().toString());
+            }
+            onSystemUpdateIdChanged(mUdn, changedContainerIds);
+            notifyContentChanged(mUdn, previousSystemUpdateId, newSystemUpdateId, changedContainerIds);
+        }
+
+        @Override
+        protected void eventsMissed(GENASubscription subscription, int numberOfMissedEvents) {
+            onSystemUpdateIdChanged(mUdn, new ArrayList<String>());
+            notifyContentChanged(mUdn, mSystemUpdateId, UNKNOWN_SYSTEM_UPDATE_ID, new ArrayList<String>());
+        }
+
+        @Override
+        protected void failed(GENASubscription subscription, UpnpResponse responseStatus, Exception exception,
+                              String defaultMsg) {
+            Log.d(TAG, "failed: unable to subscribe to ContentDirectory events for " + mUdn + ": " + defaultMsg);
+            mEstablished = false;
+            onSubscriptionEnded(mUdn, this);
+        }
+
+        @Override
+        protected void ended(GENASubscription subscription, CancelReason reason, UpnpResponse responseStatus) {
+            mEstablished = false;
+            onSubscriptionEnded(mUdn, this);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR 'CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.stephenmcgruer.simpleupnp.cling;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers what each device's ContentDirectory supports, keyed by device UDN, so that it only has to be asked once
+ * per run of the app.
+ */
+public class DeviceCapabilitiesCache {
+    private final Map<String, List<String>> mSearchCapabilities = new HashMap<>();
+    private final Map<String, List<String>> mSortCapabilities = new HashMap<>();
+
+    /**
+     * @return The device's search capabilities, or null if they have not been fetched yet.
+     */
+    public synchronized List<String> getSearchCapabilities(String udn) {
+        return mSearchCapabilities.get(udn);
+    }
+
+    public synchronized void putSearchCapabilities(String udn, List<String> capabilities) {
+        mSearchCapabilities.put(udn, Collections.unmodifiableList(capabilities));
+    }
+
+    /**
+     * @return The device's sort capabilities, or null if they have not been fetched yet.
+     */
+    public synchronized List<String> getSortCapabilities(String udn) {
+        return mSortCapabilities.get(udn);
+    }
+
+    public synchronized void putSortCapabilities(String udn, List<String> capabilities) {
+        mSortCapabilities.put(udn, Collections.unmodifiableList(capabilities));
+    }
+}
@@ -0,0 +1,215 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR 'CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.stephenmcgruer.simpleupnp.cling;
+
+import android.database.sqlite.SQLiteOpenHelper;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.net.wifi.WifiInfo;
+import android.net.wifi.WifiManager;
+import android.util.Log;
+
+import com.stephenmcgruer.simpleupnp.database.DeviceCacheContract.CachedDevice;
+import com.stephenmcgruer.simpleupnp.database.DeviceCacheReadTask;
+import com.stephenmcgruer.simpleupnp.database.DeviceCacheWriteTask;
+
+import org.fourthline.cling.UpnpService;
+import org.fourthline.cling.android.AndroidUpnpService;
+import org.fourthline.cling.binding.xml.DescriptorBindingException;
+import org.fourthline.cling.model.ValidationException;
+import org.fourthline.cling.model.meta.RemoteDevice;
+import org.fourthline.cling.model.meta.RemoteDeviceIdentity;
+import org.fourthline.cling.model.meta.RemoteService;
+import org.fourthline.cling.model.types.UDN;
+import org.fourthline.cling.protocol.RetrieveRemoteDescriptors;
+import org.fourthline.cling.registry.DefaultRegistryListener;
+import org.fourthline.cling.registry.Registry;
+import org.fourthline.cling.transport.RouterException;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers the media servers seen on each network, so that they can be brought into the registry at startup without
+ * waiting for SSDP discovery.
+ *
+ * For each fully hydrated media server, the URL of its root descriptor and the descriptors of its services are
+ * persisted, keyed by network. At startup every server known on the current network is hydrated in parallel: the root
+ * descriptor is fetched from its last known URL, which both checks that the server is still there and picks up any
+ * changed URLs, while the service descriptors come from the cache. A known server is therefore in the registry after a
+ * single HTTP round trip. Multicast search still runs as normal, and finds any servers that have moved or are new.
+ * Nothing is cached on Wi-Fi networks whose SSID and BSSID are hidden from the app, as they cannot be told apart.
+ *
+ * Should be used on the main thread, other than the registry callbacks.
+ */
+public class DeviceDescriptorCache extends DefaultRegistryListener implements DeviceCacheReadTask.ResultListener {
+    private static final String TAG = "DeviceDescriptorCache";
+
+    // The values WifiInfo reports for the network when the app may not know where the user is.
+    private static final String UNKNOWN_SSID = "<unknown ssid>";
+    private static final String UNKNOWN_BSSID = "02:00:00:00:00:00";
+
+    private final SQLiteOpenHelper mDbHelper;
+    private final ConnectivityManager mConnectivityManager;
+    private final WifiManager mWifiManager;
+
+    // Also read by the registry callbacks.
+    private volatile AndroidUpnpService mUpnpService;
+    // The devices read for the current network, until they have been hydrated.
+    private List<CachedDevice> mCachedDevices;
+
+    public DeviceDescriptorCache(SQLiteOpenHelper dbHelper, ConnectivityManager connectivityManager,
+                                 WifiManager wifiManager) {
+        mDbHelper = dbHelper;
+        mConnectivityManager = connectivityManager;
+        mWifiManager = wifiManager;
+    }
+
+    /**
+     * Starts reading the devices last seen on the current network. Should be called as early as possible, so that
+     * they are ready by the time the UPnP service is connected.
+     */
+    public void load() {
+        String network = getNetworkKey();
+        if (network == null)
+            return;
+
+        new DeviceCacheReadTask(mDbHelper, this).execute(network);
+    }
+
+    /**
+     * Hydrates the devices read by load(), and starts persisting the media servers added to the registry.
+     */
+    public void start(AndroidUpnpService upnpService) {
+        mUpnpService = upnpService;
+        mUpnpService.getRegistry().addListener(this);
+        hydrateCachedDevices();
+    }
+
+    public void close() {
+        if (mUpnpService != null) {
+            mUpnpService.getRegistry().removeListener(this);
+            mUpnpService = null;
+        }
+        mCachedDevices = null;
+    }
+
+    @Override
+    public void onDevicesReadFromCache(String network, List<CachedDevice> devices) {
+        // The network may have changed since load(), in which case the devices are not going to be there.
+        if (!network.equals(getNetworkKey()))
+            return;
+
+        Log.d(TAG, "onDevicesReadFromCache: " + devices.size() + " devices known on " + network);
+        mCachedDevices = devices;
+        hydrateCachedDevices();
+    }
+
+    private void hydrateCachedDevices() {
+        if (mUpnpService == null || mCachedDevices == null)
+            return;
+
+        UpnpService upnpService = mUpnpService.get();
+        for (CachedDevice cachedDevice : mCachedDevices) {
+            UDN udn = new UDN(cachedDevice.getUdn());
+            if (upnpService.getRegistry().getRemoteDevice(udn, true) != null)
+                continue;
+
+            RemoteDevice device;
+            try {
+                device = new RemoteDevice(new RemoteDeviceIdentity(udn, cachedDevice.getMaxAgeSeconds(),
+                        new URL(cachedDevice.getDescriptorUrl()), null, null));
+            } catch (MalformedURLException | ValidationException e) {
+                Log.w(TAG, "hydrateCachedDevices: unable to restore " + cachedDevice.getUdn(), e);
+                continue;
+            }
+
+            // The async protocol executor is a pool, so the devices are fetched in parallel.
+            upnpService.getConfiguration().getAsyncProtocolExecutor().execute(
+                    new CachedDescriptorRetrieval(upnpService, device, cachedDevice.getServiceDescriptors()));
+        }
+        mCachedDevices = null;
+    }
+
+    @Override
+    public void remoteDeviceAdded(Registry registry, RemoteDevice device) {
+        if (!DeviceRegistryListener.isMediaServer(device))
+            return;
+
+        AndroidUpnpService upnpService = mUpnpService;
+        String network = getNetworkKey();
+        if (upnpService == null || network == null)
+            return;
+
+        new DeviceCacheWriteTask(mDbHelper, upnpService.getConfiguration().getServiceDescriptorBinderUDA10(), network,
+                device).execute();
+    }
+
+    /**
+     * @return A key for the network the device is currently on, or null if it is not connected or the network cannot
+     *     be told apart from others, in which case nothing is cached.
+     */
+    private String getNetworkKey() {
+        NetworkInfo networkInfo = mConnectivityManager.getActiveNetworkInfo();
+        if (networkInfo == null || !networkInfo.isConnected())
+            return null;
+
+        if (networkInfo.getType() == ConnectivityManager.TYPE_WIFI) {
+            // Without the location permission, Android 8.1+ hides the SSID and BSSID behind placeholder values, which
+            // would make every Wi-Fi network share one key.
+            WifiInfo wifiInfo = mWifiManager.getConnectionInfo();
+            if (wifiInfo == null)
+                return null;
+            if (wifiInfo.getSSID() != null && !UNKNOWN_SSID.equals(wifiInfo.getSSID()))
+                return "wifi:" + wifiInfo.getSSID();
+            if (wifiInfo.getBSSID() != null && !UNKNOWN_BSSID.equals(wifiInfo.getBSSID()))
+                return "wifi-bssid:" + wifiInfo.getBSSID();
+            Log.d(TAG, "getNetworkKey: Wi-Fi network is hidden, not caching devices");
+            return null;
+        }
+        return networkInfo.getTypeName() + ":" + networkInfo.getExtraInfo();
+    }
+
+    /**
+     * Retrieves a device's descriptors, using the cached service descriptors where there are any. Services whose
+     * descriptors are not cached, or no longer parse, are fetched from the device as usual.
+     */
+    private static class CachedDescriptorRetrieval extends RetrieveRemoteDescriptors {
+        private final Map<String, String> mServiceDescriptors;
+
+        CachedDescriptorRetrieval(UpnpService upnpService, RemoteDevice device,
+                                  Map<String, String> serviceDescriptors) {
+            super(upnpService, device);
+            mServiceDescriptors = serviceDescriptors;
+        }
+
+        @Override
+        protected RemoteService describeService(RemoteService service)
+                throws RouterException, DescriptorBindingException, ValidationException {
+            String descriptor = mServiceDescriptors.get(String.valueOf(service.getDescriptorURI()));
+            if (descriptor != null) {
+                try {
+                    return getUpnpService().getConfiguration().getServiceDescriptorBinderUDA10().describe(
+                            service, descriptor);
+                } catch (DescriptorBindingException | ValidationException e) {
+                    Log.w(TAG, "describeService: unable to use cached descriptor for " + service.getServiceId(), e);
+                }
+            }
+            return super.describeService(service);
+        }
+    }
+}
@@ -15,26 +15,68 @@
 package com.stephenmcgruer.simpleupnp.cling;
 
 import android.support.v4.app.Fragment;
+import android.view.Choreographer;
 
 import org.fourthline.cling.model.meta.Device;
 import org.fourthline.cling.model.meta.LocalDevice;
 import org.fourthline.cling.model.meta.RemoteDevice;
+import org.fourthline.cling.model.types.UDAServiceType;
 import org.fourthline.cling.registry.DefaultRegistryListener;
 import org.fourthline.cling.registry.Registry;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Forwards registry changes for media servers to a DeviceChangeHandler on the main thread.
+ *
+ * Registry callbacks arrive on cling's threads, often in bursts during SSDP discovery. Devices without a
+ * ContentDirectory are dropped there, and the remaining changes are coalesced per UDN (so that only the latest change
+ * to each device is kept) and delivered as a single batch on the next frame.
+ *
+ * Must be constructed on the main thread.
+ */
 public class DeviceRegistryListener extends DefaultRegistryListener {
 
+    private static final UDAServiceType CONTENT_DIRECTORY = new UDAServiceType("ContentDirectory");
+
     private final Fragment mFragment;
     private final DeviceChangeHandler mHandler;
+    private final Choreographer mChoreographer;
+
+    // Latest pending change for each device, keyed by UDN. Guarded by mLock, along with mFlushPending.
+    private final Object mLock = new Object();
+    private final Map<String, PendingChange> mPendingChanges = new LinkedHashMap<>();
+    private boolean mFlushPending = false;
+
+    private final Choreographer.FrameCallback mFlushCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            flush();
+        }
+    };
 
     public interface DeviceChangeHandler {
-        void onDeviceAdded(Device device);
-        void onDeviceRemoved(Device device);
+        /**
+         * Called on the main thread with the media servers that have been added or updated, and those that have been
+         * removed, since the last call. Each device appears at most once.
+         */
+        void onDevicesChanged(List<Device> added, List<Device> removed);
     }
 
     public DeviceRegistryListener(Fragment fragment, DeviceChangeHandler handler) {
         mFragment = fragment;
         mHandler = handler;
+        mChoreographer = Choreographer.getInstance();
+    }
+
+    /**
+     * @return Whether the device is a media server, i.e. whether it has a ContentDirectory service.
+     */
+    public static boolean isMediaServer(Device device) {
+        return device.findService(CONTENT_DIRECTORY) != null;
     }
 
     /**
@@ -42,14 +84,9 @@ public class DeviceRegistryListener extends DefaultRegistryListener {
      *
      * @param device The device to be added
      */
-    private void deviceAdded(final Device device) {
-        if (mFragment.getActivity() != null) {
-            mFragment.getActivity().runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    mHandler.onDeviceAdded(device);
-                }
-            });
+    private void deviceAdded(Device device) {
+        if (isMediaServer(device)) {
+            enqueue(device, true);
         }
     }
 
@@ -58,17 +95,43 @@ public class DeviceRegistryListener extends DefaultRegistryListener {
      *
      * @param device The device to be removed.
      */
-    private void deviceRemoved(final Device device) {
-        if (mFragment.getActivity() != null) {
-            mFragment.getActivity().runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    mHandler.onDeviceRemoved(device);
-                }
-            });
+    private void deviceRemoved(Device device) {
+        if (isMediaServer(device)) {
+            enqueue(device, false);
         }
     }
 
+    private void enqueue(Device device, boolean added) {
+        String udn = device.getIdentity().getUdn().getIdentifierString();
+        synchronized (mLock) {
+            // Remove first so that the device moves to the end of the batch, keeping changes in arrival order.
+            mPendingChanges.remove(udn);
+            mPendingChanges.put(udn, new PendingChange(device, added));
+            if (mFlushPending)
+                return;
+            mFlushPending = true;
+        }
+        mChoreographer.postFrameCallback(mFlushCallback);
+    }
+
+    private void flush() {
+        List<PendingChange> changes;
+        synchronized (mLock) {
+            mFlushPending = false;
+            changes = new ArrayList<>(mPendingChanges.values());
+            mPendingChanges.clear();
+        }
+        if (changes.isEmpty() || mFragment.getActivity() == null)
+            return;
+
+        List<Device> added = new ArrayList<>();
+        List<Device> removed = new ArrayList<>();
+        for (PendingChange change : changes) {
+            (change.mAdded ? added : removed).add(change.mDevice);
+        }
+        mHandler.onDevicesChanged(added, removed);
+    }
+
     @Override
     public void remoteDeviceDiscoveryStarted(Registry registry, RemoteDevice device) {
         deviceAdded(device);
@@ -98,4 +161,14 @@ public class DeviceRegistryListener extends DefaultRegistryListener {
     public void localDeviceRemoved(Registry registry, LocalDevice device) {
         deviceRemoved(device);
     }
+
+    private static class PendingChange {
+        private final Device mDevice;
+        private final boolean mAdded;
+
+        PendingChange(Device device, boolean added) {
+            mDevice = device;
+            mAdded = added;
+        }
+    }
 }
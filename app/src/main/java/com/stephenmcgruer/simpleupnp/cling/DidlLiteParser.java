@@ -0,0 +1,195 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR 'CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.stephenmcgruer.simpleupnp.cling;
+
+import android.util.Xml;
+
+import org.fourthline.cling.support.model.DIDLObject;
+import org.fourthline.cling.support.model.container.Container;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pull parser for DIDL-Lite documents that decodes children one at a time and hands them out in batches.
+ *
+ * Unlike cling's DIDLParser, it does not build a DIDLContent holding every child before returning, and items are
+ * decoded straight into CompactItems, keeping only the first resource. Containers are returned as cling Containers
+ * with just their id, parent id, title, creator, class and child count set. Elements the browser does not use are
+ * skipped without being materialized.
+ */
+public class DidlLiteParser {
+
+    public interface BatchListener {
+        /**
+         * Called on the parsing thread for each batch of children, in document order.
+         */
+        void onBatch(List<Container> containers, List<CompactItem> items);
+    }
+
+    private final int mBatchSize;
+
+    /**
+     * @param batchSize The number of children (containers and items) per batch. The last batch may be smaller.
+     */
+    public DidlLiteParser(int batchSize) {
+        mBatchSize = batchSize;
+    }
+
+    /**
+     * Parses a DIDL-Lite document, calling the listener for each batch of children.
+     *
+     * @return The number of children parsed.
+     */
+    public int parse(Reader reader, BatchListener listener) throws XmlPullParserException, IOException {
+        return parse(Xml.newPullParser(), reader, listener);
+    }
+
+    /**
+     * As {@link #parse(Reader, BatchListener)}, using the given pull parser. Used by tests.
+     */
+    int parse(XmlPullParser parser, Reader reader, BatchListener listener)
+            throws XmlPullParserException, IOException {
+        parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+        parser.setInput(reader);
+
+        List<Container> containers = new ArrayList<>();
+        List<CompactItem> items = new ArrayList<>();
+        int count = 0;
+        for (int eventType = parser.getEventType(); eventType != XmlPullParser.END_DOCUMENT;
+             eventType = parser.next()) {
+            // Children are direct descendants of the DIDL-Lite root element.
+            if (eventType != XmlPullParser.START_TAG || parser.getDepth() != 2)
+                continue;
+
+            if ("container".equals(parser.getName())) {
+                containers.add(parseContainer(parser));
+            } else if ("item".equals(parser.getName())) {
+                items.add(parseItem(parser));
+            } else {
+                continue;
+            }
+
+            count++;
+            if (containers.size() + items.size() >= mBatchSize) {
+                listener.onBatch(containers, items);
+                containers = new ArrayList<>();
+                items = new ArrayList<>();
+            }
+        }
+        if (!containers.isEmpty() || !items.isEmpty()) {
+            listener.onBatch(containers, items);
+        }
+        return count;
+    }
+
+    /**
+     * Parses every child of a DIDL-Lite document at once.
+     */
+    public static void parseAll(Reader reader, final List<Container> containers, final List<CompactItem> items)
+            throws XmlPullParserException, IOException {
+        new DidlLiteParser(Integer.MAX_VALUE).parse(reader, new BatchListener() {
+            @Override
+            public void onBatch(List<Container> batchContainers, List<CompactItem> batchItems) {
+                containers.addAll(batchContainers);
+                items.addAll(batchItems);
+            }
+        });
+    }
+
+    private static Container parseContainer(XmlPullParser parser) throws XmlPullParserException, IOException {
+        String id = parser.getAttributeValue(null, "id");
+        String parentId = parser.getAttributeValue(null, "parentID");
+        Integer childCount = null;
+        String childCountValue = parser.getAttributeValue(null, "childCount");
+        if (childCountValue != null) {
+            try {
+                childCount = Integer.valueOf(childCountValue.trim());
+            } catch (NumberFormatException e) {
+                // Leave the child count unknown.
+            }
+        }
+
+        ObjectFields fields = parseObjectFields(parser);
+        return new KeyedContainer(id, parentId, fields.mTitle, fields.mCreator,
+                new DIDLObject.Class(fields.mUpnpClass != null ? fields.mUpnpClass : "object.container"), childCount);
+    }
+
+    private static CompactItem parseItem(XmlPullParser parser) throws XmlPullParserException, IOException {
+        String id = parser.getAttributeValue(null, "id");
+        String parentId = parser.getAttributeValue(null, "parentID");
+
+        ObjectFields fields = parseObjectFields(parser);
+        String mimeType = null;
+        if (fields.mProtocolInfo != null) {
+            // protocolInfo is <protocol>:<network>:<contentFormat>:<additionalInfo>.
+            String[] protocolInfoFields = fields.mProtocolInfo.split(":", 4);
+            if (protocolInfoFields.length == 4) {
+                mimeType = protocolInfoFields[2];
+            }
+        }
+        return new CompactItem(id, parentId, fields.mTitle, fields.mUpnpClass, fields.mUrl, fields.mProtocolInfo,
+                mimeType, CompactItem.parseDuration(fields.mDuration));
+    }
+
+    /**
+     * Reads the children of a container or item element, leaving the parser on its end tag.
+     */
+    private static ObjectFields parseObjectFields(XmlPullParser parser) throws XmlPullParserException, IOException {
+        ObjectFields fields = new ObjectFields();
+        int depth = parser.getDepth();
+        int eventType;
+        while ((eventType = parser.next()) != XmlPullParser.END_DOCUMENT) {
+            if (eventType == XmlPullParser.END_TAG && parser.getDepth() == depth)
+                break;
+            if (eventType != XmlPullParser.START_TAG || parser.getDepth() != depth + 1)
+                continue;
+
+            switch (parser.getName()) {
+                case "title":
+                    fields.mTitle = parser.nextText();
+                    break;
+                case "creator":
+                    fields.mCreator = parser.nextText();
+                    break;
+                case "class":
+                    fields.mUpnpClass = parser.nextText().trim();
+                    break;
+                case "res":
+                    // Only the first resource is kept; see CompactItem.
+                    if (fields.mUrl == null) {
+                        fields.mProtocolInfo = parser.getAttributeValue(null, "protocolInfo");
+                        fields.mDuration = parser.getAttributeValue(null, "duration");
+                        fields.mUrl = parser.nextText().trim();
+                    }
+                    break;
+            }
+        }
+        return fields;
+    }
+
+    private static class ObjectFields {
+        String mTitle;
+        String mCreator;
+        String mUpnpClass;
+        String mUrl;
+        String mProtocolInfo;
+        String mDuration;
+    }
+}
@@ -0,0 +1,64 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR 'CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.stephenmcgruer.simpleupnp.cling;
+
+import org.fourthline.cling.support.model.container.Container;
+
+import java.text.Normalizer;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * Reduces titles to the form the file browser filters rows in: case-folded, accents stripped, punctuation collapsed
+ * and a leading article removed.
+ *
+ * Building a key is too slow to do for every row of a large listing on the main thread, so keys are built where
+ * children are parsed, and kept on the CompactItem or KeyedContainer.
+ */
+public final class FilterKeys {
+    private static final String[] LEADING_ARTICLES = { "the ", "a ", "an " };
+    private static final Pattern COMBINING_MARKS = Pattern.compile("\\p{M}+");
+    private static final Pattern SEPARATORS = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+    private FilterKeys() {
+        // Not instantiable.
+    }
+
+    /**
+     * Reduces a title or query to the form that rows are matched in.
+     */
+    public static String normalize(String text) {
+        if (text == null)
+            return "";
+
+        String key = COMBINING_MARKS.matcher(Normalizer.normalize(text, Normalizer.Form.NFD)).replaceAll("");
+        key = SEPARATORS.matcher(key.toLowerCase(Locale.ROOT)).replaceAll(" ").trim();
+        for (String article : LEADING_ARTICLES) {
+            if (key.startsWith(article)) {
+                return key.substring(article.length());
+            }
+        }
+        return key;
+    }
+
+    /**
+     * @return The key of a container's title, which is only built here if the container was not parsed with one.
+     */
+    public static String forContainer(Container container) {
+        if (container instanceof KeyedContainer)
+            return ((KeyedContainer) container).getFilterKey();
+        return normalize(container.getTitle());
+    }
+}
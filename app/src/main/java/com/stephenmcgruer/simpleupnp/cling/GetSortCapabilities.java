@@ -0,0 +1,46 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR 'CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.stephenmcgruer.simpleupnp.cling;
+
+import org.fourthline.cling.controlpoint.ActionCallback;
+import org.fourthline.cling.model.action.ActionInvocation;
+import org.fourthline.cling.model.meta.Service;
+
+import java.util.List;
+
+/**
+ * Callback for the ContentDirectory GetSortCapabilities action, which returns the properties that the server can
+ * order Browse and Search results by.
+ */
+public abstract class GetSortCapabilities extends ActionCallback {
+
+    @SuppressWarnings("unchecked")
+    public GetSortCapabilities(Service service) {
+        super(new ActionInvocation(service.getAction("GetSortCapabilities")));
+    }
+
+    @Override
+    public void success(ActionInvocation invocation) {
+        Object value = invocation.getOutput("SortCaps") != null
+                ? invocation.getOutput("SortCaps").getValue() : null;
+        received(invocation, GetSearchCapabilities.parseCapabilities(value != null ? value.toString() : ""));
+    }
+
+    /**
+     * @param capabilities The supported properties, e.g. "dc:title", or just "*" if all are supported. Empty if the
+     *     server does not support sorting.
+     */
+    public abstract void received(ActionInvocation invocation, List<String> capabilities);
+}
@@ -0,0 +1,44 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR 'CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.stephenmcgruer.simpleupnp.cling;
+
+import org.fourthline.cling.controlpoint.ActionCallback;
+import org.fourthline.cling.model.action.ActionInvocation;
+import org.fourthline.cling.model.meta.Service;
+import org.fourthline.cling.model.types.UnsignedIntegerFourBytes;
+
+/**
+ * Callback for the ContentDirectory GetSystemUpdateID action, which returns a counter that the server increments
+ * whenever anything in its content changes.
+ */
+public abstract class GetSystemUpdateId extends ActionCallback {
+
+    @SuppressWarnings("unchecked")
+    public GetSystemUpdateId(Service service) {
+        super(new ActionInvocation(service.getAction("GetSystemUpdateID")));
+    }
+
+    @Override
+    public void success(ActionInvocation invocation) {
+        Object value = invocation.getOutput("Id") != null ? invocation.getOutput("Id").getValue() : null;
+        if (value instanceof UnsignedIntegerFourBytes) {
+            received(invocation, ((UnsignedIntegerFourBytes) value).getValue());
+        } else {
+            failure(invocation, null, "GetSystemUpdateID returned no Id");
+        }
+    }
+
+    public abstract void received(ActionInvocation invocation, long systemUpdateId);
+}
@@ -0,0 +1,36 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR 'CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.stephenmcgruer.simpleupnp.cling;
+
+import org.fourthline.cling.support.model.DIDLObject;
+import org.fourthline.cling.support.model.container.Container;
+
+/**
+ * A cling Container that also holds the FilterKeys key of its title, built when it is parsed rather than when it is
+ * shown.
+ */
+public class KeyedContainer extends Container {
+    private final String mFilterKey;
+
+    public KeyedContainer(String id, String parentId, String title, String creator, DIDLObject.Class clazz,
+                          Integer childCount) {
+        super(id, parentId, title, creator, clazz, childCount);
+        mFilterKey = FilterKeys.normalize(title);
+    }
+
+    public String getFilterKey() {
+        return mFilterKey;
+    }
+}
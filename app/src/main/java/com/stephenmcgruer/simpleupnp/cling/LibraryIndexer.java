@@ -0,0 +1,521 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR 'CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.stephenmcgruer.simpleupnp.cling;
+
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+
+import com.stephenmcgruer.simpleupnp.database.LibraryIndexContract.IndexedObject;
+import com.stephenmcgruer.simpleupnp.database.LibraryIndexWriter;
+
+import org.fourthline.cling.controlpoint.ControlPoint;
+import org.fourthline.cling.model.action.ActionInvocation;
+import org.fourthline.cling.model.message.UpnpResponse;
+import org.fourthline.cling.model.meta.Service;
+import org.fourthline.cling.support.contentdirectory.callback.Browse;
+import org.fourthline.cling.support.model.BrowseFlag;
+import org.fourthline.cling.support.model.DIDLContent;
+import org.fourthline.cling.support.model.DIDLObject;
+import org.fourthline.cling.support.model.PersonWithRole;
+import org.fourthline.cling.support.model.container.Container;
+import org.fourthline.cling.support.model.item.Item;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Builds the local library index of devices that cannot search themselves, by crawling their whole ContentDirectory
+ * in the background.
+ *
+ * The whole library is only crawled again if the device's SystemUpdateID has changed in a way the index did not see.
+ * Changes evented by the ContainerListingCache's subscriptions are recorded as they arrive, and then only the changed
+ * containers (and any containers that failed to browse last time) are crawled, along with any new containers found in
+ * them. A crawl that stopped at MAX_OBJECTS is not repeated while the SystemUpdateID stays the same.
+ *
+ * The index is updated in place as the crawl goes (see LibraryIndexWriter), so searches keep working while it runs.
+ * Browses go through the ActionScheduler's BACKGROUND lane, and at most MAX_PARALLEL_BROWSES are in flight for a crawl,
+ * to leave room for the user's own browsing.
+ */
+public class LibraryIndexer implements ContainerListingCache.ChangeListener {
+    private static final String TAG = "LibraryIndexer";
+
+    // Containers more than this many levels below the root, or below a changed container, are not browsed.
+    static final int MAX_DEPTH = 16;
+
+    // The crawl stops once this many objects have been indexed.
+    static final int MAX_OBJECTS = 50000;
+
+    static final int MAX_PARALLEL_BROWSES = 2;
+
+    private static final long PAGE_SIZE = 200;
+
+    private final ActionScheduler mScheduler;
+    private final DeviceCapabilitiesCache mCapabilitiesCache;
+    private final SQLiteOpenHelper mDbHelper;
+    private final LibraryIndexWriter mWriter;
+
+    // Runs the database work of every crawl, one piece at a time.
+    private final ExecutorService mDbExecutor = Executors.newSingleThreadExecutor();
+
+    private final Map<String, DeviceCrawl> mCrawls = new HashMap<>();
+    private boolean mClosed = false;
+
+    // The devices indexed so far, so that they can be indexed again when they event changes.
+    private ControlPoint mControlPoint;
+    private final Map<String, Service> mContentDirectoryServices = new HashMap<>();
+
+    public LibraryIndexer(ActionScheduler scheduler, DeviceCapabilitiesCache capabilitiesCache,
+                          SQLiteOpenHelper dbHelper) {
+        mScheduler = scheduler;
+        mCapabilitiesCache = capabilitiesCache;
+        mDbHelper = dbHelper;
+        mWriter = new LibraryIndexWriter(dbHelper);
+    }
+
+    /**
+     * Brings the index of a device up to date, if the device cannot search itself. Does nothing if the device is
+     * already being indexed.
+     *
+     * @param controlPoint The control point to browse with.
+     * @param udn The UDN of the device.
+     * @param contentDirectoryService The device's ContentDirectory service.
+     */
+    public synchronized void index(ControlPoint controlPoint, String udn, Service contentDirectoryService) {
+        if (mClosed)
+            return;
+        mControlPoint = controlPoint;
+        mContentDirectoryServices.put(udn, contentDirectoryService);
+        if (mCrawls.containsKey(udn))
+            return;
+
+        DeviceCrawl crawl = new DeviceCrawl(controlPoint, udn, contentDirectoryService);
+        mCrawls.put(udn, crawl);
+        crawl.start();
+    }
+
+    /**
+     * Records the containers that a device has evented as changed, and indexes them if the device has been indexed
+     * before.
+     */
+    @Override
+    public synchronized void onContentChanged(final String udn, final long previousSystemUpdateId,
+                                              final long systemUpdateId, final List<String> changedContainerIds) {
+        if (mClosed)
+            return;
+
+        mDbExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mWriter.markContainersChanged(udn, previousSystemUpdateId, systemUpdateId, changedContainerIds);
+                reindex(udn);
+            }
+        });
+    }
+
+    /**
+     * Stops all crawls, and closes the database once the writes already queued are done. Crawls that were stopped are
+     * started again the next time their device is indexed.
+     */
+    public void close() {
+        List<DeviceCrawl> crawls;
+        synchronized (this) {
+            mClosed = true;
+            crawls = new ArrayList<>(mCrawls.values());
+            mCrawls.clear();
+        }
+
+        for (DeviceCrawl crawl : crawls) {
+            crawl.cancel();
+        }
+        mDbExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mDbHelper.close();
+            }
+        });
+        mDbExecutor.shutdown();
+    }
+
+    private synchronized void reindex(String udn) {
+        Service contentDirectoryService = mContentDirectoryServices.get(udn);
+        if (contentDirectoryService != null) {
+            index(mControlPoint, udn, contentDirectoryService);
+        }
+    }
+
+    private synchronized void onCrawlEnded(String udn, DeviceCrawl crawl) {
+        if (mCrawls.get(udn) == crawl) {
+            mCrawls.remove(udn);
+        }
+    }
+
+    private class DeviceCrawl {
+        private final ControlPoint mControlPoint;
+        private final String mUdn;
+        private final Service mContentDirectoryService;
+
+        private final Deque<Node> mPending = new ArrayDeque<>();
+        private final Set<IndexBrowse> mInFlight = new HashSet<>();
+        // Ids of the containers found so far, so that a server with cycles in its hierarchy is not crawled forever.
+        private final Set<String> mSeenContainerIds = new HashSet<>();
+        private long mSystemUpdateId = LibraryIndexWriter.UNKNOWN_SYSTEM_UPDATE_ID;
+        private long mGeneration;
+        // Whether only the changed containers are being crawled, rather than the whole library.
+        private boolean mIncremental;
+        private int mObjectCount = 0;
+        // Index writes that have been queued but have not yet reported the containers they added.
+        private int mPendingWrites = 0;
+        private boolean mIncomplete = false;
+        private boolean mCapped = false;
+        private boolean mCancelled = false;
+        private boolean mFinished = false;
+
+        DeviceCrawl(ControlPoint controlPoint, String udn, Service contentDirectoryService) {
+            mControlPoint = controlPoint;
+            mUdn = udn;
+            mContentDirectoryService = contentDirectoryService;
+        }
+
+        void start() {
+            List<String> capabilities = mCapabilitiesCache.getSearchCapabilities(mUdn);
+            if (capabilities != null) {
+                onSearchCapabilities(capabilities);
+                return;
+            }
+
+            if (mContentDirectoryService.getAction("GetSearchCapabilities") == null) {
+                onSearchCapabilities(Collections.<String>emptyList());
+                return;
+            }
+
+            mScheduler.execute(mControlPoint, mUdn, new GetSearchCapabilities(mContentDirectoryService) {
+                @Override
+                public void received(ActionInvocation invocation, List<String> capabilities) {
+                    mCapabilitiesCache.putSearchCapabilities(mUdn, capabilities);
+                    onSearchCapabilities(capabilities);
+                }
+
+                @Override
+                public void failure(ActionInvocation invocation, UpnpResponse operation, String defaultMsg) {
+                    onSearchCapabilities(Collections.<String>emptyList());
+                }
+            }, ActionScheduler.Priority.BACKGROUND);
+        }
+
+        private void onSearchCapabilities(List<String> capabilities) {
+            if (SearchCriteria.supportsTextQuery(capabilities)) {
+                Log.d(TAG, "onSearchCapabilities: " + mUdn + " can search itself, not indexing");
+                end();
+                return;
+            }
+
+            if (mContentDirectoryService.getAction("GetSystemUpdateID") == null) {
+                onSystemUpdateId(LibraryIndexWriter.UNKNOWN_SYSTEM_UPDATE_ID);
+                return;
+            }
+
+            mScheduler.execute(mControlPoint, mUdn, new GetSystemUpdateId(mContentDirectoryService) {
+                @Override
+                public void received(ActionInvocation invocation, long systemUpdateId) {
+                    onSystemUpdateId(systemUpdateId);
+                }
+
+                @Override
+                public void failure(ActionInvocation invocation, UpnpResponse operation, String defaultMsg) {
+                    onSystemUpdateId(LibraryIndexWriter.UNKNOWN_SYSTEM_UPDATE_ID);
+                }
+            }, ActionScheduler.Priority.BACKGROUND);
+        }
+
+        private synchronized void onSystemUpdateId(final long systemUpdateId) {
+            if (mCancelled)
+                return;
+
+            mDbExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    LibraryIndexWriter.IndexState state = mWriter.getIndexState(mUdn);
+                    boolean seenAllChanges = systemUpdateId != LibraryIndexWriter.UNKNOWN_SYSTEM_UPDATE_ID
+                            && state.getSystemUpdateId() == systemUpdateId;
+                    Map<String, String> changedContainerPaths = state.getChangedContainerPaths();
+                    if (seenAllChanges && changedContainerPaths.isEmpty()) {
+                        Log.d(TAG, "onSystemUpdateId: index of " + mUdn + " is up to date"
+                                + (state.isCapped() ? ", but capped" : ""));
+                        end();
+                        return;
+                    }
+
+                    long generation = mWriter.startGeneration(mUdn, !seenAllChanges);
+                    startCrawl(systemUpdateId, generation, seenAllChanges ? changedContainerPaths : null);
+                }
+            });
+        }
+
+        /**
+         * @param changedContainerPaths The containers to crawl, keyed by id, with their paths, or null to crawl the
+         *     whole library.
+         */
+        private synchronized void startCrawl(long systemUpdateId, long generation,
+                                             Map<String, String> changedContainerPaths) {
+            if (mCancelled)
+                return;
+
+            mSystemUpdateId = systemUpdateId;
+            mGeneration = generation;
+            mIncremental = changedContainerPaths != null;
+            if (mIncremental) {
+                Log.d(TAG, "startCrawl: indexing " + changedContainerPaths.size() + " changed containers on " + mUdn
+                        + ", generation " + generation);
+                for (Map.Entry<String, String> entry : changedContainerPaths.entrySet()) {
+                    mSeenContainerIds.add(entry.getKey());
+                    mPending.add(new Node(entry.getKey(), entry.getValue(), 0));
+                }
+            } else {
+                Log.d(TAG, "startCrawl: indexing " + mUdn + ", generation " + generation);
+                mSeenContainerIds.add(Node.ROOT_CONTAINER_ID);
+                mPending.add(new Node(Node.ROOT_CONTAINER_ID, "", 0));
+            }
+            scheduleBrowses();
+        }
+
+        /**
+         * Stops the crawl. Browses in flight are aborted, rather than left to finish, and their results are ignored.
+         */
+        synchronized void cancel() {
+            if (mCancelled)
+                return;
+
+            mCancelled = true;
+            mPending.clear();
+            for (IndexBrowse browse : mInFlight) {
+                mScheduler.abort(mUdn, browse);
+            }
+            mInFlight.clear();
+        }
+
+        private void end() {
+            onCrawlEnded(mUdn, this);
+        }
+
+        /**
+         * Starts browses for pending containers until the crawl's parallelism limit is reached. Must be called with
+         * the lock held.
+         */
+        private void scheduleBrowses() {
+            while (!mCancelled && mInFlight.size() < MAX_PARALLEL_BROWSES && !mPending.isEmpty()) {
+                IndexBrowse browse = new IndexBrowse(this, mPending.pollFirst());
+                mInFlight.add(browse);
+                mScheduler.execute(mControlPoint, mUdn, browse, ActionScheduler.Priority.BACKGROUND);
+            }
+        }
+
+        private synchronized void onPageReceived(IndexBrowse browse, List<Container> containers, List<Item> items,
+                                                 long numberReturned, long totalMatches) {
+            if (!mInFlight.remove(browse))
+                return;
+
+            final Node node = browse.mNode;
+            final List<IndexedObject> objects = new ArrayList<>();
+            final Map<String, String> containerPaths = new LinkedHashMap<>();
+            for (Container container : containers) {
+                String path = node.mPath.isEmpty() ? container.getTitle() : node.mPath + "/" + container.getTitle();
+                objects.add(new IndexedObject(container, path));
+                containerPaths.put(container.getId(), path);
+            }
+            // A full crawl browses every subfolder. A crawl of changed containers only browses the new ones, once they
+            // have been written; see onObjectsWritten().
+            if (!mIncremental) {
+                addPendingContainers(node, containerPaths.keySet(), containerPaths);
+            }
+            for (Item item : items) {
+                PersonWithRole artist = item.getFirstPropertyValue(DIDLObject.Property.UPNP.ARTIST.class);
+                String album = item.getFirstPropertyValue(DIDLObject.Property.UPNP.ALBUM.class);
+                objects.add(new IndexedObject(CompactItem.fromItem(item), artist != null ? artist.getName() : null,
+                        album, node.mPath));
+            }
+            mObjectCount += objects.size();
+
+            final long generation = mGeneration;
+            mPendingWrites++;
+            mDbExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    List<String> addedContainerIds = mWriter.writeObjects(mUdn, generation, objects);
+                    onObjectsWritten(node, addedContainerIds, containerPaths);
+                }
+            });
+
+            node.mNextStartingIndex += numberReturned;
+            boolean hasMorePages =
+                    BrowsePaging.hasMorePages(node.mNextStartingIndex, numberReturned, totalMatches, PAGE_SIZE);
+
+            if (mObjectCount >= MAX_OBJECTS) {
+                Log.d(TAG, "onPageReceived: stopping crawl of " + mUdn + " at " + mObjectCount + " objects");
+                mCapped = true;
+                mPending.clear();
+            } else if (hasMorePages) {
+                // Finish the container before moving on, so that its remaining pages are fetched while its
+                // subfolders wait.
+                mPending.addFirst(node);
+            } else {
+                final long systemUpdateId = mSystemUpdateId;
+                mDbExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        mWriter.finishContainer(mUdn, generation, node.mContainerId, systemUpdateId);
+                    }
+                });
+            }
+
+            scheduleBrowses();
+            maybeFinish();
+        }
+
+        private synchronized void onObjectsWritten(Node node, List<String> addedContainerIds,
+                                                   Map<String, String> containerPaths) {
+            mPendingWrites--;
+            if (mIncremental && !mCapped) {
+                addPendingContainers(node, addedContainerIds, containerPaths);
+                scheduleBrowses();
+            }
+            maybeFinish();
+        }
+
+        /**
+         * Queues subfolders of a node for browsing, unless they are too deep or have been seen already. Must be called
+         * with the lock held.
+         */
+        private void addPendingContainers(Node node, Collection<String> containerIds,
+                                          Map<String, String> containerPaths) {
+            if (node.mDepth >= MAX_DEPTH)
+                return;
+
+            for (String containerId : containerIds) {
+                if (mSeenContainerIds.add(containerId)) {
+                    mPending.add(new Node(containerId, containerPaths.get(containerId), node.mDepth + 1));
+                }
+            }
+        }
+
+        private synchronized void onBrowseFailed(IndexBrowse browse, String message) {
+            if (!mInFlight.remove(browse))
+                return;
+
+            // Skip the rest of the container rather than abandoning the whole crawl, but make sure the container is
+            // crawled again next time.
+            final String containerId = browse.mNode.mContainerId;
+            Log.d(TAG, "onBrowseFailed: skipping " + containerId + ": " + message);
+            mIncomplete = true;
+            final long systemUpdateId = mSystemUpdateId;
+            mDbExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mWriter.markContainerFailed(mUdn, containerId, systemUpdateId);
+                }
+            });
+            scheduleBrowses();
+            maybeFinish();
+        }
+
+        /**
+         * Finishes the generation once there is nothing left to browse. Must be called with the lock held.
+         */
+        private void maybeFinish() {
+            if (mCancelled || mFinished || !mInFlight.isEmpty() || !mPending.isEmpty() || mPendingWrites > 0)
+                return;
+
+            mFinished = true;
+            Log.d(TAG, "maybeFinish: indexed " + mObjectCount + " objects on " + mUdn
+                    + (mIncremental ? " from changed containers" : "") + (mCapped ? ", capped" : "")
+                    + (mIncomplete ? ", with failures" : ""));
+            final long generation = mGeneration;
+            final long systemUpdateId = mSystemUpdateId;
+            final boolean incremental = mIncremental;
+            final boolean complete = !mIncomplete && !mCapped;
+            final boolean capped = mCapped;
+            mDbExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (!incremental) {
+                        mWriter.finishGeneration(mUdn, generation, systemUpdateId, complete, capped);
+                    } else if (capped) {
+                        mWriter.markCapped(mUdn);
+                    }
+                    end();
+                }
+            });
+        }
+    }
+
+    private static class Node {
+        static final String ROOT_CONTAINER_ID = "0";
+
+        final String mContainerId;
+        // The titles of the container and its ancestors, separated by "/".
+        final String mPath;
+        final int mDepth;
+        long mNextStartingIndex = 0;
+
+        Node(String containerId, String path, int depth) {
+            mContainerId = containerId;
+            mPath = path;
+            mDepth = depth;
+        }
+    }
+
+    private static class IndexBrowse extends Browse {
+        private final DeviceCrawl mCrawl;
+        private final Node mNode;
+
+        IndexBrowse(DeviceCrawl crawl, Node node) {
+            super(crawl.mContentDirectoryService, node.mContainerId, BrowseFlag.DIRECT_CHILDREN,
+                    BrowseFilter.Profile.INDEX.getFilter(), node.mNextStartingIndex, PAGE_SIZE);
+            mCrawl = crawl;
+            mNode = node;
+        }
+
+        @Override
+        public void received(ActionInvocation invocation, DIDLContent didl) {
+            BrowseFilter.recordResult(BrowseFilter.Profile.INDEX, invocation);
+            long numberReturned = BrowsePaging.getUnsignedOutput(invocation, "NumberReturned");
+            if (numberReturned < 0) {
+                numberReturned = didl.getContainers().size() + didl.getItems().size();
+            }
+            mCrawl.onPageReceived(this, didl.getContainers(), didl.getItems(), numberReturned,
+                    BrowsePaging.getUnsignedOutput(invocation, "TotalMatches"));
+        }
+
+        @Override
+        public void updateStatus(Status status) {
+            // Do nothing.
+        }
+
+        @Override
+        public void failure(ActionInvocation invocation, UpnpResponse operation, String defaultMsg) {
+            mCrawl.onBrowseFailed(this, defaultMsg);
+        }
+    }
+}
@@ -0,0 +1,264 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR 'CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.stephenmcgruer.simpleupnp.cling;
+
+import android.content.ComponentCallbacks2;
+import android.net.ConnectivityManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.fourthline.cling.controlpoint.ControlPoint;
+import org.fourthline.cling.model.action.ActionInvocation;
+import org.fourthline.cling.model.message.UpnpResponse;
+import org.fourthline.cling.model.meta.Service;
+import org.fourthline.cling.support.contentdirectory.callback.Browse;
+import org.fourthline.cling.support.model.BrowseFlag;
+import org.fourthline.cling.support.model.DIDLContent;
+import org.fourthline.cling.support.model.SortCriterion;
+import org.fourthline.cling.support.model.container.Container;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+
+/**
+ * Warms the ContainerListingCache with the first page of containers the user is likely to open next, while the
+ * network would otherwise be idle.
+ *
+ * Only one prefetch is in flight at a time, in the ActionScheduler's BACKGROUND lane. Prefetches are Browse actions
+ * identical to the file browser's first page request, down to the BrowseFilter profile, so a user browse of a
+ * container that is being prefetched joins it through the ActionCoalescer (which promotes it to the user's lane)
+ * rather than fetching it again. Prefetching stops while the active network is metered, and for a while after the
+ * system reports memory pressure.
+ *
+ * Should only be used on the main thread.
+ */
+public class ListingPrefetcher {
+    private static final String TAG = "ListingPrefetcher";
+
+    // How long prefetching stays off after the system reports memory pressure.
+    static final long MEMORY_PRESSURE_PAUSE_MILLIS = 60 * 1000;
+
+    private final ActionCoalescer mCoalescer;
+    private final ContainerListingCache mListingCache;
+    private final ConnectivityManager mConnectivityManager;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private ControlPoint mControlPoint;
+    private String mUdn;
+    private Service mService;
+    private long mPageSize;
+    private SortCriterion[] mSortCriteria;
+    private final Queue<String> mPendingContainerIds = new ArrayDeque<>();
+    private PrefetchBrowse mInFlight;
+
+    private long mPausedUntilMillis = 0;
+
+    public ListingPrefetcher(ActionCoalescer coalescer, ContainerListingCache listingCache,
+                             ConnectivityManager connectivityManager) {
+        mCoalescer = coalescer;
+        mListingCache = listingCache;
+        mConnectivityManager = connectivityManager;
+    }
+
+    /**
+     * Replaces the containers waiting to be prefetched. Containers that are already cached are skipped.
+     *
+     * @param controlPoint The control point to browse with.
+     * @param udn The UDN of the device holding the containers.
+     * @param service The device's ContentDirectory service.
+     * @param containerIds The containers to prefetch, most likely first.
+     * @param pageSize The number of children to fetch; should match the first page requested by the file browser.
+     * @param sortCriteria The order to fetch children in; should also match the file browser's.
+     */
+    public void prefetch(ControlPoint controlPoint, String udn, Service service, List<String> containerIds,
+                         long pageSize, SortCriterion[] sortCriteria) {
+        if (!udn.equals(mUdn)) {
+            cancel();
+        }
+        mPendingContainerIds.clear();
+        if (!canPrefetch()) {
+            abortInFlight();
+            return;
+        }
+
+        mControlPoint = controlPoint;
+        mUdn = udn;
+        mService = service;
+        mPageSize = pageSize;
+        mSortCriteria = sortCriteria;
+        mPendingContainerIds.addAll(containerIds);
+        if (mInFlight != null && !containerIds.contains(mInFlight.mContainerId)) {
+            abortInFlight();
+        }
+        startNext();
+    }
+
+    /**
+     * Stops prefetching in favour of a browse by the user. A prefetch of the container the user is opening is left to
+     * finish, as their browse will join it; any other is aborted.
+     *
+     * @param containerId The container the user is browsing.
+     */
+    public void yieldTo(String containerId) {
+        mPendingContainerIds.clear();
+        if (mInFlight != null && !mInFlight.mContainerId.equals(containerId)) {
+            abortInFlight();
+        }
+    }
+
+    /**
+     * Stops all prefetching.
+     */
+    public void cancel() {
+        mPendingContainerIds.clear();
+        abortInFlight();
+    }
+
+    /**
+     * Stops prefetching for a while if the system is running low on memory. See ComponentCallbacks2.onTrimMemory().
+     */
+    public void onTrimMemory(int level) {
+        if (level < ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW)
+            return;
+
+        Log.d(TAG, "onTrimMemory: pausing prefetching at level " + level);
+        mPausedUntilMillis = SystemClock.elapsedRealtime() + MEMORY_PRESSURE_PAUSE_MILLIS;
+        cancel();
+    }
+
+    private boolean canPrefetch() {
+        return SystemClock.elapsedRealtime() >= mPausedUntilMillis && !mConnectivityManager.isActiveNetworkMetered();
+    }
+
+    private void abortInFlight() {
+        if (mInFlight == null)
+            return;
+
+        mCoalescer.abort(mUdn, mInFlight);
+        mInFlight = null;
+    }
+
+    private void startNext() {
+        while (mInFlight == null && !mPendingContainerIds.isEmpty()) {
+            String containerId = mPendingContainerIds.poll();
+            if (mListingCache.get(mUdn, containerId) != null)
+                continue;
+
+            mInFlight = new PrefetchBrowse(mService, containerId, mPageSize, mSortCriteria);
+            mCoalescer.execute(mControlPoint, mUdn, mInFlight, ActionScheduler.Priority.BACKGROUND);
+        }
+    }
+
+    private void onPrefetched(PrefetchBrowse browse, List<Container> containers, List<CompactItem> items,
+                              long numberReturned, long totalMatches) {
+        if (browse != mInFlight)
+            return;
+        mInFlight = null;
+
+        // Don't clobber a listing that the user has started paging through in the meantime.
+        if (mListingCache.get(browse.mUdn, browse.mContainerId) == null) {
+            boolean hasMorePages =
+                    BrowsePaging.hasMorePages(numberReturned, numberReturned, totalMatches, browse.mMaxResults);
+            ContainerListing listing = new ContainerListing();
+            listing.setSystemUpdateId(mListingCache.getSystemUpdateId(browse.mUdn));
+            listing.setSorted(browse.mSortCriteria.length > 0);
+            listing.addPage(containers, items, numberReturned, totalMatches, hasMorePages);
+            mListingCache.put(browse.mUdn, browse.mContainerId, listing);
+            Log.d(TAG, "onPrefetched: cached " + numberReturned + " children of " + browse.mContainerId);
+        }
+
+        if (canPrefetch()) {
+            startNext();
+        } else {
+            mPendingContainerIds.clear();
+        }
+    }
+
+    private void onPrefetchFailed(PrefetchBrowse browse) {
+        if (browse != mInFlight)
+            return;
+        mInFlight = null;
+        startNext();
+    }
+
+    private class PrefetchBrowse extends Browse {
+        private final String mUdn = ListingPrefetcher.this.mUdn;
+        private final String mContainerId;
+        private final long mMaxResults;
+        private final SortCriterion[] mSortCriteria;
+
+        PrefetchBrowse(Service service, String containerId, long maxResults, SortCriterion[] sortCriteria) {
+            super(service, containerId, BrowseFlag.DIRECT_CHILDREN, BrowseFilter.Profile.PLAYBACK.getFilter(), 0,
+                    maxResults, sortCriteria);
+            mContainerId = containerId;
+            mMaxResults = maxResults;
+            mSortCriteria = sortCriteria;
+        }
+
+        @Override
+        public void success(ActionInvocation invocation) {
+            BrowseFilter.recordResult(BrowseFilter.Profile.PLAYBACK, invocation);
+            Object result = invocation.getOutput("Result") != null ? invocation.getOutput("Result").getValue() : null;
+            final List<Container> containers = new ArrayList<>();
+            final List<CompactItem> items = new ArrayList<>();
+            if (result != null && !result.toString().isEmpty()) {
+                try {
+                    DidlLiteParser.parseAll(new StringReader(result.toString()), containers, items);
+                } catch (XmlPullParserException | IOException e) {
+                    Log.w(TAG, "success: unable to parse result for " + mContainerId, e);
+                    failure(invocation, null, e.getMessage());
+                    return;
+                }
+            }
+
+            long numberReturned = BrowsePaging.getUnsignedOutput(invocation, "NumberReturned");
+            final long pageSize = numberReturned >= 0 ? numberReturned : containers.size() + items.size();
+            final long totalMatches = BrowsePaging.getUnsignedOutput(invocation, "TotalMatches");
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onPrefetched(PrefetchBrowse.this, containers, items, pageSize, totalMatches);
+                }
+            });
+        }
+
+        @Override
+        public void received(ActionInvocation invocation, DIDLContent didl) {
+            // Not called, as success() is overridden.
+        }
+
+        @Override
+        public void updateStatus(Status status) {
+            // Do nothing.
+        }
+
+        @Override
+        public void failure(ActionInvocation invocation, UpnpResponse operation, String defaultMsg) {
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onPrefetchFailed(PrefetchBrowse.this);
+                }
+            });
+        }
+    }
+}
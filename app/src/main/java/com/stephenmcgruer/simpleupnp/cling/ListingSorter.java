@@ -0,0 +1,241 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR 'CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.stephenmcgruer.simpleupnp.cling;
+
+import org.fourthline.cling.support.model.container.Container;
+
+import java.text.CollationKey;
+import java.text.Collator;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Puts the children of a complete listing into display order for servers that cannot sort them: by title, in the
+ * user's locale, with runs of digits compared by value (so "Track 2" comes before "Track 10"). Containers are kept
+ * before items.
+ *
+ * Each title's sort key is computed once up front, rather than on every comparison, as listings may have tens of
+ * thousands of children. Large listings also get an alphabetical section index, for jumping through them quickly.
+ *
+ * Does not touch the UI, so can be run on a background thread.
+ */
+public class ListingSorter {
+    // Listings with at least this many children get a section index.
+    public static final int SECTION_INDEX_MIN_CHILDREN = 10000;
+
+    // Label of the section for titles that do not start with a letter.
+    static final String OTHER_SECTION_LABEL = "#";
+
+    /**
+     * A run of children whose titles start with the same letter.
+     */
+    public static class Section {
+        private final String mLabel;
+        private final int mPosition;
+
+        Section(String label, int position) {
+            mLabel = label;
+            mPosition = position;
+        }
+
+        public String getLabel() {
+            return mLabel;
+        }
+
+        /**
+         * @return The index of the first child in the section, counting containers and then items.
+         */
+        public int getPosition() {
+            return mPosition;
+        }
+    }
+
+    public static class Result {
+        public final List<Container> mContainers;
+        public final List<CompactItem> mItems;
+        // Null if the listing is too small to need one.
+        public final List<Section> mSections;
+
+        Result(List<Container> containers, List<CompactItem> items, List<Section> sections) {
+            mContainers = containers;
+            mItems = items;
+            mSections = sections;
+        }
+    }
+
+    private ListingSorter() {}
+
+    /**
+     * @param containers The containers of the listing.
+     * @param items The items of the listing.
+     * @param reorder Whether to sort the children, or just build a section index for them in their current order.
+     */
+    public static Result sort(List<Container> containers, List<CompactItem> items, boolean reorder) {
+        if (reorder) {
+            Collator collator = Collator.getInstance();
+            collator.setStrength(Collator.SECONDARY);
+            containers = sortByTitle(containers, getContainerTitles(containers), collator);
+            items = sortByTitle(items, getItemTitles(items), collator);
+        } else {
+            containers = new ArrayList<>(containers);
+            items = new ArrayList<>(items);
+        }
+
+        List<Section> sections = null;
+        if (containers.size() + items.size() >= SECTION_INDEX_MIN_CHILDREN) {
+            List<String> titles = getContainerTitles(containers);
+            titles.addAll(getItemTitles(items));
+            sections = buildSections(titles);
+        }
+        return new Result(containers, items, sections);
+    }
+
+    private static List<String> getContainerTitles(List<Container> containers) {
+        List<String> titles = new ArrayList<>(containers.size());
+        for (Container container : containers) {
+            titles.add(container.getTitle());
+        }
+        return titles;
+    }
+
+    private static List<String> getItemTitles(List<CompactItem> items) {
+        List<String> titles = new ArrayList<>(items.size());
+        for (CompactItem item : items) {
+            titles.add(item.getTitle());
+        }
+        return titles;
+    }
+
+    private static <T> List<T> sortByTitle(List<T> objects, List<String> titles, Collator collator) {
+        List<Keyed<T>> keyed = new ArrayList<>(objects.size());
+        for (int i = 0; i < objects.size(); i++) {
+            keyed.add(new Keyed<>(objects.get(i), new NaturalKey(titles.get(i), collator)));
+        }
+        // Stable, so children with equal titles keep the server's order.
+        Collections.sort(keyed);
+
+        List<T> sorted = new ArrayList<>(objects.size());
+        for (Keyed<T> entry : keyed) {
+            sorted.add(entry.mObject);
+        }
+        return sorted;
+    }
+
+    private static List<Section> buildSections(List<String> titles) {
+        List<Section> sections = new ArrayList<>();
+        String previousLabel = null;
+        for (int position = 0; position < titles.size(); position++) {
+            String label = getSectionLabel(titles.get(position));
+            if (!label.equals(previousLabel)) {
+                sections.add(new Section(label, position));
+                previousLabel = label;
+            }
+        }
+        return sections;
+    }
+
+    /**
+     * @return The upper case first letter of the title with any accent removed, or OTHER_SECTION_LABEL.
+     */
+    static String getSectionLabel(String title) {
+        if (title == null || title.trim().isEmpty())
+            return OTHER_SECTION_LABEL;
+
+        String first = Normalizer.normalize(title.trim().substring(0, 1), Normalizer.Form.NFD);
+        char letter = first.charAt(0);
+        return Character.isLetter(letter) ? String.valueOf(Character.toUpperCase(letter)) : OTHER_SECTION_LABEL;
+    }
+
+    private static class Keyed<T> implements Comparable<Keyed<T>> {
+        final T mObject;
+        final NaturalKey mKey;
+
+        Keyed(T object, NaturalKey key) {
+            mObject = object;
+            mKey = key;
+        }
+
+        @Override
+        public int compareTo(Keyed<T> other) {
+            return mKey.compareTo(other.mKey);
+        }
+    }
+
+    /**
+     * A title split into alternating runs of text, held as CollationKeys, and of ASCII digits, held without their
+     * leading zeros so that they can be compared by value.
+     */
+    static class NaturalKey implements Comparable<NaturalKey> {
+        private final List<Object> mSegments = new ArrayList<>();
+
+        NaturalKey(String title, Collator collator) {
+            if (title == null)
+                return;
+
+            int start = 0;
+            while (start < title.length()) {
+                boolean digits = isDigit(title.charAt(start));
+                int end = start + 1;
+                while (end < title.length() && isDigit(title.charAt(end)) == digits) {
+                    end++;
+                }
+                String run = title.substring(start, end);
+                mSegments.add(digits ? stripLeadingZeros(run) : collator.getCollationKey(run));
+                start = end;
+            }
+        }
+
+        @Override
+        public int compareTo(NaturalKey other) {
+            int count = Math.min(mSegments.size(), other.mSegments.size());
+            for (int i = 0; i < count; i++) {
+                int result = compareSegments(mSegments.get(i), other.mSegments.get(i));
+                if (result != 0)
+                    return result;
+            }
+            return mSegments.size() - other.mSegments.size();
+        }
+
+        private static int compareSegments(Object a, Object b) {
+            if (a instanceof String && b instanceof String) {
+                String digitsA = (String) a;
+                String digitsB = (String) b;
+                // Without leading zeros, a longer run of digits is a larger number.
+                if (digitsA.length() != digitsB.length())
+                    return digitsA.length() - digitsB.length();
+                return digitsA.compareTo(digitsB);
+            }
+            if (a instanceof CollationKey && b instanceof CollationKey) {
+                return ((CollationKey) a).compareTo((CollationKey) b);
+            }
+            // Numbers sort before text.
+            return a instanceof String ? -1 : 1;
+        }
+
+        private static boolean isDigit(char c) {
+            return c >= '0' && c <= '9';
+        }
+
+        private static String stripLeadingZeros(String digits) {
+            int start = 0;
+            while (start < digits.length() - 1 && digits.charAt(start) == '0') {
+                start++;
+            }
+            return digits.substring(start);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR 'CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.stephenmcgruer.simpleupnp.cling;
+
+import org.fourthline.cling.controlpoint.ActionCallback;
+import org.fourthline.cling.controlpoint.ControlPoint;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The actions sent to a device on behalf of one navigation, e.g. everything fetched for the container being shown, so
+ * that they can all be aborted once the user has moved on.
+ *
+ * Callbacks should check isCancelled() on the main thread before using their results, as an action may already have
+ * completed when its scope is cancelled.
+ */
+public class RequestScope {
+    // Finished actions are forgotten whenever this many are being tracked.
+    private static final int PRUNE_THRESHOLD = 32;
+
+    private final ActionCoalescer mCoalescer;
+    private final String mUdn;
+    private final Set<ActionCallback> mActions = new HashSet<>();
+    private boolean mCancelled = false;
+
+    public RequestScope(ActionCoalescer coalescer, String udn) {
+        mCoalescer = coalescer;
+        mUdn = udn;
+    }
+
+    /**
+     * Executes an action through the ActionCoalescer as part of this scope. Does nothing if the scope has been
+     * cancelled.
+     */
+    public synchronized void execute(ControlPoint controlPoint, ActionCallback callback,
+                                     ActionScheduler.Priority priority) {
+        if (mCancelled)
+            return;
+
+        if (mActions.size() >= PRUNE_THRESHOLD) {
+            Iterator<ActionCallback> iterator = mActions.iterator();
+            while (iterator.hasNext()) {
+                if (!mCoalescer.isActive(iterator.next())) {
+                    iterator.remove();
+                }
+            }
+        }
+        mActions.add(callback);
+        mCoalescer.execute(controlPoint, mUdn, callback, priority);
+    }
+
+    /**
+     * Cancels a single action if it has not been sent yet; see ActionCoalescer.cancel().
+     *
+     * @return True if the action's callback will not be called.
+     */
+    public synchronized boolean cancelQueued(ActionCallback callback) {
+        if (!mCoalescer.cancel(mUdn, callback))
+            return false;
+
+        mActions.remove(callback);
+        return true;
+    }
+
+    public synchronized boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * Aborts every action in the scope, including those already sent.
+     */
+    public void cancel() {
+        List<ActionCallback> actions;
+        synchronized (this) {
+            if (mCancelled)
+                return;
+
+            mCancelled = true;
+            actions = new ArrayList<>(mActions);
+            mActions.clear();
+        }
+
+        for (ActionCallback callback : actions) {
+            mCoalescer.abort(mUdn, callback);
+        }
+    }
+
+    /**
+     * Cancels this scope and starts a new one for the same device, e.g. when the user navigates elsewhere.
+     */
+    public RequestScope next() {
+        cancel();
+        return new RequestScope(mCoalescer, mUdn);
+    }
+}
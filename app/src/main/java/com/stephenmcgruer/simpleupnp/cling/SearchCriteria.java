@@ -0,0 +1,85 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR 'CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.stephenmcgruer.simpleupnp.cling;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Builds ContentDirectory Search criteria strings.
+ */
+public class SearchCriteria {
+    // Properties matched against the words of a text query, if the server supports them.
+    private static final String[] TEXT_SEARCH_PROPERTIES = { "dc:title", "upnp:artist", "upnp:album" };
+
+    private SearchCriteria() {}
+
+    /**
+     * Builds criteria matching objects where every word of the query is contained in one of the title, artist or album.
+     *
+     * @param query The text entered by the user.
+     * @param capabilities The device's search capabilities.
+     * @return The criteria, or null if the query is empty or the device cannot search any of the properties.
+     */
+    public static String forTextQuery(String query, Collection<String> capabilities) {
+        List<String> properties = getTextSearchProperties(capabilities);
+        if (properties.isEmpty())
+            return null;
+
+        StringBuilder criteria = new StringBuilder();
+        for (String word : query.trim().split("\\s+")) {
+            if (word.isEmpty())
+                continue;
+
+            if (criteria.length() > 0) {
+                criteria.append(" and ");
+            }
+            criteria.append('(');
+            for (int i = 0; i < properties.size(); i++) {
+                if (i > 0) {
+                    criteria.append(" or ");
+                }
+                criteria.append(properties.get(i)).append(" contains ").append(quote(word));
+            }
+            criteria.append(')');
+        }
+        return criteria.length() > 0 ? criteria.toString() : null;
+    }
+
+    /**
+     * @return Whether the device can search for text queries at all.
+     */
+    public static boolean supportsTextQuery(Collection<String> capabilities) {
+        return !getTextSearchProperties(capabilities).isEmpty();
+    }
+
+    private static List<String> getTextSearchProperties(Collection<String> capabilities) {
+        List<String> properties = new ArrayList<>();
+        for (String property : TEXT_SEARCH_PROPERTIES) {
+            if (capabilities.contains("*") || capabilities.contains(property)) {
+                properties.add(property);
+            }
+        }
+        return properties;
+    }
+
+    /**
+     * Quotes a string for use in criteria, escaping backslashes and double quotes.
+     */
+    static String quote(String value) {
+        return '"' + value.replace("\\", "\\\\").replace("\"", "\\\"") + '"';
+    }
+}
@@ -0,0 +1,43 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR 'CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.stephenmcgruer.simpleupnp.cling;
+
+import org.fourthline.cling.support.model.SortCriterion;
+
+import java.util.Collection;
+
+/**
+ * Builds ContentDirectory SortCriteria for listings.
+ */
+public class SortCriteria {
+    private static final String TITLE_PROPERTY = "dc:title";
+
+    private SortCriteria() {}
+
+    /**
+     * Builds criteria ordering a listing by title, if the device can sort by it. Only the title is asked for, as
+     * servers that sort by several properties are rarer and slower at it; containers are kept before items by
+     * ContainerListing, which holds them apart.
+     *
+     * @param capabilities The device's sort capabilities.
+     * @return The criteria, which are empty if the device cannot sort by title.
+     */
+    public static SortCriterion[] forListing(Collection<String> capabilities) {
+        if (!capabilities.contains("*") && !capabilities.contains(TITLE_PROPERTY))
+            return new SortCriterion[0];
+
+        return new SortCriterion[] { new SortCriterion(true, TITLE_PROPERTY) };
+    }
+}
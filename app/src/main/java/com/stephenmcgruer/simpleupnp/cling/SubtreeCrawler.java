@@ -0,0 +1,312 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR 'CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.stephenmcgruer.simpleupnp.cling;
+
+import android.util.Log;
+
+import org.fourthline.cling.controlpoint.ControlPoint;
+import org.fourthline.cling.model.action.ActionInvocation;
+import org.fourthline.cling.model.message.UpnpResponse;
+import org.fourthline.cling.model.meta.Service;
+import org.fourthline.cling.support.contentdirectory.callback.Browse;
+import org.fourthline.cling.support.model.BrowseFlag;
+import org.fourthline.cling.support.model.DIDLContent;
+import org.fourthline.cling.support.model.SortCriterion;
+import org.fourthline.cling.support.model.container.Container;
+
+import java.io.StringReader;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Walks the subtree under a ContentDirectory container and reports every item found in it, e.g. to play a whole
+ * artist folder including its album subfolders.
+ *
+ * Several containers are browsed in parallel, through the ActionCoalescer so that the device's congestion window still
+ * applies and pages that the file browser is already fetching are shared (the crawl browses with the file browser's
+ * page size and sort criteria so that its requests match), and with at most MAX_PARALLEL_BROWSES of them
+ * in flight for this crawl. They go in the VISIBLE lane, so that folders the user opens meanwhile are not held up
+ * behind a large crawl. Containers waiting to be browsed are kept in a single queue that whichever browse finishes
+ * first takes the next one from, favouring those earliest in the tree. Items are nevertheless reported in tree order (a
+ * container's own items, then each of its subfolders in turn) as soon as everything before them is known, so the caller
+ * can start using the first items while the rest of the crawl is still running.
+ */
+public class SubtreeCrawler {
+    private static final String TAG = "SubtreeCrawler";
+
+    // Containers more than this many levels below the root are not browsed.
+    static final int MAX_DEPTH = 8;
+
+    // The crawl stops once this many items have been found.
+    static final int MAX_ITEMS = 1000;
+
+    static final int MAX_PARALLEL_BROWSES = 4;
+
+    // The same as the file browser's, so that pages it is fetching can be shared.
+    private static final long PAGE_SIZE = 200;
+
+    public interface Listener {
+        /**
+         * Called with the next items in tree order. Calls are made from cling threads, with the crawler's lock held,
+         * so must not block.
+         */
+        void onItemsFound(SubtreeCrawler crawler, List<CompactItem> items);
+
+        /**
+         * Called once after the last onItemsFound(), unless the crawl was cancelled.
+         *
+         * @param itemCount The total number of items found.
+         */
+        void onCrawlFinished(SubtreeCrawler crawler, int itemCount);
+    }
+
+    private final ActionCoalescer mCoalescer;
+    private final ControlPoint mControlPoint;
+    private final String mUdn;
+    private final Service mContentDirectoryService;
+    private final SortCriterion[] mSortCriteria;
+    private final Listener mListener;
+
+    private final Node mRoot;
+    private final Deque<Node> mPending = new ArrayDeque<>();
+    private final Set<CrawlBrowse> mInFlight = new HashSet<>();
+    private int mItemCount = 0;
+    private boolean mCancelled = false;
+    private boolean mFinished = false;
+
+    /**
+     * @param sortCriteria The order to browse each container in, which should match the file browser's.
+     */
+    public SubtreeCrawler(ActionCoalescer coalescer, ControlPoint controlPoint, String udn,
+                          Service contentDirectoryService, String containerId, SortCriterion[] sortCriteria,
+                          Listener listener) {
+        mCoalescer = coalescer;
+        mControlPoint = controlPoint;
+        mUdn = udn;
+        mContentDirectoryService = contentDirectoryService;
+        mSortCriteria = sortCriteria;
+        mListener = listener;
+        mRoot = new Node(containerId, 0);
+    }
+
+    public synchronized void start() {
+        mPending.add(mRoot);
+        scheduleBrowses();
+    }
+
+    /**
+     * Stops the crawl. Browses in flight are aborted unless another request shares them, and no further results are
+     * reported.
+     */
+    public synchronized void cancel() {
+        if (mCancelled)
+            return;
+
+        mCancelled = true;
+        mPending.clear();
+        for (CrawlBrowse browse : mInFlight) {
+            mCoalescer.abort(mUdn, browse);
+        }
+        mInFlight.clear();
+    }
+
+    /**
+     * Starts browses for pending containers until the crawl's parallelism limit is reached. Must be called with the
+     * lock held.
+     */
+    private void scheduleBrowses() {
+        while (!mCancelled && mInFlight.size() < MAX_PARALLEL_BROWSES && !mPending.isEmpty()) {
+            CrawlBrowse browse = new CrawlBrowse(mPending.pollFirst());
+            mInFlight.add(browse);
+            mCoalescer.execute(mControlPoint, mUdn, browse, ActionScheduler.Priority.VISIBLE);
+        }
+    }
+
+    private synchronized void onPageReceived(CrawlBrowse browse, List<Container> containers,
+                                             List<CompactItem> items, long numberReturned, long totalMatches) {
+        if (!mInFlight.remove(browse))
+            return;
+
+        Node node = browse.mNode;
+        int remainingItems = MAX_ITEMS - mItemCount;
+        if (items.size() > remainingItems) {
+            items = items.subList(0, remainingItems);
+        }
+        node.mItems.addAll(items);
+        mItemCount += items.size();
+
+        boolean capped = mItemCount >= MAX_ITEMS;
+        List<Node> children = new ArrayList<>();
+        if (!capped && node.mDepth < MAX_DEPTH) {
+            for (Container container : containers) {
+                children.add(new Node(container.getId(), node.mDepth + 1));
+            }
+        }
+        node.mChildren.addAll(children);
+        node.mNextStartingIndex += numberReturned;
+
+        boolean hasMorePages =
+                BrowsePaging.hasMorePages(node.mNextStartingIndex, numberReturned, totalMatches, PAGE_SIZE);
+
+        if (capped) {
+            // Nothing more will be reported, so finish every container that has not been browsed yet.
+            Log.d(TAG, "onPageReceived: stopping crawl of " + mRoot.mContainerId + " at " + mItemCount + " items");
+            node.mComplete = true;
+            for (Node pending : mPending) {
+                pending.mComplete = true;
+            }
+            mPending.clear();
+        } else {
+            // The rest of this container comes first, then its subfolders in order; see the class comment.
+            for (int i = children.size() - 1; i >= 0; i--) {
+                mPending.addFirst(children.get(i));
+            }
+            if (hasMorePages) {
+                mPending.addFirst(node);
+            } else {
+                node.mComplete = true;
+            }
+        }
+
+        reportItems();
+        scheduleBrowses();
+    }
+
+    private synchronized void onBrowseFailed(CrawlBrowse browse, String message) {
+        if (!mInFlight.remove(browse))
+            return;
+
+        // Skip the rest of the container rather than abandoning the whole crawl.
+        Log.d(TAG, "onBrowseFailed: skipping " + browse.mNode.mContainerId + ": " + message);
+        browse.mNode.mComplete = true;
+        reportItems();
+        scheduleBrowses();
+    }
+
+    /**
+     * Reports the items that are next in tree order and known, and finishes the crawl if there is nothing left. Must
+     * be called with the lock held.
+     */
+    private void reportItems() {
+        if (mCancelled || mFinished)
+            return;
+
+        List<CompactItem> items = new ArrayList<>();
+        boolean complete = collectItems(mRoot, items);
+        if (!items.isEmpty()) {
+            mListener.onItemsFound(this, items);
+        }
+        if (complete) {
+            mFinished = true;
+            mListener.onCrawlFinished(this, mItemCount);
+        }
+    }
+
+    /**
+     * Collects the items of a subtree that have not been reported yet, stopping at the first container that has not
+     * been completely browsed.
+     *
+     * @return Whether the whole subtree has been reported.
+     */
+    private static boolean collectItems(Node node, List<CompactItem> items) {
+        if (!node.mItemsReported) {
+            if (!node.mComplete)
+                return false;
+
+            items.addAll(node.mItems);
+            node.mItems.clear();
+            node.mItemsReported = true;
+        }
+
+        while (node.mNextChildToReport < node.mChildren.size()) {
+            if (!collectItems(node.mChildren.get(node.mNextChildToReport), items))
+                return false;
+
+            // Drop the finished subtree.
+            node.mChildren.set(node.mNextChildToReport, null);
+            node.mNextChildToReport++;
+        }
+        return true;
+    }
+
+    private static class Node {
+        final String mContainerId;
+        final int mDepth;
+        long mNextStartingIndex = 0;
+        boolean mComplete = false;
+
+        final List<CompactItem> mItems = new ArrayList<>();
+        final List<Node> mChildren = new ArrayList<>();
+        boolean mItemsReported = false;
+        int mNextChildToReport = 0;
+
+        Node(String containerId, int depth) {
+            mContainerId = containerId;
+            mDepth = depth;
+        }
+    }
+
+    private class CrawlBrowse extends Browse {
+        private final Node mNode;
+
+        CrawlBrowse(Node node) {
+            super(mContentDirectoryService, node.mContainerId, BrowseFlag.DIRECT_CHILDREN,
+                    BrowseFilter.Profile.PLAYBACK.getFilter(), node.mNextStartingIndex, PAGE_SIZE, mSortCriteria);
+            mNode = node;
+        }
+
+        @Override
+        public void success(ActionInvocation invocation) {
+            BrowseFilter.recordResult(BrowseFilter.Profile.PLAYBACK, invocation);
+            List<Container> containers = new ArrayList<>();
+            List<CompactItem> items = new ArrayList<>();
+            Object result = invocation.getOutput("Result") != null ? invocation.getOutput("Result").getValue() : null;
+            if (result != null && !result.toString().isEmpty()) {
+                try {
+                    DidlLiteParser.parseAll(new StringReader(result.toString()), containers, items);
+                } catch (Exception e) {
+                    onBrowseFailed(this, "unable to parse DIDL-Lite: " + e.getMessage());
+                    return;
+                }
+            }
+
+            long numberReturned = BrowsePaging.getUnsignedOutput(invocation, "NumberReturned");
+            if (numberReturned < 0) {
+                numberReturned = containers.size() + items.size();
+            }
+            onPageReceived(this, containers, items, numberReturned,
+                    BrowsePaging.getUnsignedOutput(invocation, "TotalMatches"));
+        }
+
+        @Override
+        public void received(ActionInvocation invocation, DIDLContent didl) {
+            // Not called, as success() is overridden.
+        }
+
+        @Override
+        public void updateStatus(Status status) {
+            // Do nothing.
+        }
+
+        @Override
+        public void failure(ActionInvocation invocation, UpnpResponse operation, String defaultMsg) {
+            onBrowseFailed(this, defaultMsg);
+        }
+    }
+}
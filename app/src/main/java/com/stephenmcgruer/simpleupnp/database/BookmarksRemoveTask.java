@@ -26,11 +26,12 @@ public class BookmarksRemoveTask extends AsyncTask<String, Void, Integer> {
     private static final String TAG = "BookmarksRemoveTask";
 
     public interface ResultsListener {
-        void onBookmarkRemoveTaskFinished(int numRemoved);
+        void onBookmarkRemoveTaskFinished(int numRemoved, String containerId);
     }
 
     private final SQLiteOpenHelper mDbHelper;
     private final ResultsListener mListener;
+    private String mContainerId = "";
 
     public BookmarksRemoveTask(SQLiteOpenHelper dbHelper, ResultsListener listener) {
         mDbHelper = dbHelper;
@@ -43,6 +44,8 @@ public class BookmarksRemoveTask extends AsyncTask<String, Void, Integer> {
             return 0;
         }
 
+        mContainerId = params[1];
+
         String whereClause = BookmarksContract.BookmarksEntry.COLUMN_NAME_UDN + " = ? AND " +
                 BookmarksContract.BookmarksEntry.COLUMN_NAME_CONTAINER_ID + " LIKE ?";
         String[] whereArgs = {
@@ -57,6 +60,6 @@ public class BookmarksRemoveTask extends AsyncTask<String, Void, Integer> {
     @Override
     protected void onPostExecute(Integer numRemoved) {
         super.onPostExecute(numRemoved);
-        mListener.onBookmarkRemoveTaskFinished(numRemoved);
+        mListener.onBookmarkRemoveTaskFinished(numRemoved, mContainerId);
     }
 }
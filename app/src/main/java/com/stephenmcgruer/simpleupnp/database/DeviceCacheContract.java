@@ -0,0 +1,75 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR 'CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.stephenmcgruer.simpleupnp.database;
+
+import java.util.Map;
+
+public class DeviceCacheContract {
+    private DeviceCacheContract() {}
+
+    public static class DeviceEntry {
+        public static final String TABLE_NAME = "devices";
+        public static final String COLUMN_NAME_NETWORK = "network";
+        public static final String COLUMN_NAME_UDN = "udn";
+        public static final String COLUMN_NAME_DESCRIPTOR_URL = "descriptor_url";
+        public static final String COLUMN_NAME_MAX_AGE_SECONDS = "max_age_seconds";
+        public static final String COLUMN_NAME_LAST_SEEN = "last_seen";
+    }
+
+    public static class ServiceEntry {
+        public static final String TABLE_NAME = "services";
+        public static final String COLUMN_NAME_NETWORK = "network";
+        public static final String COLUMN_NAME_UDN = "udn";
+        public static final String COLUMN_NAME_DESCRIPTOR_URI = "descriptor_uri";
+        public static final String COLUMN_NAME_DESCRIPTOR = "descriptor";
+    }
+
+    public static class CachedDevice {
+        private final String mUdn;
+        private final String mDescriptorUrl;
+        private final int mMaxAgeSeconds;
+        private final Map<String, String> mServiceDescriptors;
+
+        public CachedDevice(String udn, String descriptorUrl, int maxAgeSeconds,
+                            Map<String, String> serviceDescriptors) {
+            mUdn = udn;
+            mDescriptorUrl = descriptorUrl;
+            mMaxAgeSeconds = maxAgeSeconds;
+            mServiceDescriptors = serviceDescriptors;
+        }
+
+        public String getUdn() {
+            return mUdn;
+        }
+
+        /**
+         * @return The URL the root device descriptor was last fetched from.
+         */
+        public String getDescriptorUrl() {
+            return mDescriptorUrl;
+        }
+
+        public int getMaxAgeSeconds() {
+            return mMaxAgeSeconds;
+        }
+
+        /**
+         * @return The service descriptors (SCPD XML) of the device and its embedded devices, keyed by descriptor URI.
+         */
+        public Map<String, String> getServiceDescriptors() {
+            return mServiceDescriptors;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR 'CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.stephenmcgruer.simpleupnp.database;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+import com.stephenmcgruer.simpleupnp.database.DeviceCacheContract.DeviceEntry;
+import com.stephenmcgruer.simpleupnp.database.DeviceCacheContract.ServiceEntry;
+
+/**
+ * Database of the media servers seen on each network, so that they can be hydrated at startup without waiting for
+ * discovery. Like the listing cache, everything in it can be thrown away at any time.
+ */
+public class DeviceCacheDbHelper extends SQLiteOpenHelper {
+
+    private static final String SQL_CREATE_DEVICES =
+            "CREATE TABLE " + DeviceEntry.TABLE_NAME + " (" +
+                    DeviceEntry.COLUMN_NAME_NETWORK + " TEXT, " +
+                    DeviceEntry.COLUMN_NAME_UDN + " TEXT, " +
+                    DeviceEntry.COLUMN_NAME_DESCRIPTOR_URL + " TEXT, " +
+                    DeviceEntry.COLUMN_NAME_MAX_AGE_SECONDS + " INTEGER, " +
+                    DeviceEntry.COLUMN_NAME_LAST_SEEN + " INTEGER, " +
+                    " PRIMARY KEY (" + DeviceEntry.COLUMN_NAME_NETWORK + ", " + DeviceEntry.COLUMN_NAME_UDN + ")" +
+            ")";
+
+    private static final String SQL_CREATE_SERVICES =
+            "CREATE TABLE " + ServiceEntry.TABLE_NAME + " (" +
+                    ServiceEntry.COLUMN_NAME_NETWORK + " TEXT, " +
+                    ServiceEntry.COLUMN_NAME_UDN + " TEXT, " +
+                    ServiceEntry.COLUMN_NAME_DESCRIPTOR_URI + " TEXT, " +
+                    ServiceEntry.COLUMN_NAME_DESCRIPTOR + " TEXT, " +
+                    " PRIMARY KEY (" +
+                        ServiceEntry.COLUMN_NAME_NETWORK + ", " + ServiceEntry.COLUMN_NAME_UDN + ", " +
+                        ServiceEntry.COLUMN_NAME_DESCRIPTOR_URI +
+                    ")" +
+            ")";
+
+    private static final String SQL_DELETE_DEVICES = "DROP TABLE IF EXISTS " + DeviceEntry.TABLE_NAME;
+    private static final String SQL_DELETE_SERVICES = "DROP TABLE IF EXISTS " + ServiceEntry.TABLE_NAME;
+
+    private static final String DATABASE_NAME = "SimpleUpnpDeviceCache.db";
+    private static final int DATABASE_VERSION = 1;
+
+    public DeviceCacheDbHelper(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL(SQL_CREATE_DEVICES);
+        db.execSQL(SQL_CREATE_SERVICES);
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // The contents are only a cache, so just start again.
+        db.execSQL(SQL_DELETE_DEVICES);
+        db.execSQL(SQL_DELETE_SERVICES);
+        onCreate(db);
+    }
+
+    @Override
+    public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        onUpgrade(db, oldVersion, newVersion);
+    }
+}
@@ -0,0 +1,102 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR 'CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.stephenmcgruer.simpleupnp.database;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.AsyncTask;
+
+import com.stephenmcgruer.simpleupnp.database.DeviceCacheContract.CachedDevice;
+import com.stephenmcgruer.simpleupnp.database.DeviceCacheContract.DeviceEntry;
+import com.stephenmcgruer.simpleupnp.database.DeviceCacheContract.ServiceEntry;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads the media servers last seen on a network, most recently seen first.
+ */
+public class DeviceCacheReadTask extends AsyncTask<String, Void, List<CachedDevice>> {
+
+    public interface ResultListener {
+        void onDevicesReadFromCache(String network, List<CachedDevice> devices);
+    }
+
+    private final SQLiteOpenHelper mDbHelper;
+    private final ResultListener mListener;
+    private String mNetwork = "";
+
+    public DeviceCacheReadTask(SQLiteOpenHelper dbHelper, ResultListener listener) {
+        mDbHelper = dbHelper;
+        mListener = listener;
+    }
+
+    @Override
+    protected List<CachedDevice> doInBackground(String... params) {
+        List<CachedDevice> devices = new ArrayList<>();
+        if (params.length < 1) {
+            return devices;
+        }
+
+        mNetwork = params[0];
+        String[] selectionArgs = { mNetwork };
+        SQLiteDatabase db = mDbHelper.getReadableDatabase();
+
+        Map<String, Map<String, String>> serviceDescriptors = new HashMap<>();
+        String[] serviceProjection = {
+                ServiceEntry.COLUMN_NAME_UDN,
+                ServiceEntry.COLUMN_NAME_DESCRIPTOR_URI,
+                ServiceEntry.COLUMN_NAME_DESCRIPTOR,
+        };
+        Cursor cursor = db.query(ServiceEntry.TABLE_NAME, serviceProjection, ServiceEntry.COLUMN_NAME_NETWORK + " = ?",
+                selectionArgs, null, null, null);
+        while (cursor.moveToNext()) {
+            String udn = cursor.getString(0);
+            Map<String, String> forDevice = serviceDescriptors.get(udn);
+            if (forDevice == null) {
+                forDevice = new HashMap<>();
+                serviceDescriptors.put(udn, forDevice);
+            }
+            forDevice.put(cursor.getString(1), cursor.getString(2));
+        }
+        cursor.close();
+
+        String[] deviceProjection = {
+                DeviceEntry.COLUMN_NAME_UDN,
+                DeviceEntry.COLUMN_NAME_DESCRIPTOR_URL,
+                DeviceEntry.COLUMN_NAME_MAX_AGE_SECONDS,
+        };
+        cursor = db.query(DeviceEntry.TABLE_NAME, deviceProjection, DeviceEntry.COLUMN_NAME_NETWORK + " = ?",
+                selectionArgs, null, null, DeviceEntry.COLUMN_NAME_LAST_SEEN + " DESC");
+        while (cursor.moveToNext()) {
+            String udn = cursor.getString(0);
+            Map<String, String> forDevice = serviceDescriptors.get(udn);
+            devices.add(new CachedDevice(udn, cursor.getString(1), cursor.getInt(2),
+                    forDevice != null ? forDevice : new HashMap<String, String>()));
+        }
+        cursor.close();
+
+        return devices;
+    }
+
+    @Override
+    protected void onPostExecute(List<CachedDevice> devices) {
+        super.onPostExecute(devices);
+        mListener.onDevicesReadFromCache(mNetwork, devices);
+    }
+}
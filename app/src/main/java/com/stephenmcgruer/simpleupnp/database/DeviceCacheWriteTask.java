@@ -0,0 +1,135 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR 'CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.stephenmcgruer.simpleupnp.database;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.AsyncTask;
+import android.util.Log;
+
+import com.stephenmcgruer.simpleupnp.database.DeviceCacheContract.DeviceEntry;
+import com.stephenmcgruer.simpleupnp.database.DeviceCacheContract.ServiceEntry;
+
+import org.fourthline.cling.binding.xml.DescriptorBindingException;
+import org.fourthline.cling.binding.xml.ServiceDescriptorBinder;
+import org.fourthline.cling.model.meta.RemoteDevice;
+import org.fourthline.cling.model.meta.RemoteService;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persists where a media server's descriptor was found on a network, along with its service descriptors, and forgets
+ * devices that have not been seen for a long time.
+ */
+public class DeviceCacheWriteTask extends AsyncTask<Void, Void, Void> {
+    private static final String TAG = "DeviceCacheWriteTask";
+
+    // Devices not seen for this long are dropped, so servers that have gone away are not fetched on every startup.
+    static final long MAX_UNSEEN_MILLIS = 30L * 24 * 60 * 60 * 1000;
+
+    private final SQLiteOpenHelper mDbHelper;
+    private final ServiceDescriptorBinder mServiceDescriptorBinder;
+    private final String mNetwork;
+    private final RemoteDevice mDevice;
+
+    /**
+     * @param device A fully hydrated root device.
+     */
+    public DeviceCacheWriteTask(SQLiteOpenHelper dbHelper, ServiceDescriptorBinder serviceDescriptorBinder,
+                                String network, RemoteDevice device) {
+        mDbHelper = dbHelper;
+        mServiceDescriptorBinder = serviceDescriptorBinder;
+        mNetwork = network;
+        mDevice = device;
+    }
+
+    @Override
+    protected Void doInBackground(Void... params) {
+        String udn = mDevice.getIdentity().getUdn().getIdentifierString();
+
+        // Covers the services of embedded devices too.
+        Map<String, String> serviceDescriptors = new HashMap<>();
+        for (RemoteService service : mDevice.findServices()) {
+            try {
+                serviceDescriptors.put(String.valueOf(service.getDescriptorURI()),
+                        mServiceDescriptorBinder.generate(service));
+            } catch (DescriptorBindingException e) {
+                // The service will just be fetched from the device next time.
+                Log.w(TAG, "doInBackground: unable to generate descriptor for " + service.getServiceId(), e);
+            }
+        }
+
+        long now = System.currentTimeMillis();
+        ContentValues deviceValues = new ContentValues();
+        deviceValues.put(DeviceEntry.COLUMN_NAME_NETWORK, mNetwork);
+        deviceValues.put(DeviceEntry.COLUMN_NAME_UDN, udn);
+        deviceValues.put(DeviceEntry.COLUMN_NAME_DESCRIPTOR_URL,
+                mDevice.getIdentity().getDescriptorURL().toString());
+        deviceValues.put(DeviceEntry.COLUMN_NAME_MAX_AGE_SECONDS, mDevice.getIdentity().getMaxAgeSeconds());
+        deviceValues.put(DeviceEntry.COLUMN_NAME_LAST_SEEN, now);
+
+        String serviceSelection =
+                ServiceEntry.COLUMN_NAME_NETWORK + " = ? AND " + ServiceEntry.COLUMN_NAME_UDN + " = ?";
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            db.replace(DeviceEntry.TABLE_NAME, null, deviceValues);
+            db.delete(ServiceEntry.TABLE_NAME, serviceSelection, new String[] { mNetwork, udn });
+            for (Map.Entry<String, String> serviceDescriptor : serviceDescriptors.entrySet()) {
+                ContentValues serviceValues = new ContentValues();
+                serviceValues.put(ServiceEntry.COLUMN_NAME_NETWORK, mNetwork);
+                serviceValues.put(ServiceEntry.COLUMN_NAME_UDN, udn);
+                serviceValues.put(ServiceEntry.COLUMN_NAME_DESCRIPTOR_URI, serviceDescriptor.getKey());
+                serviceValues.put(ServiceEntry.COLUMN_NAME_DESCRIPTOR, serviceDescriptor.getValue());
+                db.insert(ServiceEntry.TABLE_NAME, null, serviceValues);
+            }
+            evictUnseen(db, now - MAX_UNSEEN_MILLIS);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return null;
+    }
+
+    /**
+     * Deletes the devices, and their services, last seen before the given time.
+     */
+    private static void evictUnseen(SQLiteDatabase db, long lastSeenBefore) {
+        String[] projection = { DeviceEntry.COLUMN_NAME_NETWORK, DeviceEntry.COLUMN_NAME_UDN };
+        Cursor cursor = db.query(DeviceEntry.TABLE_NAME, projection, DeviceEntry.COLUMN_NAME_LAST_SEEN + " < ?",
+                new String[] { Long.toString(lastSeenBefore) }, null, null, null);
+
+        List<String[]> toEvict = new ArrayList<>();
+        while (cursor.moveToNext()) {
+            toEvict.add(new String[] { cursor.getString(0), cursor.getString(1) });
+        }
+        cursor.close();
+
+        for (String[] key : toEvict) {
+            db.delete(DeviceEntry.TABLE_NAME,
+                    DeviceEntry.COLUMN_NAME_NETWORK + " = ? AND " + DeviceEntry.COLUMN_NAME_UDN + " = ?", key);
+            db.delete(ServiceEntry.TABLE_NAME,
+                    ServiceEntry.COLUMN_NAME_NETWORK + " = ? AND " + ServiceEntry.COLUMN_NAME_UDN + " = ?", key);
+        }
+        if (!toEvict.isEmpty()) {
+            Log.d(TAG, "evictUnseen: evicted " + toEvict.size() + " devices");
+        }
+    }
+}
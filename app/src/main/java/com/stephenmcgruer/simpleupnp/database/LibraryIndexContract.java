@@ -0,0 +1,134 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR 'CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.stephenmcgruer.simpleupnp.database;
+
+import com.stephenmcgruer.simpleupnp.cling.CompactItem;
+
+import org.fourthline.cling.support.model.container.Container;
+
+public class LibraryIndexContract {
+    private LibraryIndexContract() {}
+
+    /**
+     * The indexed containers and items, with what is needed to show and play them.
+     */
+    public static class ObjectEntry {
+        public static final String TABLE_NAME = "objects";
+        public static final String COLUMN_NAME_UDN = "udn";
+        public static final String COLUMN_NAME_OBJECT_ID = "object_id";
+        public static final String COLUMN_NAME_PARENT_ID = "parent_id";
+        public static final String COLUMN_NAME_TITLE = "title";
+        public static final String COLUMN_NAME_UPNP_CLASS = "upnp_class";
+        public static final String COLUMN_NAME_IS_CONTAINER = "is_container";
+        public static final String COLUMN_NAME_CHILD_COUNT = "child_count";
+        public static final String COLUMN_NAME_URL = "url";
+        public static final String COLUMN_NAME_PROTOCOL_INFO = "protocol_info";
+        public static final String COLUMN_NAME_MIME_TYPE = "mime_type";
+        public static final String COLUMN_NAME_DURATION = "duration";
+        public static final String COLUMN_NAME_GENERATION = "generation";
+    }
+
+    /**
+     * FTS4 table of the searchable text of each object, whose docid is the rowid of the object in ObjectEntry.
+     */
+    public static class TextEntry {
+        public static final String TABLE_NAME = "objects_text";
+        public static final String COLUMN_NAME_TITLE = "title";
+        public static final String COLUMN_NAME_ARTIST = "artist";
+        public static final String COLUMN_NAME_ALBUM = "album";
+        public static final String COLUMN_NAME_PATH = "path";
+    }
+
+    /**
+     * The state of the index of each device.
+     */
+    public static class DeviceEntry {
+        public static final String TABLE_NAME = "devices";
+        public static final String COLUMN_NAME_UDN = "udn";
+        public static final String COLUMN_NAME_SYSTEM_UPDATE_ID = "system_update_id";
+        public static final String COLUMN_NAME_GENERATION = "generation";
+        public static final String COLUMN_NAME_IS_CAPPED = "is_capped";
+    }
+
+    /**
+     * Containers whose children have changed, or could not be browsed, since they were indexed.
+     */
+    public static class ChangedContainerEntry {
+        public static final String TABLE_NAME = "changed_containers";
+        public static final String COLUMN_NAME_UDN = "udn";
+        public static final String COLUMN_NAME_CONTAINER_ID = "container_id";
+        // The SystemUpdateID of the device when the change was seen.
+        public static final String COLUMN_NAME_SYSTEM_UPDATE_ID = "system_update_id";
+    }
+
+    /**
+     * A container or item to add to the index, along with the text it can be found by.
+     */
+    public static class IndexedObject {
+        private final Container mContainer;
+        private final CompactItem mItem;
+        private final String mArtist;
+        private final String mAlbum;
+        private final String mPath;
+
+        /**
+         * @param path The titles of the container and its ancestors, separated by "/".
+         */
+        public IndexedObject(Container container, String path) {
+            this(container, null, null, null, path);
+        }
+
+        /**
+         * @param path The path of the container holding the item.
+         */
+        public IndexedObject(CompactItem item, String artist, String album, String path) {
+            this(null, item, artist, album, path);
+        }
+
+        private IndexedObject(Container container, CompactItem item, String artist, String album, String path) {
+            mContainer = container;
+            mItem = item;
+            mArtist = artist;
+            mAlbum = album;
+            mPath = path;
+        }
+
+        /**
+         * @return The container, or null if this is an item.
+         */
+        public Container getContainer() {
+            return mContainer;
+        }
+
+        /**
+         * @return The item, or null if this is a container.
+         */
+        public CompactItem getItem() {
+            return mItem;
+        }
+
+        public String getArtist() {
+            return mArtist;
+        }
+
+        public String getAlbum() {
+            return mAlbum;
+        }
+
+        public String getPath() {
+            return mPath;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR 'CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.stephenmcgruer.simpleupnp.database;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+import com.stephenmcgruer.simpleupnp.database.LibraryIndexContract.ChangedContainerEntry;
+import com.stephenmcgruer.simpleupnp.database.LibraryIndexContract.DeviceEntry;
+import com.stephenmcgruer.simpleupnp.database.LibraryIndexContract.ObjectEntry;
+import com.stephenmcgruer.simpleupnp.database.LibraryIndexContract.TextEntry;
+
+/**
+ * Database of the libraries of devices that cannot search themselves, for searching locally. Kept separate from the
+ * bookmarks database, as it can always be rebuilt by crawling the devices again.
+ */
+public class LibraryIndexDbHelper extends SQLiteOpenHelper {
+
+    private static final String SQL_CREATE_OBJECTS =
+            "CREATE TABLE " + ObjectEntry.TABLE_NAME + " (" +
+                    ObjectEntry.COLUMN_NAME_UDN + " TEXT, " +
+                    ObjectEntry.COLUMN_NAME_OBJECT_ID + " TEXT, " +
+                    ObjectEntry.COLUMN_NAME_PARENT_ID + " TEXT, " +
+                    ObjectEntry.COLUMN_NAME_TITLE + " TEXT, " +
+                    ObjectEntry.COLUMN_NAME_UPNP_CLASS + " TEXT, " +
+                    ObjectEntry.COLUMN_NAME_IS_CONTAINER + " INTEGER, " +
+                    ObjectEntry.COLUMN_NAME_CHILD_COUNT + " INTEGER, " +
+                    ObjectEntry.COLUMN_NAME_URL + " TEXT, " +
+                    ObjectEntry.COLUMN_NAME_PROTOCOL_INFO + " TEXT, " +
+                    ObjectEntry.COLUMN_NAME_MIME_TYPE + " TEXT, " +
+                    ObjectEntry.COLUMN_NAME_DURATION + " INTEGER, " +
+                    ObjectEntry.COLUMN_NAME_GENERATION + " INTEGER, " +
+                    " UNIQUE (" + ObjectEntry.COLUMN_NAME_UDN + ", " + ObjectEntry.COLUMN_NAME_OBJECT_ID + ")" +
+            ")";
+
+    private static final String SQL_CREATE_OBJECTS_PARENT_INDEX =
+            "CREATE INDEX " + ObjectEntry.TABLE_NAME + "_parent ON " + ObjectEntry.TABLE_NAME + " (" +
+                    ObjectEntry.COLUMN_NAME_UDN + ", " + ObjectEntry.COLUMN_NAME_PARENT_ID +
+            ")";
+
+    private static final String SQL_CREATE_TEXT =
+            "CREATE VIRTUAL TABLE " + TextEntry.TABLE_NAME + " USING fts4(" +
+                    TextEntry.COLUMN_NAME_TITLE + ", " +
+                    TextEntry.COLUMN_NAME_ARTIST + ", " +
+                    TextEntry.COLUMN_NAME_ALBUM + ", " +
+                    TextEntry.COLUMN_NAME_PATH +
+            ")";
+
+    private static final String SQL_CREATE_DEVICES =
+            "CREATE TABLE " + DeviceEntry.TABLE_NAME + " (" +
+                    DeviceEntry.COLUMN_NAME_UDN + " TEXT PRIMARY KEY, " +
+                    DeviceEntry.COLUMN_NAME_SYSTEM_UPDATE_ID + " INTEGER, " +
+                    DeviceEntry.COLUMN_NAME_GENERATION + " INTEGER, " +
+                    DeviceEntry.COLUMN_NAME_IS_CAPPED + " INTEGER" +
+            ")";
+
+    private static final String SQL_CREATE_CHANGED_CONTAINERS =
+            "CREATE TABLE " + ChangedContainerEntry.TABLE_NAME + " (" +
+                    ChangedContainerEntry.COLUMN_NAME_UDN + " TEXT, " +
+                    ChangedContainerEntry.COLUMN_NAME_CONTAINER_ID + " TEXT, " +
+                    ChangedContainerEntry.COLUMN_NAME_SYSTEM_UPDATE_ID + " INTEGER, " +
+                    " UNIQUE (" + ChangedContainerEntry.COLUMN_NAME_UDN + ", " +
+                    ChangedContainerEntry.COLUMN_NAME_CONTAINER_ID + ")" +
+            ")";
+
+    private static final String DATABASE_NAME = "SimpleUpnpLibraryIndex.db";
+    private static final int DATABASE_VERSION = 2;
+
+    public LibraryIndexDbHelper(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL(SQL_CREATE_OBJECTS);
+        db.execSQL(SQL_CREATE_OBJECTS_PARENT_INDEX);
+        db.execSQL(SQL_CREATE_TEXT);
+        db.execSQL(SQL_CREATE_DEVICES);
+        db.execSQL(SQL_CREATE_CHANGED_CONTAINERS);
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // The index can be rebuilt from the devices, so just start again.
+        db.execSQL("DROP TABLE IF EXISTS " + ObjectEntry.TABLE_NAME);
+        db.execSQL("DROP TABLE IF EXISTS " + TextEntry.TABLE_NAME);
+        db.execSQL("DROP TABLE IF EXISTS " + DeviceEntry.TABLE_NAME);
+        db.execSQL("DROP TABLE IF EXISTS " + ChangedContainerEntry.TABLE_NAME);
+        onCreate(db);
+    }
+
+    @Override
+    public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        onUpgrade(db, oldVersion, newVersion);
+    }
+}
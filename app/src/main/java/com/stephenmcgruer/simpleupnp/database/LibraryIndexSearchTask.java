@@ -0,0 +1,141 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR 'CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.stephenmcgruer.simpleupnp.database;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.AsyncTask;
+
+import com.stephenmcgruer.simpleupnp.cling.CompactItem;
+import com.stephenmcgruer.simpleupnp.cling.ContainerListing;
+import com.stephenmcgruer.simpleupnp.cling.KeyedContainer;
+import com.stephenmcgruer.simpleupnp.database.LibraryIndexContract.DeviceEntry;
+import com.stephenmcgruer.simpleupnp.database.LibraryIndexContract.ObjectEntry;
+import com.stephenmcgruer.simpleupnp.database.LibraryIndexContract.TextEntry;
+
+import org.fourthline.cling.support.model.DIDLObject;
+import org.fourthline.cling.support.model.container.Container;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Searches the library index of a device for objects whose title, artist, album or path contain words starting with
+ * each word of a query.
+ */
+public class LibraryIndexSearchTask extends AsyncTask<String, Void, ContainerListing> {
+
+    // Upper bound on the number of results, which are all shown at once.
+    static final int MAX_RESULTS = 500;
+
+    public interface ResultListener {
+        /**
+         * @param results The matching containers and items, or null if the device has not been indexed.
+         */
+        void onLibraryIndexSearched(String udn, String query, ContainerListing results);
+    }
+
+    private final SQLiteOpenHelper mDbHelper;
+    private final ResultListener mListener;
+    private String mUdn = "";
+    private String mQuery = "";
+
+    public LibraryIndexSearchTask(SQLiteOpenHelper dbHelper, ResultListener listener) {
+        mDbHelper = dbHelper;
+        mListener = listener;
+    }
+
+    @Override
+    protected ContainerListing doInBackground(String... params) {
+        if (params.length < 2) {
+            return null;
+        }
+
+        mUdn = params[0];
+        mQuery = params[1];
+
+        SQLiteDatabase db = mDbHelper.getReadableDatabase();
+        Cursor deviceCursor = db.query(DeviceEntry.TABLE_NAME, new String[] { DeviceEntry.COLUMN_NAME_UDN },
+                DeviceEntry.COLUMN_NAME_UDN + " = ?", new String[] { mUdn }, null, null, null);
+        boolean indexed = deviceCursor.moveToFirst();
+        deviceCursor.close();
+        if (!indexed) {
+            return null;
+        }
+
+        List<Container> containers = new ArrayList<>();
+        List<CompactItem> items = new ArrayList<>();
+        String match = toMatchExpression(mQuery);
+        if (!match.isEmpty()) {
+            Cursor cursor = db.rawQuery("SELECT "
+                    + "o." + ObjectEntry.COLUMN_NAME_OBJECT_ID + ", "
+                    + "o." + ObjectEntry.COLUMN_NAME_PARENT_ID + ", "
+                    + "o." + ObjectEntry.COLUMN_NAME_TITLE + ", "
+                    + "o." + ObjectEntry.COLUMN_NAME_UPNP_CLASS + ", "
+                    + "o." + ObjectEntry.COLUMN_NAME_IS_CONTAINER + ", "
+                    + "o." + ObjectEntry.COLUMN_NAME_CHILD_COUNT + ", "
+                    + "o." + ObjectEntry.COLUMN_NAME_URL + ", "
+                    + "o." + ObjectEntry.COLUMN_NAME_PROTOCOL_INFO + ", "
+                    + "o." + ObjectEntry.COLUMN_NAME_MIME_TYPE + ", "
+                    + "o." + ObjectEntry.COLUMN_NAME_DURATION
+                    + " FROM " + TextEntry.TABLE_NAME + " t JOIN " + ObjectEntry.TABLE_NAME + " o"
+                    + " ON o.rowid = t.docid"
+                    + " WHERE " + TextEntry.TABLE_NAME + " MATCH ? AND o." + ObjectEntry.COLUMN_NAME_UDN + " = ?"
+                    + " LIMIT " + MAX_RESULTS, new String[] { match, mUdn });
+            while (cursor.moveToNext()) {
+                if (cursor.getInt(4) != 0) {
+                    Integer childCount = cursor.isNull(5) ? null : cursor.getInt(5);
+                    containers.add(new KeyedContainer(cursor.getString(0), cursor.getString(1), cursor.getString(2),
+                            null, new DIDLObject.Class(cursor.getString(3)), childCount));
+                } else {
+                    items.add(new CompactItem(cursor.getString(0), cursor.getString(1), cursor.getString(2),
+                            cursor.getString(3), cursor.getString(6), cursor.getString(7), cursor.getString(8),
+                            cursor.getLong(9)));
+                }
+            }
+            cursor.close();
+        }
+
+        ContainerListing results = new ContainerListing();
+        int count = containers.size() + items.size();
+        results.addPage(containers, items, count, count, false);
+        return results;
+    }
+
+    @Override
+    protected void onPostExecute(ContainerListing results) {
+        super.onPostExecute(results);
+        mListener.onLibraryIndexSearched(mUdn, mQuery, results);
+    }
+
+    /**
+     * Converts a query into an FTS prefix query matching all of its words. Anything other than letters and digits is
+     * dropped, as the FTS tokenizer splits on it anyway and it could otherwise be taken as query syntax.
+     */
+    static String toMatchExpression(String query) {
+        StringBuilder match = new StringBuilder();
+        for (String word : query.split("[^\\p{L}\\p{N}]+")) {
+            if (word.isEmpty())
+                continue;
+
+            if (match.length() > 0) {
+                match.append(' ');
+            }
+            match.append(word).append('*');
+        }
+        return match.toString();
+    }
+}
@@ -0,0 +1,391 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR 'CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.stephenmcgruer.simpleupnp.database;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+import com.stephenmcgruer.simpleupnp.cling.CompactItem;
+import com.stephenmcgruer.simpleupnp.database.LibraryIndexContract.ChangedContainerEntry;
+import com.stephenmcgruer.simpleupnp.database.LibraryIndexContract.DeviceEntry;
+import com.stephenmcgruer.simpleupnp.database.LibraryIndexContract.IndexedObject;
+import com.stephenmcgruer.simpleupnp.database.LibraryIndexContract.ObjectEntry;
+import com.stephenmcgruer.simpleupnp.database.LibraryIndexContract.TextEntry;
+
+import org.fourthline.cling.support.model.container.Container;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Updates the library index of a device in place while it is being crawled, so that the previous index stays
+ * searchable until the crawl finishes.
+ *
+ * Each crawl is a new generation: objects found by the crawl are stamped with it. Once a container has been browsed to
+ * the end, its children from older generations that the crawl did not find again are deleted, along with everything
+ * below them. A full crawl that completes also deletes every other object from older generations.
+ *
+ * The index also records the containers that need browsing again: those that ContentDirectory events reported as
+ * changed, and those that could not be browsed. While the device's SystemUpdateID has only moved on through such
+ * events, crawling just those containers brings the index up to date. The methods do database work synchronously, so
+ * must not be called on the main thread.
+ */
+public class LibraryIndexWriter {
+    public static final long UNKNOWN_SYSTEM_UPDATE_ID = -1;
+
+    private final SQLiteOpenHelper mDbHelper;
+
+    public LibraryIndexWriter(SQLiteOpenHelper dbHelper) {
+        mDbHelper = dbHelper;
+    }
+
+    /**
+     * The state of a device's index.
+     */
+    public static class IndexState {
+        private final long mSystemUpdateId;
+        private final boolean mCapped;
+        private final Map<String, String> mChangedContainerPaths;
+
+        IndexState(long systemUpdateId, boolean capped, Map<String, String> changedContainerPaths) {
+            mSystemUpdateId = systemUpdateId;
+            mCapped = capped;
+            mChangedContainerPaths = changedContainerPaths;
+        }
+
+        /**
+         * @return The SystemUpdateID that the index reflects, apart from the changed containers, or
+         *     UNKNOWN_SYSTEM_UPDATE_ID if the device needs a full crawl.
+         */
+        public long getSystemUpdateId() {
+            return mSystemUpdateId;
+        }
+
+        /**
+         * @return Whether a crawl stopped early because the library was too large, so the index is partial.
+         */
+        public boolean isCapped() {
+            return mCapped;
+        }
+
+        /**
+         * @return The paths of the containers that need browsing again, keyed by container id. See
+         *     IndexedObject.getPath().
+         */
+        public Map<String, String> getChangedContainerPaths() {
+            return mChangedContainerPaths;
+        }
+    }
+
+    public IndexState getIndexState(String udn) {
+        SQLiteDatabase db = mDbHelper.getReadableDatabase();
+        String[] projection = { DeviceEntry.COLUMN_NAME_SYSTEM_UPDATE_ID, DeviceEntry.COLUMN_NAME_IS_CAPPED };
+        Cursor cursor = db.query(DeviceEntry.TABLE_NAME, projection, DeviceEntry.COLUMN_NAME_UDN + " = ?",
+                new String[] { udn }, null, null, null);
+        long systemUpdateId = UNKNOWN_SYSTEM_UPDATE_ID;
+        boolean capped = false;
+        if (cursor.moveToFirst()) {
+            systemUpdateId = cursor.isNull(0) ? UNKNOWN_SYSTEM_UPDATE_ID : cursor.getLong(0);
+            capped = cursor.getInt(1) != 0;
+        }
+        cursor.close();
+
+        // Containers that are no longer in the index are browsed from an empty path.
+        Map<String, String> changedContainerPaths = new LinkedHashMap<>();
+        cursor = db.rawQuery("SELECT c." + ChangedContainerEntry.COLUMN_NAME_CONTAINER_ID
+                + ", t." + TextEntry.COLUMN_NAME_PATH + " FROM " + ChangedContainerEntry.TABLE_NAME + " c"
+                + " LEFT JOIN " + ObjectEntry.TABLE_NAME + " o ON o." + ObjectEntry.COLUMN_NAME_UDN + " = c."
+                + ChangedContainerEntry.COLUMN_NAME_UDN + " AND o." + ObjectEntry.COLUMN_NAME_OBJECT_ID + " = c."
+                + ChangedContainerEntry.COLUMN_NAME_CONTAINER_ID
+                + " LEFT JOIN " + TextEntry.TABLE_NAME + " t ON t.docid = o.rowid"
+                + " WHERE c." + ChangedContainerEntry.COLUMN_NAME_UDN + " = ?", new String[] { udn });
+        while (cursor.moveToNext()) {
+            changedContainerPaths.put(cursor.getString(0), cursor.isNull(1) ? "" : cursor.getString(1));
+        }
+        cursor.close();
+        return new IndexState(systemUpdateId, capped, changedContainerPaths);
+    }
+
+    /**
+     * Starts a new generation of the device's index.
+     *
+     * @param full Whether the whole library will be crawled. If so, the index is treated as out of date until
+     *     finishGeneration() is called.
+     * @return The generation to pass to writeObjects(), finishContainer() and finishGeneration().
+     */
+    public long startGeneration(String udn, boolean full) {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            long generation = 0;
+            Cursor cursor = db.query(DeviceEntry.TABLE_NAME, new String[] { DeviceEntry.COLUMN_NAME_GENERATION },
+                    DeviceEntry.COLUMN_NAME_UDN + " = ?", new String[] { udn }, null, null, null);
+            boolean exists = cursor.moveToFirst();
+            if (exists) {
+                generation = cursor.getLong(0) + 1;
+            }
+            cursor.close();
+
+            ContentValues values = new ContentValues();
+            values.put(DeviceEntry.COLUMN_NAME_GENERATION, generation);
+            if (full || !exists) {
+                values.put(DeviceEntry.COLUMN_NAME_UDN, udn);
+                values.put(DeviceEntry.COLUMN_NAME_SYSTEM_UPDATE_ID, UNKNOWN_SYSTEM_UPDATE_ID);
+                values.put(DeviceEntry.COLUMN_NAME_IS_CAPPED, 0);
+                db.replace(DeviceEntry.TABLE_NAME, null, values);
+                db.delete(ChangedContainerEntry.TABLE_NAME, ChangedContainerEntry.COLUMN_NAME_UDN + " = ?",
+                        new String[] { udn });
+            } else {
+                db.update(DeviceEntry.TABLE_NAME, values, DeviceEntry.COLUMN_NAME_UDN + " = ?", new String[] { udn });
+            }
+            db.setTransactionSuccessful();
+            return generation;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Adds or updates objects in the device's index.
+     *
+     * @return The ids of the containers that were not in the index before.
+     */
+    public List<String> writeObjects(String udn, long generation, List<IndexedObject> objects) {
+        List<String> addedContainerIds = new ArrayList<>();
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (IndexedObject object : objects) {
+                if (writeObject(db, udn, generation, object) && object.getContainer() != null) {
+                    addedContainerIds.add(object.getContainer().getId());
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return addedContainerIds;
+    }
+
+    /**
+     * Finishes a container that has been browsed to the end: deletes its children that the generation did not find,
+     * along with everything below them, and clears any change recorded for it up to the given SystemUpdateID.
+     */
+    public void finishContainer(String udn, long generation, String containerId, long systemUpdateId) {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            Deque<String> removedContainerIds = new ArrayDeque<>();
+            deleteChildren(db, udn, containerId, generation, removedContainerIds);
+            // The objects below a removed container all belong to older generations than this one.
+            Set<String> seenContainerIds = new HashSet<>();
+            while (!removedContainerIds.isEmpty()) {
+                String removedContainerId = removedContainerIds.poll();
+                if (seenContainerIds.add(removedContainerId)) {
+                    deleteChildren(db, udn, removedContainerId, generation, removedContainerIds);
+                }
+            }
+
+            db.delete(ChangedContainerEntry.TABLE_NAME, ChangedContainerEntry.COLUMN_NAME_UDN + " = ? AND "
+                    + ChangedContainerEntry.COLUMN_NAME_CONTAINER_ID + " = ? AND "
+                    + ChangedContainerEntry.COLUMN_NAME_SYSTEM_UPDATE_ID + " <= ?",
+                    new String[] { udn, containerId, Long.toString(systemUpdateId) });
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Records that a container could not be browsed, so that it is browsed again by the next crawl.
+     */
+    public void markContainerFailed(String udn, String containerId, long systemUpdateId) {
+        ContentValues values = new ContentValues();
+        values.put(ChangedContainerEntry.COLUMN_NAME_UDN, udn);
+        values.put(ChangedContainerEntry.COLUMN_NAME_CONTAINER_ID, containerId);
+        values.put(ChangedContainerEntry.COLUMN_NAME_SYSTEM_UPDATE_ID, systemUpdateId);
+        // A change seen since the crawl started must not be forgotten when the crawl browses the container again.
+        mDbHelper.getWritableDatabase().insertWithOnConflict(ChangedContainerEntry.TABLE_NAME, null, values,
+                SQLiteDatabase.CONFLICT_IGNORE);
+    }
+
+    /**
+     * Records a change evented by the device. If the index was up to date with the previous SystemUpdateID and the
+     * changed containers are known, they are recorded for the next crawl. Otherwise the device needs a full crawl.
+     *
+     * @param changedContainerIds The containers whose children changed, or an empty list if not known.
+     */
+    public void markContainersChanged(String udn, long previousSystemUpdateId, long systemUpdateId,
+                                      List<String> changedContainerIds) {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            Cursor cursor = db.query(DeviceEntry.TABLE_NAME,
+                    new String[] { DeviceEntry.COLUMN_NAME_SYSTEM_UPDATE_ID }, DeviceEntry.COLUMN_NAME_UDN + " = ?",
+                    new String[] { udn }, null, null, null);
+            long indexedSystemUpdateId = cursor.moveToFirst() ? cursor.getLong(0) : UNKNOWN_SYSTEM_UPDATE_ID;
+            cursor.close();
+            if (indexedSystemUpdateId == UNKNOWN_SYSTEM_UPDATE_ID || indexedSystemUpdateId == systemUpdateId)
+                return;
+
+            ContentValues values = new ContentValues();
+            if (indexedSystemUpdateId == previousSystemUpdateId && systemUpdateId != UNKNOWN_SYSTEM_UPDATE_ID
+                    && !changedContainerIds.isEmpty()) {
+                for (String containerId : changedContainerIds) {
+                    ContentValues changeValues = new ContentValues();
+                    changeValues.put(ChangedContainerEntry.COLUMN_NAME_UDN, udn);
+                    changeValues.put(ChangedContainerEntry.COLUMN_NAME_CONTAINER_ID, containerId);
+                    changeValues.put(ChangedContainerEntry.COLUMN_NAME_SYSTEM_UPDATE_ID, systemUpdateId);
+                    db.replace(ChangedContainerEntry.TABLE_NAME, null, changeValues);
+                }
+                values.put(DeviceEntry.COLUMN_NAME_SYSTEM_UPDATE_ID, systemUpdateId);
+            } else {
+                values.put(DeviceEntry.COLUMN_NAME_SYSTEM_UPDATE_ID, UNKNOWN_SYSTEM_UPDATE_ID);
+            }
+            db.update(DeviceEntry.TABLE_NAME, values, DeviceEntry.COLUMN_NAME_UDN + " = ?", new String[] { udn });
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Finishes a full crawl of the device.
+     *
+     * @param systemUpdateId The SystemUpdateID of the device when the crawl started.
+     * @param complete Whether the crawl browsed every container. If not, objects that it did not find are only deleted
+     *     from the containers it did browse; see finishContainer().
+     * @param capped Whether the crawl stopped early because the library was too large.
+     */
+    public void finishGeneration(String udn, long generation, long systemUpdateId, boolean complete,
+                                 boolean capped) {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            if (complete) {
+                String[] args = { udn, Long.toString(generation) };
+                db.delete(TextEntry.TABLE_NAME, "docid IN (SELECT rowid FROM " + ObjectEntry.TABLE_NAME + " WHERE "
+                        + ObjectEntry.COLUMN_NAME_UDN + " = ? AND " + ObjectEntry.COLUMN_NAME_GENERATION + " < ?)",
+                        args);
+                db.delete(ObjectEntry.TABLE_NAME, ObjectEntry.COLUMN_NAME_UDN + " = ? AND "
+                        + ObjectEntry.COLUMN_NAME_GENERATION + " < ?", args);
+            }
+
+            ContentValues values = new ContentValues();
+            values.put(DeviceEntry.COLUMN_NAME_SYSTEM_UPDATE_ID, systemUpdateId);
+            values.put(DeviceEntry.COLUMN_NAME_IS_CAPPED, capped ? 1 : 0);
+            db.update(DeviceEntry.TABLE_NAME, values, DeviceEntry.COLUMN_NAME_UDN + " = ?", new String[] { udn });
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Records that a crawl of only the changed containers stopped early because the library was too large.
+     */
+    public void markCapped(String udn) {
+        ContentValues values = new ContentValues();
+        values.put(DeviceEntry.COLUMN_NAME_IS_CAPPED, 1);
+        mDbHelper.getWritableDatabase().update(DeviceEntry.TABLE_NAME, values, DeviceEntry.COLUMN_NAME_UDN + " = ?",
+                new String[] { udn });
+    }
+
+    /**
+     * Deletes the children of a container from generations older than the given one, adding the ids of the deleted
+     * containers to removedContainerIds.
+     */
+    private static void deleteChildren(SQLiteDatabase db, String udn, String containerId, long generation,
+                                       Deque<String> removedContainerIds) {
+        String selection = ObjectEntry.COLUMN_NAME_UDN + " = ? AND " + ObjectEntry.COLUMN_NAME_PARENT_ID + " = ? AND "
+                + ObjectEntry.COLUMN_NAME_GENERATION + " < ?";
+        String[] args = { udn, containerId, Long.toString(generation) };
+        Cursor cursor = db.query(ObjectEntry.TABLE_NAME, new String[] { ObjectEntry.COLUMN_NAME_OBJECT_ID },
+                selection + " AND " + ObjectEntry.COLUMN_NAME_IS_CONTAINER + " = 1", args, null, null, null);
+        while (cursor.moveToNext()) {
+            removedContainerIds.add(cursor.getString(0));
+        }
+        cursor.close();
+
+        db.delete(TextEntry.TABLE_NAME, "docid IN (SELECT rowid FROM " + ObjectEntry.TABLE_NAME + " WHERE "
+                + selection + ")", args);
+        db.delete(ObjectEntry.TABLE_NAME, selection, args);
+    }
+
+    /**
+     * @return Whether the object was not in the index before.
+     */
+    private static boolean writeObject(SQLiteDatabase db, String udn, long generation, IndexedObject object) {
+        ContentValues values = new ContentValues();
+        values.put(ObjectEntry.COLUMN_NAME_UDN, udn);
+        values.put(ObjectEntry.COLUMN_NAME_GENERATION, generation);
+        String title;
+        Container container = object.getContainer();
+        if (container != null) {
+            title = container.getTitle();
+            values.put(ObjectEntry.COLUMN_NAME_OBJECT_ID, container.getId());
+            values.put(ObjectEntry.COLUMN_NAME_PARENT_ID, container.getParentID());
+            values.put(ObjectEntry.COLUMN_NAME_UPNP_CLASS,
+                    container.getClazz() != null ? container.getClazz().getValue() : null);
+            values.put(ObjectEntry.COLUMN_NAME_IS_CONTAINER, 1);
+            values.put(ObjectEntry.COLUMN_NAME_CHILD_COUNT, container.getChildCount());
+        } else {
+            CompactItem item = object.getItem();
+            title = item.getTitle();
+            values.put(ObjectEntry.COLUMN_NAME_OBJECT_ID, item.getId());
+            values.put(ObjectEntry.COLUMN_NAME_PARENT_ID, item.getParentId());
+            values.put(ObjectEntry.COLUMN_NAME_UPNP_CLASS, item.getUpnpClass());
+            values.put(ObjectEntry.COLUMN_NAME_IS_CONTAINER, 0);
+            values.put(ObjectEntry.COLUMN_NAME_URL, item.getUrl());
+            values.put(ObjectEntry.COLUMN_NAME_PROTOCOL_INFO, item.getProtocolInfo());
+            values.put(ObjectEntry.COLUMN_NAME_MIME_TYPE, item.getMimeType());
+            values.put(ObjectEntry.COLUMN_NAME_DURATION, item.getDurationMillis());
+        }
+        values.put(ObjectEntry.COLUMN_NAME_TITLE, title);
+        String objectId = values.getAsString(ObjectEntry.COLUMN_NAME_OBJECT_ID);
+
+        ContentValues textValues = new ContentValues();
+        textValues.put(TextEntry.COLUMN_NAME_TITLE, title);
+        textValues.put(TextEntry.COLUMN_NAME_ARTIST, object.getArtist());
+        textValues.put(TextEntry.COLUMN_NAME_ALBUM, object.getAlbum());
+        textValues.put(TextEntry.COLUMN_NAME_PATH, object.getPath());
+
+        Cursor cursor = db.query(ObjectEntry.TABLE_NAME, new String[] { "rowid" },
+                ObjectEntry.COLUMN_NAME_UDN + " = ? AND " + ObjectEntry.COLUMN_NAME_OBJECT_ID + " = ?",
+                new String[] { udn, objectId }, null, null, null);
+        long rowId = cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        cursor.close();
+
+        if (rowId >= 0) {
+            String[] rowArgs = { Long.toString(rowId) };
+            db.update(ObjectEntry.TABLE_NAME, values, "rowid = ?", rowArgs);
+            db.update(TextEntry.TABLE_NAME, textValues, "docid = ?", rowArgs);
+            return false;
+        }
+
+        rowId = db.insert(ObjectEntry.TABLE_NAME, null, values);
+        textValues.put("docid", rowId);
+        db.insert(TextEntry.TABLE_NAME, null, textValues);
+        return true;
+    }
+}
@@ -0,0 +1,57 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR 'CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.stephenmcgruer.simpleupnp.database;
+
+import com.stephenmcgruer.simpleupnp.cling.ContainerListing;
+
+public class ListingCacheContract {
+    private ListingCacheContract() {}
+
+    public static class ListingEntry {
+        public static final String TABLE_NAME = "listings";
+        public static final String COLUMN_NAME_UDN = "udn";
+        public static final String COLUMN_NAME_CONTAINER_ID = "container_id";
+        public static final String COLUMN_NAME_SYSTEM_UPDATE_ID = "system_update_id";
+        public static final String COLUMN_NAME_DIDL = "didl";
+        public static final String COLUMN_NAME_NEXT_STARTING_INDEX = "next_starting_index";
+        public static final String COLUMN_NAME_TOTAL_MATCHES = "total_matches";
+        public static final String COLUMN_NAME_HAS_MORE_PAGES = "has_more_pages";
+        // Whether the children are in display order, in which case the rest of the listing has to be fetched sorted.
+        public static final String COLUMN_NAME_SORTED = "sorted";
+        public static final String COLUMN_NAME_SIZE_BYTES = "size_bytes";
+        public static final String COLUMN_NAME_LAST_ACCESS = "last_access";
+    }
+
+    public static class CachedListing {
+        private final ContainerListing mListing;
+        private final long mSystemUpdateId;
+
+        public CachedListing(ContainerListing listing, long systemUpdateId) {
+            mListing = listing;
+            mSystemUpdateId = systemUpdateId;
+        }
+
+        public ContainerListing getListing() {
+            return mListing;
+        }
+
+        /**
+         * @return The SystemUpdateID of the device at the time the listing was fetched.
+         */
+        public long getSystemUpdateId() {
+            return mSystemUpdateId;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR 'CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.stephenmcgruer.simpleupnp.database;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+import com.stephenmcgruer.simpleupnp.database.ListingCacheContract.ListingEntry;
+
+/**
+ * Database of container listings persisted across restarts. Kept separate from the bookmarks database, as everything
+ * in it can be thrown away at any time.
+ */
+public class ListingCacheDbHelper extends SQLiteOpenHelper {
+
+    private static final String SQL_CREATE_ENTRIES =
+            "CREATE TABLE " + ListingEntry.TABLE_NAME + " (" +
+                    ListingEntry.COLUMN_NAME_UDN + " TEXT, " +
+                    ListingEntry.COLUMN_NAME_CONTAINER_ID + " TEXT, " +
+                    ListingEntry.COLUMN_NAME_SYSTEM_UPDATE_ID + " INTEGER, " +
+                    ListingEntry.COLUMN_NAME_DIDL + " TEXT, " +
+                    ListingEntry.COLUMN_NAME_NEXT_STARTING_INDEX + " INTEGER, " +
+                    ListingEntry.COLUMN_NAME_TOTAL_MATCHES + " INTEGER, " +
+                    ListingEntry.COLUMN_NAME_HAS_MORE_PAGES + " INTEGER, " +
+                    ListingEntry.COLUMN_NAME_SORTED + " INTEGER, " +
+                    ListingEntry.COLUMN_NAME_SIZE_BYTES + " INTEGER, " +
+                    ListingEntry.COLUMN_NAME_LAST_ACCESS + " INTEGER, " +
+                    " PRIMARY KEY (" +
+                        ListingEntry.COLUMN_NAME_UDN + ", " + ListingEntry.COLUMN_NAME_CONTAINER_ID +
+                    ")" +
+            ")";
+
+    private static final String SQL_DELETE_ENTRIES = "DROP TABLE IF EXISTS " + ListingEntry.TABLE_NAME;
+
+    private static final String DATABASE_NAME = "SimpleUpnpListingCache.db";
+    private static final int DATABASE_VERSION = 2;
+
+    public ListingCacheDbHelper(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL(SQL_CREATE_ENTRIES);
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // The contents are only a cache, so just start again.
+        db.execSQL(SQL_DELETE_ENTRIES);
+        onCreate(db);
+    }
+
+    @Override
+    public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        onUpgrade(db, oldVersion, newVersion);
+    }
+}
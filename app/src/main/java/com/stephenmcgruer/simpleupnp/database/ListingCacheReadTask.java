@@ -0,0 +1,123 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR 'CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.stephenmcgruer.simpleupnp.database;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.AsyncTask;
+import android.util.Log;
+
+import com.stephenmcgruer.simpleupnp.cling.CompactItem;
+import com.stephenmcgruer.simpleupnp.cling.ContainerListing;
+import com.stephenmcgruer.simpleupnp.cling.DidlLiteParser;
+import com.stephenmcgruer.simpleupnp.database.ListingCacheContract.CachedListing;
+import com.stephenmcgruer.simpleupnp.database.ListingCacheContract.ListingEntry;
+
+import org.fourthline.cling.support.model.container.Container;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+public class ListingCacheReadTask extends AsyncTask<String, Void, CachedListing> {
+    private static final String TAG = "ListingCacheReadTask";
+
+    public interface ResultListener {
+        /**
+         * @param cachedListing The persisted listing, or null if there was none.
+         */
+        void onListingCacheRead(String udn, String containerId, CachedListing cachedListing);
+    }
+
+    private final SQLiteOpenHelper mDbHelper;
+    private final ResultListener mListener;
+    private String mUdn = "";
+    private String mContainerId = "";
+
+    public ListingCacheReadTask(SQLiteOpenHelper dbHelper, ResultListener listener) {
+        mDbHelper = dbHelper;
+        mListener = listener;
+    }
+
+    @Override
+    protected CachedListing doInBackground(String... params) {
+        if (params.length < 2) {
+            return null;
+        }
+
+        mUdn = params[0];
+        mContainerId = params[1];
+
+        String[] projection = {
+                ListingEntry.COLUMN_NAME_SYSTEM_UPDATE_ID,
+                ListingEntry.COLUMN_NAME_DIDL,
+                ListingEntry.COLUMN_NAME_NEXT_STARTING_INDEX,
+                ListingEntry.COLUMN_NAME_TOTAL_MATCHES,
+                ListingEntry.COLUMN_NAME_HAS_MORE_PAGES,
+                ListingEntry.COLUMN_NAME_SORTED,
+        };
+        String selection = ListingEntry.COLUMN_NAME_UDN + " = ? AND " + ListingEntry.COLUMN_NAME_CONTAINER_ID + " = ?";
+        String[] selectionArgs = { mUdn, mContainerId };
+
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        Cursor cursor = db.query(ListingEntry.TABLE_NAME, projection, selection, selectionArgs, null, null, null);
+
+        CachedListing cachedListing = null;
+        if (cursor.moveToFirst()) {
+            long systemUpdateId = cursor.getLong(
+                    cursor.getColumnIndexOrThrow(ListingEntry.COLUMN_NAME_SYSTEM_UPDATE_ID));
+            String didlXml = cursor.getString(cursor.getColumnIndexOrThrow(ListingEntry.COLUMN_NAME_DIDL));
+            long nextStartingIndex = cursor.getLong(
+                    cursor.getColumnIndexOrThrow(ListingEntry.COLUMN_NAME_NEXT_STARTING_INDEX));
+            long totalMatches = cursor.getLong(cursor.getColumnIndexOrThrow(ListingEntry.COLUMN_NAME_TOTAL_MATCHES));
+            boolean hasMorePages = cursor.getInt(
+                    cursor.getColumnIndexOrThrow(ListingEntry.COLUMN_NAME_HAS_MORE_PAGES)) != 0;
+            boolean sorted = cursor.getInt(cursor.getColumnIndexOrThrow(ListingEntry.COLUMN_NAME_SORTED)) != 0;
+
+            try {
+                List<Container> containers = new ArrayList<>();
+                List<CompactItem> items = new ArrayList<>();
+                DidlLiteParser.parseAll(new StringReader(didlXml), containers, items);
+                ContainerListing listing = new ContainerListing();
+                listing.addPage(containers, items, nextStartingIndex, totalMatches, hasMorePages);
+                // Lets the rest of the listing be persisted under the same SystemUpdateID, once it is verified.
+                listing.setSystemUpdateId(systemUpdateId);
+                // The rest of the listing has to be fetched in the same order as the pages already fetched.
+                listing.setSorted(sorted);
+                cachedListing = new CachedListing(listing, systemUpdateId);
+            } catch (Exception e) {
+                Log.w(TAG, "doInBackground: unable to parse cached listing for " + mContainerId, e);
+            }
+        }
+        cursor.close();
+
+        if (cachedListing != null) {
+            // Mark the entry as recently used, for eviction.
+            ContentValues values = new ContentValues();
+            values.put(ListingEntry.COLUMN_NAME_LAST_ACCESS, System.currentTimeMillis());
+            db.update(ListingEntry.TABLE_NAME, values, selection, selectionArgs);
+        }
+
+        return cachedListing;
+    }
+
+    @Override
+    protected void onPostExecute(CachedListing cachedListing) {
+        super.onPostExecute(cachedListing);
+        mListener.onListingCacheRead(mUdn, mContainerId, cachedListing);
+    }
+}
@@ -0,0 +1,147 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR 'CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.stephenmcgruer.simpleupnp.database;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.AsyncTask;
+import android.util.Log;
+
+import com.stephenmcgruer.simpleupnp.cling.CompactItem;
+import com.stephenmcgruer.simpleupnp.cling.ContainerListing;
+import com.stephenmcgruer.simpleupnp.database.ListingCacheContract.ListingEntry;
+
+import org.fourthline.cling.support.contentdirectory.DIDLParser;
+import org.fourthline.cling.support.model.DIDLContent;
+import org.fourthline.cling.support.model.container.Container;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Persists a container listing, evicting the least recently used listings if the cache grows beyond its size cap.
+ */
+public class ListingCacheWriteTask extends AsyncTask<Void, Void, Void> {
+    private static final String TAG = "ListingCacheWriteTask";
+
+    // Upper bound on the total size of the persisted DIDL documents.
+    static final long MAX_CACHE_SIZE_BYTES = 16 * 1024 * 1024;
+
+    // Listings larger than this are not persisted at all, so one huge container cannot flush everything else.
+    static final long MAX_ENTRY_SIZE_BYTES = 2 * 1024 * 1024;
+
+    private final SQLiteOpenHelper mDbHelper;
+    private final String mUdn;
+    private final String mContainerId;
+    private final long mSystemUpdateId;
+
+    // Snapshot of the listing, as it may continue to grow on the main thread while this task runs.
+    private final List<Container> mContainers;
+    private final List<CompactItem> mItems;
+    private final long mNextStartingIndex;
+    private final long mTotalMatches;
+    private final boolean mHasMorePages;
+    private final boolean mSorted;
+
+    public ListingCacheWriteTask(SQLiteOpenHelper dbHelper, String udn, String containerId, long systemUpdateId,
+                                 ContainerListing listing) {
+        mDbHelper = dbHelper;
+        mUdn = udn;
+        mContainerId = containerId;
+        mSystemUpdateId = systemUpdateId;
+        mContainers = new ArrayList<>(listing.getContainers());
+        mItems = new ArrayList<>(listing.getItems());
+        mNextStartingIndex = listing.getNextStartingIndex();
+        mTotalMatches = listing.getTotalMatches();
+        mHasMorePages = listing.hasMorePages();
+        mSorted = listing.isSorted();
+    }
+
+    @Override
+    protected Void doInBackground(Void... params) {
+        DIDLContent didl = new DIDLContent();
+        for (Container container : mContainers) {
+            didl.addContainer(container);
+        }
+        for (CompactItem item : mItems) {
+            didl.addItem(item.toItem());
+        }
+
+        String didlXml;
+        try {
+            didlXml = new DIDLParser().generate(didl);
+        } catch (Exception e) {
+            Log.w(TAG, "doInBackground: unable to serialize listing for " + mContainerId, e);
+            return null;
+        }
+
+        long sizeBytes = 2L * didlXml.length();
+        if (sizeBytes > MAX_ENTRY_SIZE_BYTES) {
+            Log.d(TAG, "doInBackground: not persisting " + mContainerId + ", " + sizeBytes + " bytes");
+            return null;
+        }
+
+        ContentValues values = new ContentValues();
+        values.put(ListingEntry.COLUMN_NAME_UDN, mUdn);
+        values.put(ListingEntry.COLUMN_NAME_CONTAINER_ID, mContainerId);
+        values.put(ListingEntry.COLUMN_NAME_SYSTEM_UPDATE_ID, mSystemUpdateId);
+        values.put(ListingEntry.COLUMN_NAME_DIDL, didlXml);
+        values.put(ListingEntry.COLUMN_NAME_NEXT_STARTING_INDEX, mNextStartingIndex);
+        values.put(ListingEntry.COLUMN_NAME_TOTAL_MATCHES, mTotalMatches);
+        values.put(ListingEntry.COLUMN_NAME_HAS_MORE_PAGES, mHasMorePages ? 1 : 0);
+        values.put(ListingEntry.COLUMN_NAME_SORTED, mSorted ? 1 : 0);
+        values.put(ListingEntry.COLUMN_NAME_SIZE_BYTES, sizeBytes);
+        values.put(ListingEntry.COLUMN_NAME_LAST_ACCESS, System.currentTimeMillis());
+
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            db.replace(ListingEntry.TABLE_NAME, null, values);
+            evictLeastRecentlyUsed(db);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return null;
+    }
+
+    /**
+     * Deletes the least recently used listings until the total size is within MAX_CACHE_SIZE_BYTES.
+     */
+    private static void evictLeastRecentlyUsed(SQLiteDatabase db) {
+        String[] projection = { "rowid", ListingEntry.COLUMN_NAME_SIZE_BYTES };
+        Cursor cursor = db.query(ListingEntry.TABLE_NAME, projection, null, null, null, null,
+                ListingEntry.COLUMN_NAME_LAST_ACCESS + " DESC");
+
+        List<String> toEvict = new ArrayList<>();
+        long totalSizeBytes = 0;
+        while (cursor.moveToNext()) {
+            totalSizeBytes += cursor.getLong(1);
+            if (totalSizeBytes > MAX_CACHE_SIZE_BYTES) {
+                toEvict.add(Long.toString(cursor.getLong(0)));
+            }
+        }
+        cursor.close();
+
+        for (String rowId : toEvict) {
+            db.delete(ListingEntry.TABLE_NAME, "rowid = ?", new String[] { rowId });
+        }
+        if (!toEvict.isEmpty()) {
+            Log.d(TAG, "evictLeastRecentlyUsed: evicted " + toEvict.size() + " listings");
+        }
+    }
+}
@@ -16,30 +16,83 @@ package com.stephenmcgruer.simpleupnp.fragments;
 
 import android.support.annotation.NonNull;
 
+import com.stephenmcgruer.simpleupnp.cling.FilterKeys;
+
 import org.fourthline.cling.support.model.container.Container;
 
 class ContainerWrapper {
     static final String ROOT_CONTAINER_ID = "0";
-    static final ContainerWrapper ROOT_CONTAINER = new ContainerWrapper(null, ROOT_CONTAINER_ID, "", true);
+    static final ContainerWrapper ROOT_CONTAINER =
+            new ContainerWrapper(null, ROOT_CONTAINER_ID, "", null, true, false, null, "");
+
+    // Prefixes of the ids given to search results, which are shown like a container.
+    private static final String SEARCH_CONTAINER_ID_PREFIX = "search:";
+    private static final String LOCAL_SEARCH_CONTAINER_ID_PREFIX = "local-search:";
+
+    // Value used by getChildCount() when the server did not report the number of children.
+    static final int UNKNOWN_CHILD_COUNT = -1;
 
     private final String mTitle;
     private final String mId;
     private final String mParentId;
+    private final Integer mChildCount;
     private final boolean mIsRootContainer;
+    private final boolean mIsSearch;
+    private final String mSearchCriteria;
+    // The title in the form used by ListItemFilter, or null if it has not been built.
+    private final String mFilterKey;
 
     ContainerWrapper(@NonNull Container container) {
-        this(container.getTitle(), container.getId(), container.getParentID(), false);
+        this(container.getTitle(), container.getId(), container.getParentID(), container.getChildCount(), false,
+                false, null, FilterKeys.forContainer(container));
     }
 
     ContainerWrapper(String title, String id, String parentId) {
-        this(title, id, parentId, false);
+        this(title, id, parentId, null, false, false, null, null);
     }
 
-    private ContainerWrapper(String title, String id, String parentId, boolean isRootContainer) {
+    private ContainerWrapper(String title, String id, String parentId, Integer childCount,
+                             boolean isRootContainer, boolean isSearch, String searchCriteria, String filterKey) {
         mTitle = title;
         mId = id;
         mParentId = parentId;
+        mChildCount = childCount;
         mIsRootContainer = isRootContainer;
+        mIsSearch = isSearch;
+        mSearchCriteria = searchCriteria;
+        mFilterKey = filterKey;
+    }
+
+    /**
+     * Creates a pseudo-container holding the results of a ContentDirectory Search.
+     *
+     * @param query The text the user searched for.
+     * @param searchCriteria The Search criteria for the query.
+     * @param parentId The container to return to when leaving the search results.
+     */
+    static ContainerWrapper forSearch(String query, String searchCriteria, String parentId) {
+        return new ContainerWrapper(query, SEARCH_CONTAINER_ID_PREFIX + searchCriteria, parentId, null, false, true,
+                searchCriteria, null);
+    }
+
+    /**
+     * Creates a pseudo-container holding the results of searching the local library index.
+     *
+     * @param query The text the user searched for.
+     * @param parentId The container to return to when leaving the search results.
+     */
+    static ContainerWrapper forLocalSearch(String query, String parentId) {
+        return new ContainerWrapper(query, LOCAL_SEARCH_CONTAINER_ID_PREFIX + query, parentId, null, false, true,
+                null, null);
+    }
+
+    /**
+     * @return A copy of this container with a different parent, e.g. so that leaving a container found by a search
+     *     returns to the search results.
+     */
+    ContainerWrapper withParentId(String parentId) {
+        return new ContainerWrapper(mTitle, mId, parentId, mChildCount, mIsRootContainer, mIsSearch,
+                mSearchCriteria, mFilterKey);
     }
 
     String getId() {
@@ -50,6 +103,36 @@ class ContainerWrapper {
         return mParentId;
     }
 
+    /**
+     * @return The childCount reported by the server for this container, or UNKNOWN_CHILD_COUNT if it was not given.
+     */
+    int getChildCount() {
+        return mChildCount != null ? mChildCount : UNKNOWN_CHILD_COUNT;
+    }
+
+    boolean isSearch() {
+        return mIsSearch;
+    }
+
+    /**
+     * @return The Search criteria for a server search pseudo-container, or null for a real container or local search.
+     */
+    String getSearchCriteria() {
+        return mSearchCriteria;
+    }
+
+    boolean isLocalSearch() {
+        return mIsSearch && mSearchCriteria == null;
+    }
+
+    /**
+     * @return The title in the form used by ListItemFilter, built where the container was parsed, or null for
+     *     containers that were not found in a listing.
+     */
+    String getFilterKey() {
+        return mFilterKey;
+    }
+
     String getTitle() {
         if (mIsRootContainer)
             throw new UnsupportedOperationException("The root container does not have a title");
@@ -0,0 +1,213 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR 'CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.stephenmcgruer.simpleupnp.fragments;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.drawable.Drawable;
+import android.support.v4.content.ContextCompat;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.view.MotionEvent;
+import android.widget.SectionIndexer;
+
+import com.stephenmcgruer.simpleupnp.R;
+
+/**
+ * A draggable scroll thumb for the file browser list, as recyclerview-v7 25.3 has no fast scroller of its own.
+ *
+ * The thumb is shown along the right edge while the list scrolls, if the list is several screens tall. Dragging it
+ * jumps straight to the matching row. If the adapter has a section index (see SectionIndexer), dragging jumps between
+ * section starts instead and the current section's label is shown beside the thumb.
+ */
+class FastScroller extends RecyclerView.ItemDecoration implements RecyclerView.OnItemTouchListener {
+    // Lists shorter than this many screens are quick enough to scroll by hand.
+    private static final int MIN_SCREENS = 4;
+
+    private static final long HIDE_DELAY_MILLIS = 1500;
+
+    private static final int[] PRESSED_STATE = { android.R.attr.state_pressed };
+    private static final int[] EMPTY_STATE = {};
+
+    private final RecyclerView mRecyclerView;
+    private final LinearLayoutManager mLayoutManager;
+    private final Drawable mThumb;
+    private final Drawable mTrack;
+    private final int mTouchWidth;
+    private final int mLabelPadding;
+    private final Paint mLabelPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint mLabelBackgroundPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Rect mLabelBounds = new Rect();
+
+    private boolean mVisible = false;
+    private boolean mDragging = false;
+    // Where the thumb is while it is being dragged, as a fraction of the list's height.
+    private float mDragFraction = 0;
+    // The label of the section being shown while dragging, or null if there is no section index.
+    private String mLabel;
+
+    private final Runnable mHideRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mVisible = false;
+            mRecyclerView.invalidate();
+        }
+    };
+
+    private final RecyclerView.OnScrollListener mScrollListener = new RecyclerView.OnScrollListener() {
+        @Override
+        public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+            if (dy != 0) {
+                show();
+            }
+        }
+    };
+
+    FastScroller(RecyclerView recyclerView, LinearLayoutManager layoutManager) {
+        mRecyclerView = recyclerView;
+        mLayoutManager = layoutManager;
+
+        Context context = recyclerView.getContext();
+        Resources resources = context.getResources();
+        mThumb = ContextCompat.getDrawable(context, R.drawable.fast_scroll_thumb);
+        mTrack = ContextCompat.getDrawable(context, R.drawable.fast_scroll_track);
+        mTouchWidth = resources.getDimensionPixelSize(R.dimen.fast_scroll_touch_width);
+        mLabelPadding = resources.getDimensionPixelSize(R.dimen.fast_scroll_label_padding);
+        mLabelPaint.setTextSize(resources.getDimension(R.dimen.fast_scroll_label_text_size));
+        mLabelPaint.setColor(ContextCompat.getColor(context, android.R.color.white));
+        mLabelBackgroundPaint.setColor(ContextCompat.getColor(context, R.color.colorAccent));
+
+        recyclerView.addItemDecoration(this);
+        recyclerView.addOnItemTouchListener(this);
+        recyclerView.addOnScrollListener(mScrollListener);
+    }
+
+    @Override
+    public void onDrawOver(Canvas canvas, RecyclerView parent, RecyclerView.State state) {
+        if (!mVisible || !isLongList())
+            return;
+
+        int width = parent.getWidth();
+        int height = parent.getHeight();
+        int thumbWidth = mThumb.getIntrinsicWidth();
+        int thumbHeight = mThumb.getIntrinsicHeight();
+
+        mTrack.setBounds(width - thumbWidth, 0, width, height);
+        mTrack.draw(canvas);
+
+        int thumbTop = (int) (getThumbFraction() * (height - thumbHeight));
+        mThumb.setState(mDragging ? PRESSED_STATE : EMPTY_STATE);
+        mThumb.setBounds(width - thumbWidth, thumbTop, width, thumbTop + thumbHeight);
+        mThumb.draw(canvas);
+
+        if (!mDragging || mLabel == null)
+            return;
+
+        // A square bubble to the left of the thumb, vertically centred on it but kept on screen.
+        mLabelPaint.getTextBounds(mLabel, 0, mLabel.length(), mLabelBounds);
+        int size = Math.max(mLabelBounds.width(), mLabelBounds.height()) + 2 * mLabelPadding;
+        int right = width - mTouchWidth;
+        int top = Math.max(0, Math.min(height - size, thumbTop + thumbHeight / 2 - size / 2));
+        canvas.drawRect(right - size, top, right, top + size, mLabelBackgroundPaint);
+        canvas.drawText(mLabel, right - size / 2 - mLabelBounds.exactCenterX(),
+                top + size / 2 - mLabelBounds.exactCenterY(), mLabelPaint);
+    }
+
+    @Override
+    public boolean onInterceptTouchEvent(RecyclerView recyclerView, MotionEvent event) {
+        if (event.getActionMasked() != MotionEvent.ACTION_DOWN || !mVisible || !isLongList()
+                || event.getX() < recyclerView.getWidth() - mTouchWidth)
+            return false;
+
+        mDragging = true;
+        mRecyclerView.removeCallbacks(mHideRunnable);
+        scrollTo(event.getY());
+        return true;
+    }
+
+    @Override
+    public void onTouchEvent(RecyclerView recyclerView, MotionEvent event) {
+        if (!mDragging)
+            return;
+
+        switch (event.getActionMasked()) {
+            case MotionEvent.ACTION_MOVE:
+                scrollTo(event.getY());
+                break;
+            case MotionEvent.ACTION_UP:
+            case MotionEvent.ACTION_CANCEL:
+                mDragging = false;
+                mLabel = null;
+                show();
+                break;
+        }
+    }
+
+    @Override
+    public void onRequestDisallowInterceptTouchEvent(boolean disallowIntercept) {
+    }
+
+    private void show() {
+        mVisible = true;
+        mRecyclerView.removeCallbacks(mHideRunnable);
+        if (!mDragging) {
+            mRecyclerView.postDelayed(mHideRunnable, HIDE_DELAY_MILLIS);
+        }
+        mRecyclerView.invalidate();
+    }
+
+    private boolean isLongList() {
+        return mRecyclerView.computeVerticalScrollRange() > MIN_SCREENS * mRecyclerView.getHeight();
+    }
+
+    /**
+     * @return How far down the list the thumb should be drawn, from 0 to 1.
+     */
+    private float getThumbFraction() {
+        if (mDragging)
+            return mDragFraction;
+
+        int scrollable = mRecyclerView.computeVerticalScrollRange() - mRecyclerView.computeVerticalScrollExtent();
+        return scrollable > 0 ? Math.min(1f, (float) mRecyclerView.computeVerticalScrollOffset() / scrollable) : 0;
+    }
+
+    /**
+     * Jumps to the row, or the start of the section, under the given point of the thumb's track.
+     */
+    private void scrollTo(float y) {
+        mDragFraction = Math.max(0f, Math.min(1f, y / mRecyclerView.getHeight()));
+
+        RecyclerView.Adapter adapter = mRecyclerView.getAdapter();
+        int itemCount = adapter != null ? adapter.getItemCount() : 0;
+        if (itemCount == 0)
+            return;
+
+        int position;
+        Object[] sections = adapter instanceof SectionIndexer ? ((SectionIndexer) adapter).getSections() : null;
+        if (sections != null && sections.length > 0) {
+            int section = Math.min(sections.length - 1, (int) (mDragFraction * sections.length));
+            position = ((SectionIndexer) adapter).getPositionForSection(section);
+            mLabel = sections[section].toString();
+        } else {
+            position = Math.min(itemCount - 1, (int) (mDragFraction * itemCount));
+            mLabel = null;
+        }
+        mLayoutManager.scrollToPositionWithOffset(position, 0);
+        mRecyclerView.invalidate();
+    }
+}
@@ -14,191 +14,555 @@
 
 package com.stephenmcgruer.simpleupnp.fragments;
 
-import android.app.Activity;
 import android.app.AlertDialog;
 import android.content.Context;
 import android.content.DialogInterface;
+import android.os.AsyncTask;
 import android.support.annotation.NonNull;
+import android.support.v7.util.DiffUtil;
+import android.support.v7.widget.RecyclerView;
 import android.util.Log;
+import android.view.Choreographer;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.ArrayAdapter;
 import android.widget.Button;
 import android.widget.CheckBox;
 import android.widget.CompoundButton;
 import android.widget.EditText;
-import android.widget.RelativeLayout;
+import android.widget.SectionIndexer;
 import android.widget.TextView;
 
 import com.stephenmcgruer.simpleupnp.R;
 
-import org.fourthline.cling.support.model.item.Item;
+import com.stephenmcgruer.simpleupnp.cling.CompactItem;
+import com.stephenmcgruer.simpleupnp.cling.ListingSorter;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
-
-class FileBrowserAdapter extends ArrayAdapter<FileBrowserAdapter.ListItem>
-        implements View.OnClickListener, CompoundButton.OnCheckedChangeListener {
+import java.util.Set;
+
+/**
+ * RecyclerView adapter for the rows of the file browser.
+ *
+ * Rows have stable ids derived from their container or item id. Replacing the whole list (e.g. on filtering) is done
+ * by diffing the old and new rows on a background thread and applying the minimal set of changes, or by swapping the
+ * rows wholesale if the lists have none in common (e.g. on navigation), while pages of children are appended directly.
+ *
+ * Large sorted listings also have a section index, which is exposed through SectionIndexer for FastScroller.
+ */
+class FileBrowserAdapter extends RecyclerView.Adapter<FileBrowserAdapter.ViewHolder> implements SectionIndexer {
     private static final String TAG = "FileBrowserAdapter";
 
+    private static final long PREVIOUS_CONTAINER_ITEM_ID = 0;
+
     interface OnItemClickListener {
-        void playItems(List<Item> items);
+        void onListItemClick(ListItem listItem);
+        void playContainer(String containerId);
         void addBookmark(String bookmarkName, String containerId);
         void removeBookmark(String containerId);
+
+        /**
+         * Called once a list passed to setItems() has been applied and its rows can be looked up by position.
+         */
+        void onListItemsReplaced();
     }
 
     private final OnItemClickListener mListener;
-    private boolean mProgrammaticallyModifyingCheckboxes = false;
+    private final Context mContext;
+
+    // The rows currently shown. Should only be accessed on the main thread, like the rest of the adapter.
+    private List<ListItem> mItems = new ArrayList<>();
+
+    // Number of placeholder rows shown after the loaded rows for children that have not been fetched yet.
+    private int mPendingCount = 0;
+
+    // Position of each container row, keyed by container id, so that asynchronous results can find their row without
+    // scanning the list.
+    private final Map<String, Integer> mContainerPositions = new HashMap<>();
+
+    // Stable ids of the shown rows, keyed by getKey().
+    private Map<String, Long> mItemIds = new HashMap<>();
+    private long mNextItemId = PREVIOUS_CONTAINER_ITEM_ID + 1;
+
+    // A replacement list that is being diffed against the shown rows, and rows appended to it since the diff started.
+    private DiffTask mPendingDiff;
+    private final List<ListItem> mPendingAppends = new ArrayList<>();
+
+    // Labels and first positions of the sections of the rows, if the listing has a section index.
+    private String[] mSectionLabels = new String[0];
+    private int[] mSectionPositions = new int[0];
 
-    FileBrowserAdapter(OnItemClickListener listener, Context context, int resource) {
-        super(context, resource);
+    // Rows whose state has changed since the last frame.
+    private final Set<ListItem> mChangedItems = new LinkedHashSet<>();
+    private boolean mFrameNotifyPending = false;
+    private final Choreographer.FrameCallback mFrameNotifyCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mFrameNotifyPending = false;
+            for (ListItem listItem : mChangedItems) {
+                // Rows that are not shown (e.g. because they are part of a list still being diffed) are bound with
+                // their latest state when they are added.
+                Integer position = mContainerPositions.get(listItem.getContainer().getId());
+                if (position != null && mItems.get(position) == listItem) {
+                    notifyItemChanged(position);
+                }
+            }
+            mChangedItems.clear();
+        }
+    };
+
+    FileBrowserAdapter(OnItemClickListener listener, Context context) {
         mListener = listener;
+        mContext = context;
+        setHasStableIds(true);
     }
 
-    @NonNull
     @Override
-    public View getView(int position, View convertView, @NonNull ViewGroup parent) {
-        View rowView = convertView;
-        if (rowView == null) {
-            LayoutInflater inflator = (LayoutInflater)
-                    getContext().getSystemService(Activity.LAYOUT_INFLATER_SERVICE);
-            rowView = inflator.inflate(R.layout.fragment_file_browser_item, parent, false);
-            ViewHolder holder = new ViewHolder();
-            holder.text = (TextView) rowView.findViewById(R.id.file_browser_list_item_text);
-            holder.checkBox = (CheckBox) rowView.findViewById(R.id.file_browser_list_item_favorite);
-            holder.button = (Button) rowView.findViewById(R.id.file_browser_list_item_button);
-            rowView.setTag(holder);
-        }
-
-        ViewHolder holder = (ViewHolder) rowView.getTag();
-        ListItem listItem = getItem(position);
-        if (listItem != null) {
-            holder.position = position;
-            holder.text.setText(listItem.toString());
+    public int getItemCount() {
+        return mItems.size() + mPendingCount;
+    }
 
-            setModifyingCheckboxes(true);
-            holder.checkBox.setVisibility(
-                    !listItem.isPreviousContainerListItem() && listItem.holdsContainer() ? View.VISIBLE : View.GONE);
-            holder.checkBox.setChecked(listItem.isBookmarked());
-            holder.checkBox.setOnCheckedChangeListener(this);
-            setModifyingCheckboxes(false);
+    @Override
+    public long getItemId(int position) {
+        if (position >= mItems.size()) {
+            // Placeholder rows are only identified by how far past the loaded rows they are. Counted down from -2, as
+            // -1 is RecyclerView.NO_ID.
+            return -2 - (position - mItems.size());
+        }
+        ListItem listItem = mItems.get(position);
+        if (listItem.isPreviousContainerListItem()) {
+            return PREVIOUS_CONTAINER_ITEM_ID;
+        }
+        return getStableId(mItemIds, listItem);
+    }
 
-            holder.button.setText(R.string.play_button_text);
-            holder.button.setVisibility(listItem.hasMediaItems() ? View.VISIBLE : View.GONE);
-            holder.button.setOnClickListener(this);
+    /**
+     * @return The row at the given position, or ListItem.LOADING_LIST_ITEM for a placeholder row.
+     */
+    ListItem getItem(int position) {
+        if (position >= mItems.size()) {
+            return ListItem.LOADING_LIST_ITEM;
         }
+        return mItems.get(position);
+    }
 
-        return rowView;
+    /**
+     * @return The number of rows that hold a loaded ListItem, i.e. excluding placeholder rows.
+     */
+    int getLoadedCount() {
+        return mItems.size();
     }
 
-    @Override
-    public void onClick(View view) {
-        if (view.getId() != R.id.file_browser_list_item_button) {
-            throw new IllegalStateException("Unhandled view in onClick: " + view.toString());
+    /**
+     * Sets the number of placeholder rows to display after the loaded rows.
+     */
+    void setPendingCount(int pendingCount) {
+        if (pendingCount == mPendingCount)
+            return;
+
+        int previousPendingCount = mPendingCount;
+        mPendingCount = pendingCount;
+        if (pendingCount > previousPendingCount) {
+            notifyItemRangeInserted(mItems.size() + previousPendingCount, pendingCount - previousPendingCount);
+        } else {
+            notifyItemRangeRemoved(mItems.size() + pendingCount, previousPendingCount - pendingCount);
+        }
+    }
+
+    /**
+     * @return The row holding the given container, or null if it is not in the list. If a replacement list is being
+     *     diffed, the row is looked up in that instead, so that updates are not lost when it is applied.
+     */
+    ListItem getContainerItem(String containerId) {
+        if (mPendingDiff != null) {
+            return mPendingDiff.mNewContainerItems.get(containerId);
+        }
+        Integer position = mContainerPositions.get(containerId);
+        return position != null ? mItems.get(position) : null;
+    }
+
+    /**
+     * Notifies the list that a container row has changed in time for the next frame. Any number of calls before then
+     * result in a single pass of updates, so this should be used for changes that arrive in bursts, such as
+     * asynchronous results for individual rows.
+     */
+    void notifyItemChangedOnNextFrame(ListItem listItem) {
+        if (!listItem.holdsContainer())
+            throw new IllegalArgumentException("Only container rows can be updated on the next frame");
+
+        mChangedItems.add(listItem);
+        if (mFrameNotifyPending)
+            return;
+        mFrameNotifyPending = true;
+        Choreographer.getInstance().postFrameCallback(mFrameNotifyCallback);
+    }
+
+    /**
+     * Replaces all of the rows. The change is diffed against the current rows on a background thread, and
+     * OnItemClickListener.onListItemsReplaced() is called once it has been applied. Placeholder rows are removed.
+     */
+    void setItems(List<ListItem> listItems) {
+        if (mPendingDiff != null) {
+            mPendingDiff.cancel(false);
         }
+        mPendingAppends.clear();
+        setPendingCount(0);
 
-        RelativeLayout parent = (RelativeLayout) view.getParent();
-        ViewHolder holder = (ViewHolder) parent.getTag();
-        ListItem listItem = getItem(holder.position);
-        if (mListener != null && listItem != null) {
-            mListener.playItems(listItem.getMediaItems());
+        mPendingDiff = new DiffTask(new ArrayList<>(mItems), new ArrayList<>(listItems), new HashMap<>(mItemIds));
+        // Diffing should not have to wait behind database tasks on the default serial executor.
+        mPendingDiff.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    /**
+     * Sets the section index of the rows.
+     *
+     * @param sections The sections, or null to clear the index.
+     * @param firstPosition The position of the row for the first child, which section positions are relative to.
+     */
+    void setSections(List<ListingSorter.Section> sections, int firstPosition) {
+        int count = sections != null ? sections.size() : 0;
+        mSectionLabels = new String[count];
+        mSectionPositions = new int[count];
+        for (int i = 0; i < count; i++) {
+            mSectionLabels[i] = sections.get(i).getLabel();
+            mSectionPositions[i] = firstPosition + sections.get(i).getPosition();
         }
     }
 
     @Override
-    public void onCheckedChanged(final CompoundButton view, boolean isChecked) {
-        if (mProgrammaticallyModifyingCheckboxes)
+    public Object[] getSections() {
+        return mSectionLabels;
+    }
+
+    @Override
+    public int getPositionForSection(int sectionIndex) {
+        if (mSectionPositions.length == 0)
+            return 0;
+        return mSectionPositions[Math.max(0, Math.min(sectionIndex, mSectionPositions.length - 1))];
+    }
+
+    @Override
+    public int getSectionForPosition(int position) {
+        int index = Arrays.binarySearch(mSectionPositions, position);
+        // Otherwise the insertion point is just after the section holding the position.
+        return index >= 0 ? index : Math.max(0, -index - 2);
+    }
+
+    /**
+     * Appends rows after the loaded rows.
+     */
+    void addAll(List<ListItem> listItems) {
+        if (listItems.isEmpty())
             return;
 
-        if (mListener == null)
+        if (mPendingDiff != null) {
+            mPendingAppends.addAll(listItems);
             return;
+        }
 
-        RelativeLayout parent = (RelativeLayout) view.getParent();
-        final ViewHolder holder = (ViewHolder) parent.getTag();
-        final ListItem listItem = getItem(holder.position);
-        if (listItem == null || !listItem.holdsContainer()) {
+        int position = mItems.size();
+        for (ListItem listItem : listItems) {
+            indexContainer(listItem, position++);
+        }
+        mItems.addAll(listItems);
+        notifyItemRangeInserted(position - listItems.size(), listItems.size());
+    }
+
+    private void onDiffFinished(DiffTask diffTask, DiffUtil.DiffResult diffResult) {
+        if (diffTask != mPendingDiff)
             return;
+        mPendingDiff = null;
+
+        mItems = diffTask.mNewItems;
+        mItemIds = diffTask.mNewItemIds;
+        mContainerPositions.clear();
+        for (int position = 0; position < mItems.size(); position++) {
+            indexContainer(mItems.get(position), position);
+        }
+        if (diffResult != null) {
+            diffResult.dispatchUpdatesTo(this);
+        } else {
+            notifyDataSetChanged();
         }
 
-        if (isChecked) {
-            AlertDialog.Builder dialogBuilder = new AlertDialog.Builder(getContext());
-            dialogBuilder.setTitle(R.string.bookmark_name_dialog_title);
+        List<ListItem> appends = new ArrayList<>(mPendingAppends);
+        mPendingAppends.clear();
+        addAll(appends);
+
+        if (mListener != null) {
+            mListener.onListItemsReplaced();
+        }
+    }
 
-            final EditText inputEditText = new EditText(getContext());
-            inputEditText.setHint(listItem.getContainer().getTitle());
-            inputEditText.setSelectAllOnFocus(true);
-            dialogBuilder.setView(inputEditText);
+    private void indexContainer(ListItem listItem, int position) {
+        if (listItem.holdsContainer()) {
+            mContainerPositions.put(listItem.getContainer().getId(), position);
+        }
+    }
 
-            dialogBuilder.setPositiveButton(R.string.bookmark_name_dialog_ok_button_text,
-                    new DialogInterface.OnClickListener() {
-                @Override
-                public void onClick(DialogInterface dialog, int which) {
-                    Log.d(TAG, "onClick: OK button pressed");
-                    String bookmarkName = inputEditText.getText().toString();
-                    if (bookmarkName.isEmpty()) {
-                        bookmarkName = listItem.getContainer().getTitle();
+    private long getStableId(Map<String, Long> itemIds, ListItem listItem) {
+        String key = listItem.getKey();
+        Long id = itemIds.get(key);
+        if (id == null) {
+            id = mNextItemId++;
+            itemIds.put(key, id);
+        }
+        return id;
+    }
+
+    @Override
+    public ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        View rowView = LayoutInflater.from(parent.getContext())
+                .inflate(R.layout.fragment_file_browser_item, parent, false);
+        return new ViewHolder(rowView);
+    }
+
+    @Override
+    public void onBindViewHolder(ViewHolder holder, int position) {
+        ListItem listItem = getItem(position);
+        if (listItem.isLoadingListItem()) {
+            holder.text.setText(R.string.loading_list_item_text);
+        } else {
+            holder.text.setText(listItem.toString());
+        }
+
+        holder.bindingCheckBox = true;
+        holder.checkBox.setVisibility(
+                listItem.holdsContainer() ? View.VISIBLE : View.GONE);
+        holder.checkBox.setChecked(listItem.isBookmarked());
+        holder.bindingCheckBox = false;
+
+        holder.button.setText(R.string.play_button_text);
+        holder.button.setVisibility(listItem.hasMediaItems() ? View.VISIBLE : View.GONE);
+    }
+
+    class ViewHolder extends RecyclerView.ViewHolder
+            implements View.OnClickListener, CompoundButton.OnCheckedChangeListener {
+        final TextView text;
+        final CheckBox checkBox;
+        final Button button;
+
+        // Set while the check box is updated from onBindViewHolder(), so that it is not mistaken for a user change.
+        boolean bindingCheckBox = false;
+
+        ViewHolder(View rowView) {
+            super(rowView);
+            text = (TextView) rowView.findViewById(R.id.file_browser_list_item_text);
+            checkBox = (CheckBox) rowView.findViewById(R.id.file_browser_list_item_favorite);
+            button = (Button) rowView.findViewById(R.id.file_browser_list_item_button);
+
+            rowView.setOnClickListener(this);
+            button.setOnClickListener(this);
+            checkBox.setOnCheckedChangeListener(this);
+        }
+
+        private ListItem getBoundItem() {
+            int position = getAdapterPosition();
+            if (position == RecyclerView.NO_POSITION || position >= mItems.size())
+                return null;
+            return mItems.get(position);
+        }
+
+        @Override
+        public void onClick(View view) {
+            ListItem listItem = getBoundItem();
+            if (mListener == null || listItem == null)
+                return;
+
+            if (view == button) {
+                mListener.playContainer(listItem.getContainer().getId());
+            } else {
+                mListener.onListItemClick(listItem);
+            }
+        }
+
+        @Override
+        public void onCheckedChanged(final CompoundButton view, boolean isChecked) {
+            if (bindingCheckBox)
+                return;
+
+            if (mListener == null)
+                return;
+
+            final ListItem listItem = getBoundItem();
+            if (listItem == null || !listItem.holdsContainer()) {
+                return;
+            }
+
+            if (isChecked) {
+                AlertDialog.Builder dialogBuilder = new AlertDialog.Builder(mContext);
+                dialogBuilder.setTitle(R.string.bookmark_name_dialog_title);
+
+                final EditText inputEditText = new EditText(mContext);
+                inputEditText.setHint(listItem.getContainer().getTitle());
+                inputEditText.setSelectAllOnFocus(true);
+                dialogBuilder.setView(inputEditText);
+
+                dialogBuilder.setPositiveButton(R.string.bookmark_name_dialog_ok_button_text,
+                        new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        Log.d(TAG, "onClick: OK button pressed");
+                        String bookmarkName = inputEditText.getText().toString();
+                        if (bookmarkName.isEmpty()) {
+                            bookmarkName = listItem.getContainer().getTitle();
+                        }
+                        mListener.addBookmark(bookmarkName, listItem.getContainer().getId());
                     }
-                    mListener.addBookmark(bookmarkName, listItem.getContainer().getId());
+                });
+                dialogBuilder.setNegativeButton(R.string.bookmark_name_dialog_cancel_button_text,
+                        new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        Log.d(TAG, "onClick: Cancel button pressed");
+                        bindingCheckBox = true;
+                        view.setChecked(false);
+                        bindingCheckBox = false;
+                    }
+                });
+                dialogBuilder.show();
+            } else {
+                mListener.removeBookmark(listItem.getContainer().getId());
+            }
+        }
+    }
+
+    /**
+     * Computes the changes between the shown rows and a replacement list off the main thread.
+     */
+    private class DiffTask extends AsyncTask<Void, Void, DiffUtil.DiffResult> {
+        private final List<ListItem> mOldItems;
+        private final List<ListItem> mNewItems;
+        private final Map<String, Long> mNewItemIds = new HashMap<>();
+        private final Map<String, ListItem> mNewContainerItems = new HashMap<>();
+        // Whether no row is in both lists, e.g. when a different folder is shown, in which case there is nothing to
+        // gain from diffing them.
+        private final boolean mDisjoint;
+
+        DiffTask(List<ListItem> oldItems, List<ListItem> newItems, Map<String, Long> oldItemIds) {
+            mOldItems = oldItems;
+            mNewItems = newItems;
+
+            for (ListItem listItem : newItems) {
+                // Keep the ids of rows that are in both lists, and drop those that are going away.
+                String key = listItem.getKey();
+                if (oldItemIds.containsKey(key)) {
+                    mNewItemIds.put(key, oldItemIds.get(key));
+                }
+                if (listItem.holdsContainer()) {
+                    mNewContainerItems.put(listItem.getContainer().getId(), listItem);
+                }
+            }
+            mDisjoint = mNewItemIds.isEmpty();
+        }
+
+        /**
+         * @return The changes between the lists, or null if they are disjoint and should be swapped wholesale.
+         */
+        @Override
+        protected DiffUtil.DiffResult doInBackground(Void... params) {
+            if (mDisjoint)
+                return null;
+
+            // Rows are in listing order, so never move; detecting moves would cost time quadratic in the changes.
+            return DiffUtil.calculateDiff(new DiffUtil.Callback() {
+                @Override
+                public int getOldListSize() {
+                    return mOldItems.size();
                 }
-            });
-            dialogBuilder.setNegativeButton(R.string.bookmark_name_dialog_cancel_button_text,
-                    new DialogInterface.OnClickListener() {
+
                 @Override
-                public void onClick(DialogInterface dialog, int which) {
-                    Log.d(TAG, "onClick: Cancel button pressed");
-                    setModifyingCheckboxes(true);
-                    view.setChecked(false);
-                    setModifyingCheckboxes(false);
+                public int getNewListSize() {
+                    return mNewItems.size();
                 }
-            });
-            dialogBuilder.show();
-        } else {
-            mListener.removeBookmark(listItem.getContainer().getId());
+
+                @Override
+                public boolean areItemsTheSame(int oldPosition, int newPosition) {
+                    return mOldItems.get(oldPosition).getKey().equals(mNewItems.get(newPosition).getKey());
+                }
+
+                @Override
+                public boolean areContentsTheSame(int oldPosition, int newPosition) {
+                    return mOldItems.get(oldPosition).hasSameContents(mNewItems.get(newPosition));
+                }
+            }, false);
         }
-    }
 
-    private void setModifyingCheckboxes(boolean modifyingCheckboxes) {
-        mProgrammaticallyModifyingCheckboxes = modifyingCheckboxes;
+        @Override
+        protected void onPostExecute(DiffUtil.DiffResult diffResult) {
+            onDiffFinished(this, diffResult);
+        }
     }
 
     static class ListItem {
         static final ListItem PREVIOUS_CONTAINER_LIST_ITEM = new ListItem(null, null);
+        static final ListItem LOADING_LIST_ITEM = new ListItem(null, null);
 
         private final ContainerWrapper mContainer;
-        private final Item mItem;
-        private List<Item> mMediaItems;
+        private final CompactItem mItem;
+        private boolean mHasMediaItems;
         private boolean mIsBookmarked;
 
+        // Whether the per-subfolder work for this row has been started. Only meaningful for containers.
+        private boolean mProbeRequested;
+
+        // The title in the form used by ListItemFilter, taken from the container or item, which built it off the main
+        // thread.
+        private final String mFilterKey;
+
         ListItem(@NonNull ContainerWrapper container) {
             this(container, null);
         }
 
-        ListItem(@NonNull Item item) {
+        ListItem(@NonNull CompactItem item) {
             this(null, item);
         }
 
-        private ListItem(ContainerWrapper container, Item item) {
+        private ListItem(ContainerWrapper container, CompactItem item) {
             mContainer = container;
             mItem = item;
-            mMediaItems = new ArrayList<>();
+            if (container != null) {
+                // Only containers that were not found in a listing lack a key, and there are few of those.
+                mFilterKey = container.getFilterKey() != null
+                        ? container.getFilterKey() : ListItemFilter.normalize(container.getTitle());
+            } else {
+                mFilterKey = item != null ? item.getFilterKey() : "";
+            }
+            mHasMediaItems = false;
             mIsBookmarked = false;
         }
 
-        @Override
-        public boolean equals(Object obj) {
-            if (obj instanceof ListItem) {
-                ListItem other = (ListItem) obj;
-                return Objects.equals(mContainer, other.mContainer) && Objects.equals(mItem, other.mItem) &&
-                        Objects.equals(mMediaItems, other.mMediaItems);
+        /**
+         * @return A key identifying the container or item the row is for, which is the same for rows created from
+         *     different fetches of the same object.
+         */
+        String getKey() {
+            if (isPreviousContainerListItem()) {
+                return "previous";
+            }
+            if (isLoadingListItem()) {
+                return "loading";
+            }
+            if (holdsContainer()) {
+                return "container/" + mContainer.getId();
             }
-            return false;
+            // The id is mandatory in DIDL-Lite, but fall back to the object itself for broken servers.
+            return mItem.getId() != null ? "item/" + mItem.getId() : "object/" + System.identityHashCode(mItem);
         }
 
-        @Override
-        public int hashCode() {
-            return Objects.hash(mContainer, mItem, mMediaItems);
+        /**
+         * @return Whether the row would be displayed in the same way as another.
+         */
+        boolean hasSameContents(ListItem other) {
+            return Objects.equals(toString(), other.toString())
+                    && mHasMediaItems == other.mHasMediaItems
+                    && mIsBookmarked == other.mIsBookmarked;
         }
 
         @Override
@@ -206,24 +570,30 @@ class FileBrowserAdapter extends ArrayAdapter<FileBrowserAdapter.ListItem>
             if (isPreviousContainerListItem()) {
                 return "...";
             }
+            if (isLoadingListItem()) {
+                return "";
+            }
 
             return holdsContainer() ? mContainer.getTitle() : mItem.getTitle();
         }
 
+        /**
+         * @return The row's title, normalized for matching against filter queries.
+         */
+        String getFilterKey() {
+            return mFilterKey;
+        }
+
         ContainerWrapper getContainer() {
             return mContainer;
         }
 
-        Item getItem() {
+        CompactItem getItem() {
             return mItem;
         }
 
-        List<Item> getMediaItems() {
-            return mMediaItems;
-        }
-
-        void setMediaItems(List<Item> mediaItems) {
-            this.mMediaItems = mediaItems;
+        void setHasMediaItems(boolean hasMediaItems) {
+            mHasMediaItems = hasMediaItems;
         }
 
         boolean holdsContainer() {
@@ -231,11 +601,15 @@ class FileBrowserAdapter extends ArrayAdapter<FileBrowserAdapter.ListItem>
         }
 
         boolean isPreviousContainerListItem() {
-            return mContainer == null && mItem == null;
+            return this == PREVIOUS_CONTAINER_LIST_ITEM;
+        }
+
+        boolean isLoadingListItem() {
+            return this == LOADING_LIST_ITEM;
         }
 
         boolean hasMediaItems() {
-            return mMediaItems.size() > 0;
+            return mHasMediaItems;
         }
 
         boolean isBookmarked() {
@@ -245,12 +619,13 @@ class FileBrowserAdapter extends ArrayAdapter<FileBrowserAdapter.ListItem>
         void setIsBookmarked(boolean isBookmarked) {
             mIsBookmarked = isBookmarked;
         }
-    }
 
-    private static class ViewHolder {
-        int position;
-        TextView text;
-        CheckBox checkBox;
-        Button button;
+        boolean isProbeRequested() {
+            return mProbeRequested;
+        }
+
+        void setProbeRequested(boolean probeRequested) {
+            mProbeRequested = probeRequested;
+        }
     }
 }
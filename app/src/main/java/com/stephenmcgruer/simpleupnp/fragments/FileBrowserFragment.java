@@ -19,51 +19,99 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.support.annotation.Nullable;
 import android.support.v4.app.Fragment;
+import android.support.v4.view.MenuItemCompat;
+import android.support.v7.widget.DividerItemDecoration;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.support.v7.widget.SearchView;
 import android.util.Log;
 import android.view.LayoutInflater;
+import android.view.Menu;
+import android.view.MenuInflater;
+import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.AdapterView;
-import android.widget.ListView;
 import android.widget.Toast;
 
 import com.google.android.gms.cast.MediaInfo;
 import com.google.android.gms.cast.MediaMetadata;
 import com.google.android.gms.cast.MediaQueueItem;
 import com.stephenmcgruer.simpleupnp.R;
+import com.stephenmcgruer.simpleupnp.cling.ActionCoalescer;
+import com.stephenmcgruer.simpleupnp.cling.ActionScheduler;
+import com.stephenmcgruer.simpleupnp.cling.BrowseFilter;
+import com.stephenmcgruer.simpleupnp.cling.BrowsePaging;
+import com.stephenmcgruer.simpleupnp.cling.CompactItem;
+import com.stephenmcgruer.simpleupnp.cling.ContainerListing;
+import com.stephenmcgruer.simpleupnp.cling.ContainerListingCache;
+import com.stephenmcgruer.simpleupnp.cling.DeviceCapabilitiesCache;
+import com.stephenmcgruer.simpleupnp.cling.DeviceRegistryListener;
+import com.stephenmcgruer.simpleupnp.cling.DidlLiteParser;
+import com.stephenmcgruer.simpleupnp.cling.GetSearchCapabilities;
+import com.stephenmcgruer.simpleupnp.cling.GetSortCapabilities;
+import com.stephenmcgruer.simpleupnp.cling.LibraryIndexer;
+import com.stephenmcgruer.simpleupnp.cling.ListingPrefetcher;
+import com.stephenmcgruer.simpleupnp.cling.ListingSorter;
+import com.stephenmcgruer.simpleupnp.cling.RequestScope;
+import com.stephenmcgruer.simpleupnp.cling.SearchCriteria;
+import com.stephenmcgruer.simpleupnp.cling.SortCriteria;
+import com.stephenmcgruer.simpleupnp.cling.SubtreeCrawler;
+import com.stephenmcgruer.simpleupnp.cling.GetSystemUpdateId;
 import com.stephenmcgruer.simpleupnp.database.BookmarksContract.Bookmark;
 import com.stephenmcgruer.simpleupnp.database.BookmarksReadTask;
 import com.stephenmcgruer.simpleupnp.database.BookmarksRemoveTask;
 import com.stephenmcgruer.simpleupnp.database.BookmarksWriteTask;
+import com.stephenmcgruer.simpleupnp.database.LibraryIndexSearchTask;
+import com.stephenmcgruer.simpleupnp.database.ListingCacheContract.CachedListing;
+import com.stephenmcgruer.simpleupnp.database.ListingCacheReadTask;
+import com.stephenmcgruer.simpleupnp.database.ListingCacheWriteTask;
 
 import org.fourthline.cling.android.AndroidUpnpService;
 import org.fourthline.cling.android.AndroidUpnpServiceImpl;
 import org.fourthline.cling.model.action.ActionInvocation;
 import org.fourthline.cling.model.message.UpnpResponse;
 import org.fourthline.cling.model.meta.Device;
+import org.fourthline.cling.model.meta.LocalDevice;
+import org.fourthline.cling.model.meta.RemoteDevice;
 import org.fourthline.cling.model.meta.Service;
 import org.fourthline.cling.model.types.UDAServiceType;
 import org.fourthline.cling.model.types.UDN;
+import org.fourthline.cling.registry.DefaultRegistryListener;
+import org.fourthline.cling.registry.Registry;
 import org.fourthline.cling.support.contentdirectory.callback.Browse;
+import org.fourthline.cling.support.contentdirectory.callback.Search;
 import org.fourthline.cling.support.model.BrowseFlag;
 import org.fourthline.cling.support.model.DIDLContent;
-import org.fourthline.cling.support.model.Res;
+import org.fourthline.cling.support.model.SortCriterion;
 import org.fourthline.cling.support.model.container.Container;
-import org.fourthline.cling.support.model.item.Item;
+import org.xmlpull.v1.XmlPullParserException;
 
+import java.io.IOException;
+import java.io.StringReader;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Objects;
+import java.util.Set;
 
-public class FileBrowserFragment extends Fragment implements AdapterView.OnItemClickListener, ServiceConnection,
-        FileBrowserAdapter.OnItemClickListener, BookmarksReadTask.ResultListener, BookmarksRemoveTask.ResultsListener,
-        BookmarksWriteTask.ResultListener {
+public class FileBrowserFragment extends Fragment implements ServiceConnection, FileBrowserAdapter.OnItemClickListener,
+        BookmarksReadTask.ResultListener, BookmarksRemoveTask.ResultsListener, BookmarksWriteTask.ResultListener,
+        ListingCacheReadTask.ResultListener, LibraryIndexSearchTask.ResultListener, ListingSortTask.ResultListener,
+        ListItemFilter.Listener {
 
     private static final String TAG = "FileBrowserFragment";
 
@@ -73,20 +121,142 @@ public class FileBrowserFragment extends Fragment implements AdapterView.OnItemC
 
     private static final String BOOKMARK_PARENT_ID = "-1";
 
+    // Number of children requested per Browse action when listing a container.
+    private static final long BROWSE_PAGE_SIZE = 200;
+
+    // How close (in rows) to the end of the loaded children the list must be scrolled before the next page is
+    // requested.
+    private static final int LOAD_MORE_THRESHOLD = 50;
+
+    // Number of children decoded from a Browse response before they are handed to the list, so that the first rows
+    // of a large page are shown before the rest of it has been parsed.
+    private static final int DIDL_BATCH_SIZE = 50;
+
+    // Number of items found by a subtree crawl before playback is started; later items are appended to the queue.
+    private static final int PLAY_START_ITEM_COUNT = 20;
+
+    // Subfolders of the current container whose listings are prefetched: the ones opened most often in this session,
+    // then the first ones in the listing.
+    private static final int PREFETCH_MOST_OPENED_COUNT = 2;
+    private static final int PREFETCH_FIRST_SUBFOLDERS_COUNT = 3;
+    private static final int PREFETCH_MAX_COUNT = 4;
+
+    // How long to wait for the device to appear in the registry, e.g. for a bookmark opened at startup, before going
+    // back to the server list.
+    private static final long DEVICE_WAIT_TIMEOUT_MILLIS = 30000;
+
     private String mDeviceUdn;
     private String mDeviceName;
 
     private FileBrowserAdapter mFileBrowserAdapter;
+    private LinearLayoutManager mLayoutManager;
+
+    private final RecyclerView.OnScrollListener mScrollListener = new RecyclerView.OnScrollListener() {
+        @Override
+        public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+            // Also called after a layout changes the visible rows.
+            int firstVisibleItem = mLayoutManager.findFirstVisibleItemPosition();
+            int lastVisibleItem = mLayoutManager.findLastVisibleItemPosition();
+            if (firstVisibleItem == RecyclerView.NO_POSITION)
+                return;
+
+            if (lastVisibleItem >= mFileBrowserAdapter.getLoadedCount() - LOAD_MORE_THRESHOLD) {
+                requestNextPage();
+            }
+            updateSubfolderProbes(firstVisibleItem - mProbeLookaheadRows, lastVisibleItem + 1 + mProbeLookaheadRows);
+        }
+    };
 
     private AndroidUpnpService mUpnpService;
+    // Null until the device is in the registry, which at startup may be after the service is connected.
     private Service mContentDirectoryService;
 
+    // Registered while waiting for the device to be added to the registry.
+    private final DefaultRegistryListener mDeviceWaiter = new DefaultRegistryListener() {
+        @Override
+        public void remoteDeviceAdded(Registry registry, RemoteDevice device) {
+            onRegistryDeviceAdded(registry);
+        }
+
+        @Override
+        public void localDeviceAdded(Registry registry, LocalDevice device) {
+            onRegistryDeviceAdded(registry);
+        }
+    };
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mDeviceWaitTimeout = new Runnable() {
+        @Override
+        public void run() {
+            if (mUpnpService == null || mContentDirectoryService != null || mListener == null)
+                return;
+
+            Log.w(TAG, "mDeviceWaitTimeout: device " + mDeviceUdn + " not found");
+            mUpnpService.getRegistry().removeListener(mDeviceWaiter);
+            Toast.makeText(getContext(), "Unable to find the server", Toast.LENGTH_LONG).show();
+            mListener.onQuitFileBrowsing();
+        }
+    };
+
     private OnFragmentInteractionListener mListener;
 
-    // Should only be accessed on the main thread.
-    private Map<String, ContainerWrapper> mContainerMap;
+    // Should only be accessed on the main thread. The container map is shared with the navigation session, so that it
+    // outlives the fragment.
+    private NavigationSession mSession;
     private ContainerWrapper mCurrentContainer;
 
+    // Scroll position to restore once the rows of a listing from the navigation session have been shown. Should only
+    // be accessed on the main thread.
+    private int mPendingScrollPosition = RecyclerView.NO_POSITION;
+    private int mPendingScrollOffset;
+
+    // The browses for the current container, which are aborted when another container is selected. Should only be
+    // accessed on the main thread.
+    private RequestScope mRequestScope;
+
+    // The children of the current container fetched so far, and whether to keep paging through the rest. Should only
+    // be accessed on the main thread.
+    private ContainerListing mCurrentListing;
+    private boolean mHasMorePages;
+    private boolean mPageRequestInFlight;
+
+    // The SortCriteria that listings are browsed with, which are empty if the device cannot sort them, or null until
+    // its sort capabilities are known. Should only be accessed on the main thread.
+    private SortCriterion[] mSortCriteria;
+
+    // The listing being sorted by a ListingSortTask, if any. Should only be accessed on the main thread.
+    private ContainerListing mSortingListing;
+
+    // A listing read from the on-disk cache that is being displayed, but has not yet been checked against the
+    // server's SystemUpdateID. Should only be accessed on the main thread.
+    private CachedListing mUnverifiedListing;
+    private boolean mDiskCacheReadPending;
+
+    // Ids of the bookmarked containers on the device, loaded once when the fragment is created and kept up to date as
+    // bookmarks are added and removed. Should only be accessed on the main thread.
+    private final Set<String> mBookmarkedContainerIds = new HashSet<>();
+    // Bookmark names keyed by container id, for bookmarks added before the device's name is known. They are saved
+    // once the device is available.
+    private final Map<String, String> mPendingBookmarks = new LinkedHashMap<>();
+
+    // Narrows the rows shown to those matching what the user types into the filter menu item, which is collapsed
+    // whenever another container is selected.
+    private final ListItemFilter mListItemFilter = new ListItemFilter(this);
+    private MenuItem mFilterMenuItem;
+
+    // Number of rows either side of the visible rows for which subfolder probes are run ahead of time.
+    private int mProbeLookaheadRows;
+
+    // Media item probes that have been scheduled but not yet finished, keyed by container id. Should only be accessed
+    // on the main thread.
+    private final Map<String, CheckForMediaItemsBrowse> mPendingProbes = new HashMap<>();
+
+    // The crawl for the container being played, if it is still running, and the items it has found that have not
+    // been sent to the Cast device yet. Should only be accessed on the main thread.
+    private SubtreeCrawler mPlayCrawler;
+    private final List<CompactItem> mUnsentPlayItems = new ArrayList<>();
+    private boolean mPlaybackStarted;
+
     public FileBrowserFragment() {
         // Required empty public constructor.
     }
@@ -109,16 +279,22 @@ public class FileBrowserFragment extends Fragment implements AdapterView.OnItemC
         if (mDeviceUdn == null || mDeviceUdn.isEmpty())
             throw new IllegalStateException("FileBrowserFragment requires a Device UDN");
 
-        mContainerMap = new HashMap<>();
-        mContainerMap.put(ContainerWrapper.ROOT_CONTAINER_ID, ContainerWrapper.ROOT_CONTAINER);
-        mCurrentContainer = ContainerWrapper.ROOT_CONTAINER;
+        mProbeLookaheadRows = getResources().getInteger(R.integer.file_browser_probe_lookahead_rows);
+        setHasOptionsMenu(true);
 
-        if (getArguments().getString(ARGS_INITIAL_CONTAINER_ID) != null) {
-            ContainerWrapper wrapper = new ContainerWrapper(
-                    "Bookmark", getArguments().getString(ARGS_INITIAL_CONTAINER_ID), BOOKMARK_PARENT_ID);
-            mContainerMap.put(wrapper.getId(), wrapper);
-            mCurrentContainer = wrapper;
+        mRequestScope = new RequestScope(mListener.getActionCoalescer(), mDeviceUdn);
+        String initialContainerId = getArguments().getString(ARGS_INITIAL_CONTAINER_ID);
+        if (initialContainerId != null) {
+            // A bookmark gets a session of its own, so that it does not replace where the user was on the device.
+            mSession = new NavigationSession(new ContainerWrapper("Bookmark", initialContainerId, BOOKMARK_PARENT_ID));
+        } else {
+            // Carry on from wherever the user last was on this device.
+            mSession = mListener.getNavigationSession(mDeviceUdn);
         }
+        mCurrentContainer = mSession.getCurrentContainer();
+
+        // Load all of the device's bookmarks up front, rather than looking up each container as it is shown.
+        new BookmarksReadTask(mListener.getDbHelper(), this).execute(mDeviceUdn, "%");
 
         // TODO(smcgruer): Handle failure gracefully.
         if (!getActivity().getApplicationContext().bindService(
@@ -134,16 +310,31 @@ public class FileBrowserFragment extends Fragment implements AdapterView.OnItemC
     public View onCreateView(LayoutInflater inflater,
                              @Nullable ViewGroup container,
                              @Nullable Bundle savedInstanceState) {
-        ListView view = (ListView) inflater.inflate(R.layout.fragment_file_browser, container, false);
+        RecyclerView view = (RecyclerView) inflater.inflate(R.layout.fragment_file_browser, container, false);
         Context context = view.getContext();
 
-        mFileBrowserAdapter = new FileBrowserAdapter(this, context, R.layout.fragment_file_browser_item);
-        mFileBrowserAdapter.add(FileBrowserAdapter.ListItem.PREVIOUS_CONTAINER_LIST_ITEM);
+        mLayoutManager = new LinearLayoutManager(context);
+        view.setLayoutManager(mLayoutManager);
+        view.addItemDecoration(new DividerItemDecoration(context, DividerItemDecoration.VERTICAL));
+
+        mFileBrowserAdapter = new FileBrowserAdapter(this, context);
+        mFileBrowserAdapter.addAll(Collections.singletonList(FileBrowserAdapter.ListItem.PREVIOUS_CONTAINER_LIST_ITEM));
         view.setAdapter(mFileBrowserAdapter);
-        view.setOnItemClickListener(this);
+        view.addOnScrollListener(mScrollListener);
+        new FastScroller(view, mLayoutManager);
+
+        // Start showing the initial container straight away; it may be cached even if the server has not been
+        // discovered yet.
+        selectContainer(mCurrentContainer);
         return view;
     }
 
+    @Override
+    public void onDestroyView() {
+        saveCurrentLevel();
+        super.onDestroyView();
+    }
+
     @Override
     public void onAttach(Context context) {
         super.onAttach(context);
@@ -158,26 +349,208 @@ public class FileBrowserFragment extends Fragment implements AdapterView.OnItemC
     @Override
     public void onDetach() {
         super.onDetach();
+        mRequestScope.cancel();
+        mListener.getListingPrefetcher().cancel();
+        if (mUpnpService != null) {
+            mUpnpService.getRegistry().removeListener(mDeviceWaiter);
+        }
+        mHandler.removeCallbacks(mDeviceWaitTimeout);
+        cancelPlayCrawl();
         mListener = null;
         getActivity().getApplicationContext().unbindService(this);
     }
 
+    @Override
+    public void onCreateOptionsMenu(Menu menu, MenuInflater inflater) {
+        inflater.inflate(R.menu.menu_file_browser, menu);
+
+        final MenuItem searchItem = menu.findItem(R.id.search_menu_item);
+        final SearchView searchView = (SearchView) MenuItemCompat.getActionView(searchItem);
+        searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+            @Override
+            public boolean onQueryTextSubmit(String query) {
+                searchView.clearFocus();
+                startSearch(query);
+                return true;
+            }
+
+            @Override
+            public boolean onQueryTextChange(String newText) {
+                return false;
+            }
+        });
+        MenuItemCompat.setOnActionExpandListener(searchItem, new MenuItemCompat.OnActionExpandListener() {
+            @Override
+            public boolean onMenuItemActionExpand(MenuItem item) {
+                return true;
+            }
+
+            @Override
+            public boolean onMenuItemActionCollapse(MenuItem item) {
+                exitSearch();
+                return true;
+            }
+        });
+
+        mFilterMenuItem = menu.findItem(R.id.filter_menu_item);
+        final SearchView filterView = (SearchView) MenuItemCompat.getActionView(mFilterMenuItem);
+        filterView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+            @Override
+            public boolean onQueryTextSubmit(String query) {
+                filterView.clearFocus();
+                return true;
+            }
+
+            @Override
+            public boolean onQueryTextChange(String newText) {
+                mListItemFilter.setQuery(newText);
+                return true;
+            }
+        });
+        MenuItemCompat.setOnActionExpandListener(mFilterMenuItem, new MenuItemCompat.OnActionExpandListener() {
+            @Override
+            public boolean onMenuItemActionExpand(MenuItem item) {
+                return true;
+            }
+
+            @Override
+            public boolean onMenuItemActionCollapse(MenuItem item) {
+                mListItemFilter.setQuery("");
+                return true;
+            }
+        });
+    }
+
+    @Override
+    public void onRowsFiltered(List<FileBrowserAdapter.ListItem> rows) {
+        if (mFileBrowserAdapter == null)
+            return;
+
+        mFileBrowserAdapter.setItems(rows);
+        // The section index only applies to the whole listing.
+        mFileBrowserAdapter.setSections(mListItemFilter.isActive() ? null : mCurrentListing.getSections(), 1);
+    }
+
     @Override
     public void onServiceConnected(ComponentName name, IBinder service) {
         Log.d(TAG, "onServiceConnected: " + name.flattenToShortString() + ", " + service.toString());
 
         mUpnpService = (AndroidUpnpService) service;
 
-        Device device = mUpnpService.getRegistry().getDevice(new UDN(mDeviceUdn), false);
-        mContentDirectoryService = device.findService(new UDAServiceType("ContentDirectory"));
-        if (mContentDirectoryService == null) {
-            throw new IllegalStateException("Unable to find ContentDirectory service for device "
-                    + mDeviceUdn);
+        Device device = findDevice(mUpnpService.getRegistry());
+        if (device == null) {
+            // Typically a bookmark opened at startup, before the device has been discovered or restored from the
+            // device cache. Anything cached for the current container is shown in the meantime.
+            Log.d(TAG, "onServiceConnected: waiting for device " + mDeviceUdn);
+            mUpnpService.getRegistry().addListener(mDeviceWaiter);
+            mHandler.postDelayed(mDeviceWaitTimeout, DEVICE_WAIT_TIMEOUT_MILLIS);
+            // The device may have been added just before the listener was.
+            device = findDevice(mUpnpService.getRegistry());
+            if (device == null)
+                return;
+            mUpnpService.getRegistry().removeListener(mDeviceWaiter);
         }
+        onDeviceAvailable(device);
+    }
+
+    /**
+     * @return The device, if it is in the registry and has a ContentDirectory service, otherwise null.
+     */
+    private Device findDevice(Registry registry) {
+        Device device = registry.getDevice(new UDN(mDeviceUdn), false);
+        return device != null && DeviceRegistryListener.isMediaServer(device) ? device : null;
+    }
+
+    /**
+     * Called on a registry thread whenever a device is added while waiting for the device.
+     */
+    private void onRegistryDeviceAdded(Registry registry) {
+        final Device device = findDevice(registry);
+        if (device == null || getActivity() == null)
+            return;
+
+        getActivity().runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                if (mUpnpService == null || mContentDirectoryService != null)
+                    return;
+
+                mUpnpService.getRegistry().removeListener(mDeviceWaiter);
+                onDeviceAvailable(device);
+            }
+        });
+    }
+
+    private void onDeviceAvailable(Device device) {
+        mHandler.removeCallbacks(mDeviceWaitTimeout);
+        mContentDirectoryService = device.findService(new UDAServiceType("ContentDirectory"));
         mDeviceName = (device.getDetails() != null && device.getDetails().getFriendlyName() != null)
                 ? device.getDetails().getFriendlyName() : device.getDisplayString();
 
-        selectContainer(mCurrentContainer);
+        if (mListener != null) {
+            for (Map.Entry<String, String> bookmark : mPendingBookmarks.entrySet()) {
+                addBookmark(bookmark.getValue(), bookmark.getKey());
+            }
+            mPendingBookmarks.clear();
+            mListener.getListingCache().watch(mUpnpService.getControlPoint(), mDeviceUdn, mContentDirectoryService);
+            mListener.getLibraryIndexer().index(mUpnpService.getControlPoint(), mDeviceUdn, mContentDirectoryService);
+        }
+
+        fetchSortCapabilities();
+        reconcileCurrentListing();
+        updateVisibleSubfolderProbes();
+        startPrefetch();
+    }
+
+    /**
+     * Works out how listings should be sorted by the device, if that is not already known. Listings started before it
+     * is are fetched unsorted, and sorted once complete by ListingSorter.
+     */
+    private void fetchSortCapabilities() {
+        if (mSortCriteria != null || mListener == null)
+            return;
+
+        List<String> capabilities = mListener.getCapabilitiesCache().getSortCapabilities(mDeviceUdn);
+        if (capabilities != null) {
+            mSortCriteria = SortCriteria.forListing(capabilities);
+            return;
+        }
+
+        if (mContentDirectoryService.getAction("GetSortCapabilities") == null) {
+            mSortCriteria = new SortCriterion[0];
+            return;
+        }
+
+        final String udn = mDeviceUdn;
+        mUpnpService.getControlPoint().execute(new GetSortCapabilities(mContentDirectoryService) {
+            @Override
+            public void received(ActionInvocation invocation, List<String> capabilities) {
+                if (mListener != null) {
+                    mListener.getCapabilitiesCache().putSortCapabilities(udn, capabilities);
+                }
+                onCapabilitiesKnown(capabilities);
+            }
+
+            @Override
+            public void failure(ActionInvocation invocation, UpnpResponse operation, String defaultMsg) {
+                Log.w(TAG, "fetchSortCapabilities: unable to get sort capabilities: " + defaultMsg);
+                onCapabilitiesKnown(Collections.<String>emptyList());
+            }
+
+            private void onCapabilitiesKnown(final List<String> capabilities) {
+                if (getActivity() == null)
+                    return;
+
+                getActivity().runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        mSortCriteria = SortCriteria.forListing(capabilities);
+                        requestNextPage();
+                        startPrefetch();
+                    }
+                });
+            }
+        });
     }
 
     @Override
@@ -187,82 +560,236 @@ public class FileBrowserFragment extends Fragment implements AdapterView.OnItemC
     }
 
     @Override
-    public void onItemClick(AdapterView<?> adapterView, View view, int position, long id) {
-        FileBrowserAdapter.ListItem listItem = (FileBrowserAdapter.ListItem) adapterView.getItemAtPosition(position);
+    public void onListItemClick(FileBrowserAdapter.ListItem listItem) {
+        if (listItem.isLoadingListItem()) {
+            return;
+        }
+
         if (listItem.isPreviousContainerListItem()) {
             onBackPressed();
         } else if (listItem.holdsContainer()) {
+            mSession.recordOpen(listItem.getContainer().getId());
             selectContainer(listItem.getContainer());
         } else {
-            List<Item> items = new ArrayList<>();
+            List<CompactItem> items = new ArrayList<>();
             items.add(listItem.getItem());
             playItems(items);
         }
     }
 
     @Override
-    public void playItems(List<Item> itemsToPlay) {
+    public void onListItemsReplaced() {
+        if (mPendingScrollPosition != RecyclerView.NO_POSITION) {
+            mLayoutManager.scrollToPositionWithOffset(mPendingScrollPosition, mPendingScrollOffset);
+            mPendingScrollPosition = RecyclerView.NO_POSITION;
+        }
+        updateVisibleSubfolderProbes();
+    }
+
+    /**
+     * Starts the per-subfolder work (media item probes and bookmark lookups) for the container rows in the given range,
+     * and cancels any queued probes for rows that have left it.
+     *
+     * @param firstPosition The first row (inclusive) that should be probed.
+     * @param lastPosition The last row (exclusive) that should be probed.
+     */
+    private void updateSubfolderProbes(int firstPosition, int lastPosition) {
+        if (mUpnpService == null || mContentDirectoryService == null || mListener == null)
+            return;
+
+        firstPosition = Math.max(firstPosition, 0);
+        lastPosition = Math.min(lastPosition, mFileBrowserAdapter.getLoadedCount());
+
+        Iterator<CheckForMediaItemsBrowse> iterator = mPendingProbes.values().iterator();
+        while (iterator.hasNext()) {
+            CheckForMediaItemsBrowse probe = iterator.next();
+            if (probe.mPosition >= firstPosition && probe.mPosition < lastPosition)
+                continue;
+
+            // Probes that have already been sent are left to finish.
+            if (mRequestScope.cancelQueued(probe)) {
+                probe.mListItem.setProbeRequested(false);
+                iterator.remove();
+            }
+        }
+
+        for (int position = firstPosition; position < lastPosition; position++) {
+            FileBrowserAdapter.ListItem listItem = mFileBrowserAdapter.getItem(position);
+            if (!listItem.holdsContainer())
+                continue;
+
+            String containerId = listItem.getContainer().getId();
+            // An empty container has nothing to play, so there is no need to ask the server.
+            if (!listItem.isProbeRequested() && listItem.getContainer().getChildCount() != 0) {
+                listItem.setProbeRequested(true);
+                CheckForMediaItemsBrowse probe = new CheckForMediaItemsBrowse(
+                        mContentDirectoryService, listItem, position, mCurrentListing);
+                mPendingProbes.put(containerId, probe);
+                mRequestScope.execute(mUpnpService.getControlPoint(), probe, ActionScheduler.Priority.VISIBLE);
+            }
+        }
+    }
+
+    /**
+     * Runs updateSubfolderProbes() for the rows currently visible in the list.
+     */
+    private void updateVisibleSubfolderProbes() {
+        if (mLayoutManager == null)
+            return;
+
+        int firstVisible = Math.max(mLayoutManager.findFirstVisibleItemPosition(), 0);
+        int lastVisible = Math.max(mLayoutManager.findLastVisibleItemPosition(), firstVisible);
+        updateSubfolderProbes(firstVisible - mProbeLookaheadRows, lastVisible + 1 + mProbeLookaheadRows);
+    }
+
+    /**
+     * Cancels all queued media item probes, e.g. because the listing they belong to is being replaced.
+     */
+    private void cancelSubfolderProbes() {
+        for (CheckForMediaItemsBrowse probe : mPendingProbes.values()) {
+            mRequestScope.cancelQueued(probe);
+        }
+        mPendingProbes.clear();
+    }
+
+    @Override
+    public void playContainer(String containerId) {
+        if (mUpnpService == null || mContentDirectoryService == null || mListener == null)
+            return;
+
+        cancelPlayCrawl();
+        mPlaybackStarted = false;
+        mPlayCrawler = new SubtreeCrawler(mListener.getActionCoalescer(), mUpnpService.getControlPoint(), mDeviceUdn,
+                mContentDirectoryService, containerId, getBrowseSortCriteria(), new SubtreeCrawler.Listener() {
+            @Override
+            public void onItemsFound(final SubtreeCrawler crawler, final List<CompactItem> items) {
+                if (getActivity() == null)
+                    return;
+
+                getActivity().runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (crawler != mPlayCrawler)
+                            return;
+
+                        mUnsentPlayItems.addAll(items);
+                        if (mPlaybackStarted) {
+                            appendItems(mUnsentPlayItems);
+                            mUnsentPlayItems.clear();
+                        } else if (mUnsentPlayItems.size() >= PLAY_START_ITEM_COUNT) {
+                            playItems(mUnsentPlayItems);
+                            mUnsentPlayItems.clear();
+                            mPlaybackStarted = true;
+                        }
+                    }
+                });
+            }
+
+            @Override
+            public void onCrawlFinished(final SubtreeCrawler crawler, int itemCount) {
+                if (getActivity() == null)
+                    return;
+
+                getActivity().runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (crawler != mPlayCrawler)
+                            return;
+
+                        mPlayCrawler = null;
+                        if (!mPlaybackStarted) {
+                            if (mUnsentPlayItems.isEmpty()) {
+                                Toast.makeText(getActivity(), "Nothing to play", Toast.LENGTH_SHORT).show();
+                            } else {
+                                playItems(mUnsentPlayItems);
+                            }
+                        }
+                        mUnsentPlayItems.clear();
+                    }
+                });
+            }
+        });
+        mPlayCrawler.start();
+    }
+
+    private void cancelPlayCrawl() {
+        if (mPlayCrawler != null) {
+            mPlayCrawler.cancel();
+            mPlayCrawler = null;
+        }
+        mUnsentPlayItems.clear();
+    }
+
+    private void playItems(List<CompactItem> itemsToPlay) {
+        if (mListener == null)
+            return;
+        mListener.playFiles(toMediaQueueItems(itemsToPlay));
+    }
+
+    private void appendItems(List<CompactItem> itemsToAppend) {
         if (mListener == null)
             return;
+        mListener.appendFiles(toMediaQueueItems(itemsToAppend));
+    }
 
-        // Convert to MediaQueueItem for Cast.
+    /**
+     * Converts items to MediaQueueItem for Cast.
+     */
+    private static List<MediaQueueItem> toMediaQueueItems(List<CompactItem> items) {
         List<MediaQueueItem> mediaItems = new ArrayList<>();
-        for (Item item : itemsToPlay) {
+        for (CompactItem item : items) {
             // Assumption: first non-null resource is the URL. No idea if correct.
-            Res urlResource = item.getFirstResource();
-            if (urlResource != null) {
+            if (item.getUrl() != null) {
                 MediaMetadata metadata = new MediaMetadata(MediaMetadata.MEDIA_TYPE_MUSIC_TRACK);
                 metadata.putString(MediaMetadata.KEY_TITLE, item.getTitle());
-                MediaInfo mediaInfo = new MediaInfo.Builder(urlResource.getValue())
+                MediaInfo.Builder mediaInfoBuilder = new MediaInfo.Builder(item.getUrl())
                         .setStreamType(MediaInfo.STREAM_TYPE_BUFFERED)
-                        .setContentType("audio/mp3")
-                        .setMetadata(metadata)
-                        .build();
-                mediaItems.add(new MediaQueueItem.Builder(mediaInfo).build());
+                        .setContentType(item.getMimeType() != null ? item.getMimeType() : "audio/mp3")
+                        .setMetadata(metadata);
+                if (item.getDurationMillis() != CompactItem.UNKNOWN_DURATION) {
+                    mediaInfoBuilder.setStreamDuration(item.getDurationMillis());
+                }
+                mediaItems.add(new MediaQueueItem.Builder(mediaInfoBuilder.build()).build());
             }
         }
-        mListener.playFiles(mediaItems);
+        return mediaItems;
     }
 
     @Override
     public void addBookmark(String bookmarkName, String containerId) {
+        // The device name is not known until the device is available, so hold on to the bookmark until then.
+        if (mDeviceName == null) {
+            mPendingBookmarks.put(containerId, bookmarkName);
+            return;
+        }
+
         new BookmarksWriteTask(mListener.getDbHelper(), this)
                 .execute(mDeviceUdn, bookmarkName, containerId, mDeviceName);
     }
 
     @Override
     public void removeBookmark(String containerId) {
+        if (mPendingBookmarks.remove(containerId) != null)
+            return;
+
         new BookmarksRemoveTask(mListener.getDbHelper(), this).execute(mDeviceUdn, containerId);
     }
 
     @Override
     public void onBookmarksReadFromDatabase(List<Bookmark> bookmarks) {
-        if (bookmarks.size() != 1) {
-            throw new IllegalStateException("Multiple bookmarks returned for single container?");
-        }
-
-        Bookmark bookmark = bookmarks.get(0);
-        for (int i = 0; i < mFileBrowserAdapter.getCount(); i++) {
-            FileBrowserAdapter.ListItem listItem = mFileBrowserAdapter.getItem(i);
-            if (listItem != null && listItem.holdsContainer() &&
-                    listItem.getContainer().getId().equals(bookmark.getContainerId())) {
-                listItem.setIsBookmarked(true);
-                mFileBrowserAdapter.notifyDataSetChanged();
-            }
+        List<String> containerIds = new ArrayList<>();
+        for (Bookmark bookmark : bookmarks) {
+            containerIds.add(bookmark.getContainerId());
         }
+        mBookmarkedContainerIds.addAll(containerIds);
+        applyBookmarks(containerIds);
     }
 
     @Override
     public void onBookmarksWriteTaskFinished(boolean success, String containerId) {
         if (success) {
-            for (int i = 0; i < mFileBrowserAdapter.getCount(); i++) {
-                FileBrowserAdapter.ListItem listItem = mFileBrowserAdapter.getItem(i);
-                if (listItem != null && listItem.holdsContainer() &&
-                        listItem.getContainer().getId().equals(containerId)) {
-                    listItem.setIsBookmarked(true);
-                    mFileBrowserAdapter.notifyDataSetChanged();
-                }
-            }
+            mBookmarkedContainerIds.add(containerId);
+            applyBookmarks(Collections.singletonList(containerId));
         } else {
             Toast.makeText(getContext(), "Unable to save bookmark", Toast.LENGTH_SHORT).show();
             // TODO(smcgruer): Uncheck the bookmark.
@@ -270,8 +797,11 @@ public class FileBrowserFragment extends Fragment implements AdapterView.OnItemC
     }
 
     @Override
-    public void onBookmarkRemoveTaskFinished(int numRemoved) {
-        if (numRemoved == 0) {
+    public void onBookmarkRemoveTaskFinished(int numRemoved, String containerId) {
+        if (numRemoved > 0) {
+            mBookmarkedContainerIds.remove(containerId);
+            applyBookmarks(Collections.singletonList(containerId));
+        } else {
             Toast.makeText(getContext(), "Unable to remove bookmark", Toast.LENGTH_SHORT).show();
             // TODO(smcgruer): Re-check the bookmark.
         }
@@ -286,112 +816,732 @@ public class FileBrowserFragment extends Fragment implements AdapterView.OnItemC
             }
         } else {
             // Go back to the parent container.
-            if (!mContainerMap.containsKey(parentId)) {
+            ContainerWrapper parent = mSession.getContainer(parentId);
+            if (parent == null) {
                 throw new IllegalStateException(
                         "Container map does not contain parent container: " + parentId);
             }
-            selectContainer(mContainerMap.get(parentId));
+            selectContainer(parent);
+        }
+    }
+
+    /**
+     * Searches the device for the query, showing the results in place of the current container. The search is done
+     * by the server if it can search by title, artist or album, and otherwise in the local library index.
+     */
+    private void startSearch(String rawQuery) {
+        if (mUpnpService == null || mContentDirectoryService == null || mListener == null)
+            return;
+        final String query = rawQuery.trim();
+        if (query.isEmpty())
+            return;
+
+        List<String> capabilities = mListener.getCapabilitiesCache().getSearchCapabilities(mDeviceUdn);
+        if (capabilities != null) {
+            showSearchResults(query, capabilities);
+            return;
         }
+
+        if (mContentDirectoryService.getAction("GetSearchCapabilities") == null) {
+            showSearchResults(query, Collections.<String>emptyList());
+            return;
+        }
+
+        final String udn = mDeviceUdn;
+        mUpnpService.getControlPoint().execute(new GetSearchCapabilities(mContentDirectoryService) {
+            @Override
+            public void received(ActionInvocation invocation, final List<String> capabilities) {
+                if (mListener != null) {
+                    mListener.getCapabilitiesCache().putSearchCapabilities(udn, capabilities);
+                }
+                onCapabilitiesKnown(capabilities);
+            }
+
+            @Override
+            public void failure(ActionInvocation invocation, UpnpResponse operation, String defaultMsg) {
+                Log.w(TAG, "startSearch: unable to get search capabilities: " + defaultMsg);
+                onCapabilitiesKnown(Collections.<String>emptyList());
+            }
+
+            private void onCapabilitiesKnown(final List<String> capabilities) {
+                if (getActivity() == null)
+                    return;
+
+                getActivity().runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        showSearchResults(query, capabilities);
+                    }
+                });
+            }
+        });
+    }
+
+    private void showSearchResults(String query, List<String> capabilities) {
+        // A new search replaces the results of the previous one, rather than being nested in them.
+        String parentId = mCurrentContainer.isSearch() ? mCurrentContainer.getParentID() : mCurrentContainer.getId();
+        String searchCriteria = SearchCriteria.forTextQuery(query, capabilities);
+        ContainerWrapper searchContainer = searchCriteria != null
+                ? ContainerWrapper.forSearch(query, searchCriteria, parentId)
+                : ContainerWrapper.forLocalSearch(query, parentId);
+        mSession.startSearch(searchContainer);
+        selectContainer(searchContainer);
+    }
+
+    /**
+     * Returns from search results to the container the search was started from.
+     */
+    private void exitSearch() {
+        if (!mCurrentContainer.isSearch())
+            return;
+
+        selectContainer(mSession.getContainer(mCurrentContainer.getParentID()));
     }
 
     private void selectContainer(ContainerWrapper container) {
+        saveCurrentLevel();
+        mRequestScope = mRequestScope.next();
+        cancelSubfolderProbes();
+        mListItemFilter.reset();
+        if (mFilterMenuItem != null) {
+            MenuItemCompat.collapseActionView(mFilterMenuItem);
+        }
         mCurrentContainer = container;
-        SelectContainerBrowse containerBrowse = new SelectContainerBrowse(
-                mContentDirectoryService, container.getId(), BrowseFlag.DIRECT_CHILDREN);
-        mUpnpService.getControlPoint().execute(containerBrowse);
+        mSession.setCurrentContainer(container);
+        mPageRequestInFlight = false;
+        mUnverifiedListing = null;
+        mDiskCacheReadPending = false;
+        mPendingScrollPosition = RecyclerView.NO_POSITION;
+        if (mListener != null) {
+            mListener.getListingPrefetcher().yieldTo(container.getId());
+        }
+
+        // Containers on the navigation stack are redrawn as they were left.
+        NavigationSession.Level level = mSession.takeLevel(container.getId());
+        if (level != null && isUpToDate(level.mListing)) {
+            mCurrentListing = level.mListing;
+            mHasMorePages = level.mListing.hasMorePages();
+            mPendingScrollPosition = level.mPosition;
+            mPendingScrollOffset = level.mOffset;
+            showChildren(level.mListing.getContainers(), level.mListing.getItems());
+            updatePendingCount();
+            sortCurrentListing();
+            startPrefetch();
+            return;
+        }
+
+        if (container.isSearch()) {
+            // Search results are not cached, so are fetched afresh unless they are on the navigation stack.
+            mCurrentListing = new ContainerListing();
+            showChildren(Collections.<Container>emptyList(), Collections.<CompactItem>emptyList());
+            if (container.isLocalSearch()) {
+                mHasMorePages = false;
+                if (mListener != null) {
+                    new LibraryIndexSearchTask(mListener.getLibraryIndexDbHelper(), this)
+                            .execute(mDeviceUdn, container.getTitle());
+                }
+            } else {
+                mHasMorePages = true;
+                requestNextPage();
+            }
+            return;
+        }
+
+        ContainerListing cachedListing = mListener != null
+                ? mListener.getListingCache().get(mDeviceUdn, container.getId()) : null;
+        if (cachedListing != null) {
+            mCurrentListing = cachedListing;
+            mHasMorePages = cachedListing.hasMorePages();
+            showChildren(cachedListing.getContainers(), cachedListing.getItems());
+            updatePendingCount();
+            sortCurrentListing();
+            startPrefetch();
+            return;
+        }
+
+        mCurrentListing = new ContainerListing();
+        mHasMorePages = true;
+        if (mListener != null) {
+            mCurrentListing.setSystemUpdateId(mListener.getListingCache().getSystemUpdateId(mDeviceUdn));
+
+            // Look for a persisted copy of the listing before going to the network.
+            mDiskCacheReadPending = true;
+            new ListingCacheReadTask(mListener.getListingCacheDbHelper(), this).execute(mDeviceUdn, container.getId());
+        } else {
+            requestNextPage();
+        }
+    }
+
+    /**
+     * Saves the current listing and scroll position in the navigation session, so that coming back to the container
+     * does not need to browse it again.
+     */
+    private void saveCurrentLevel() {
+        if (mCurrentListing == null || mLayoutManager == null || mCurrentListing.getNextStartingIndex() == 0)
+            return;
+
+        int position = Math.max(mLayoutManager.findFirstVisibleItemPosition(), 0);
+        View firstVisible = mLayoutManager.findViewByPosition(position);
+        int offset = firstVisible != null ? firstVisible.getTop() - mLayoutManager.getPaddingTop() : 0;
+        mSession.saveLevel(mCurrentContainer.getId(), mCurrentListing, position, offset);
+    }
+
+    /**
+     * @return False if the device has evented a change to its contents since the listing was fetched.
+     */
+    private boolean isUpToDate(ContainerListing listing) {
+        if (mListener == null)
+            return true;
+
+        long systemUpdateId = mListener.getListingCache().getSystemUpdateId(mDeviceUdn);
+        return systemUpdateId == ContainerListingCache.UNKNOWN_SYSTEM_UPDATE_ID
+                || listing.getSystemUpdateId() == ContainerListingCache.UNKNOWN_SYSTEM_UPDATE_ID
+                || listing.getSystemUpdateId() == systemUpdateId;
+    }
+
+    @Override
+    public void onLibraryIndexSearched(String udn, String query, ContainerListing results) {
+        if (!mCurrentContainer.isLocalSearch() || !mCurrentContainer.getTitle().equals(query))
+            return;
+
+        if (results == null) {
+            Toast.makeText(getContext(), "This server does not support search, and has not been indexed yet",
+                    Toast.LENGTH_SHORT).show();
+            exitSearch();
+            return;
+        }
+
+        mCurrentListing = results;
+        showChildren(results.getContainers(), results.getItems());
+        updatePendingCount();
+        startPrefetch();
+    }
+
+    @Override
+    public void onListingCacheRead(String udn, String containerId, CachedListing cachedListing) {
+        if (!mDiskCacheReadPending || !containerId.equals(mCurrentContainer.getId()))
+            return;
+
+        mDiskCacheReadPending = false;
+        if (cachedListing != null) {
+            mUnverifiedListing = cachedListing;
+            showChildren(cachedListing.getListing().getContainers(), cachedListing.getListing().getItems());
+        }
+        reconcileCurrentListing();
+    }
+
+    /**
+     * Brings the current listing up to date with the server once it is connected: a listing from the on-disk cache is
+     * kept if the server's SystemUpdateID has not changed since it was fetched, and otherwise replaced by a live one.
+     */
+    private void reconcileCurrentListing() {
+        if (mUpnpService == null || mContentDirectoryService == null || mDiskCacheReadPending)
+            return;
+
+        if (mUnverifiedListing == null) {
+            requestNextPage();
+            return;
+        }
+
+        final CachedListing cachedListing = mUnverifiedListing;
+        mRequestScope.execute(mUpnpService.getControlPoint(), new GetSystemUpdateId(mContentDirectoryService) {
+            @Override
+            public void received(ActionInvocation invocation, final long systemUpdateId) {
+                onVerified(systemUpdateId == cachedListing.getSystemUpdateId());
+            }
+
+            @Override
+            public void failure(ActionInvocation invocation, UpnpResponse operation, String defaultMsg) {
+                onVerified(false);
+            }
+
+            private void onVerified(final boolean upToDate) {
+                if (getActivity() == null)
+                    return;
+
+                getActivity().runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mUnverifiedListing != cachedListing)
+                            return;
+
+                        mUnverifiedListing = null;
+                        if (upToDate) {
+                            Log.d(TAG, "reconcileCurrentListing: persisted listing is up to date");
+                            mCurrentListing = cachedListing.getListing();
+                            mHasMorePages = mCurrentListing.hasMorePages();
+                            if (mListener != null) {
+                                mListener.getListingCache().put(
+                                        mDeviceUdn, mCurrentContainer.getId(), mCurrentListing);
+                            }
+                            updatePendingCount();
+                            sortCurrentListing();
+                            startPrefetch();
+                        } else {
+                            // The displayed rows are replaced when the first live page arrives.
+                            requestNextPage();
+                        }
+                    }
+                });
+            }
+        }, ActionScheduler.Priority.INTERACTIVE);
+    }
+
+    /**
+     * Replaces the rows in the adapter with the given children of the current container.
+     */
+    private void showChildren(List<Container> containers, List<CompactItem> items) {
+        List<FileBrowserAdapter.ListItem> listItems = new ArrayList<>();
+        listItems.add(FileBrowserAdapter.ListItem.PREVIOUS_CONTAINER_LIST_ITEM);
+        listItems.addAll(createListItems(containers, items));
+        mListItemFilter.setRows(listItems);
+        if (!mListItemFilter.isActive()) {
+            mFileBrowserAdapter.setItems(listItems);
+            // Section positions are counted from the first child, after the row for the previous container.
+            mFileBrowserAdapter.setSections(mCurrentListing.getSections(), 1);
+        }
+    }
+
+    /**
+     * Puts the current listing into display order on a background thread once every page of it has been fetched, if
+     * the server did not sort it, and builds a section index for it if it is large.
+     */
+    private void sortCurrentListing() {
+        if (mHasMorePages || mCurrentContainer.isSearch() || mSortingListing == mCurrentListing)
+            return;
+
+        int childCount = mCurrentListing.getContainers().size() + mCurrentListing.getItems().size();
+        boolean needsSections = mCurrentListing.getSections() == null
+                && childCount >= ListingSorter.SECTION_INDEX_MIN_CHILDREN;
+        if (mCurrentListing.isSorted() && !needsSections)
+            return;
+
+        mSortingListing = mCurrentListing;
+        new ListingSortTask(mCurrentListing, !mCurrentListing.isSorted(), this)
+                .executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    @Override
+    public void onListingSorted(ContainerListing listing, ListingSorter.Result result) {
+        if (mSortingListing == listing) {
+            mSortingListing = null;
+        }
+        // The listing is kept in display order even if it is no longer shown, as it may be cached.
+        listing.setSortedChildren(result);
+        if (listing != mCurrentListing || mFileBrowserAdapter == null)
+            return;
+
+        showChildren(listing.getContainers(), listing.getItems());
+    }
+
+    /**
+     * Appends rows for the given children to the adapter.
+     */
+    private void addChildren(List<Container> containers, List<CompactItem> items) {
+        mFileBrowserAdapter.addAll(mListItemFilter.addRows(createListItems(containers, items)));
+    }
+
+    private List<FileBrowserAdapter.ListItem> createListItems(List<Container> containers,
+                                                             List<CompactItem> items) {
+        List<FileBrowserAdapter.ListItem> listItems = new ArrayList<>();
+        for (Container container : containers) {
+            ContainerWrapper wrapper = new ContainerWrapper(container);
+            if (mCurrentContainer.isSearch()) {
+                // Containers found by a search return to the results, wherever they are in the hierarchy.
+                wrapper = mSession.addSearchResult(wrapper);
+            } else {
+                mSession.addContainer(wrapper);
+            }
+            FileBrowserAdapter.ListItem listItem = new FileBrowserAdapter.ListItem(wrapper);
+            Boolean hasMediaItems = mCurrentListing.hasMediaItems(container.getId());
+            if (hasMediaItems != null) {
+                listItem.setProbeRequested(true);
+                listItem.setHasMediaItems(hasMediaItems);
+            } else if (listItem.getContainer().getChildCount() > 0) {
+                // Any child means there is something to play, so there is no need to ask the server.
+                listItem.setProbeRequested(true);
+                listItem.setHasMediaItems(true);
+            }
+            listItem.setIsBookmarked(mBookmarkedContainerIds.contains(container.getId()));
+            listItems.add(listItem);
+        }
+
+        for (CompactItem item : items) {
+            listItems.add(new FileBrowserAdapter.ListItem(item));
+        }
+        return listItems;
+    }
+
+    /**
+     * Updates the bookmark state of the rows for the given containers from mBookmarkedContainerIds.
+     */
+    private void applyBookmarks(Collection<String> containerIds) {
+        if (mFileBrowserAdapter == null)
+            return;
+
+        for (String containerId : containerIds) {
+            FileBrowserAdapter.ListItem listItem = mFileBrowserAdapter.getContainerItem(containerId);
+            if (listItem == null)
+                continue;
+
+            boolean isBookmarked = mBookmarkedContainerIds.contains(containerId);
+            if (listItem.isBookmarked() != isBookmarked) {
+                listItem.setIsBookmarked(isBookmarked);
+                mFileBrowserAdapter.notifyItemChangedOnNextFrame(listItem);
+            }
+        }
+    }
+
+    /**
+     * Reserves placeholder rows for the children of the current container that have not been fetched yet, so that the
+     * scrollbar reflects the full container.
+     */
+    private void updatePendingCount() {
+        if (!mHasMorePages) {
+            mFileBrowserAdapter.setPendingCount(0);
+            return;
+        }
+
+        // Servers may report a TotalMatches of 0 when they do not know the size of the container.
+        long totalMatches = mCurrentListing.getTotalMatches();
+        long loadedCount = mCurrentListing.getNextStartingIndex();
+        long pendingCount = totalMatches > loadedCount ? totalMatches - loadedCount : 1;
+        mFileBrowserAdapter.setPendingCount((int) Math.min(pendingCount, Integer.MAX_VALUE));
+    }
+
+    /**
+     * @return The sort criteria to browse listings with, or none if the device's sort capabilities are not known yet.
+     */
+    private SortCriterion[] getBrowseSortCriteria() {
+        return mSortCriteria != null ? mSortCriteria : new SortCriterion[0];
+    }
+
+    /**
+     * @return The sort criteria to fetch the rest of a listing with, which are those its first page was fetched with.
+     */
+    private SortCriterion[] getBrowseSortCriteria(ContainerListing listing) {
+        return listing.getNextStartingIndex() == 0 || listing.isSorted()
+                ? getBrowseSortCriteria() : new SortCriterion[0];
+    }
+
+    /**
+     * Requests the next page of children for the current container, if there is one and no request is already
+     * outstanding.
+     */
+    private void requestNextPage() {
+        if (mUpnpService == null || mContentDirectoryService == null || !mHasMorePages || mPageRequestInFlight
+                || mDiskCacheReadPending || mUnverifiedListing != null
+                // Every page of a listing has to be fetched in the same order, which for a listing that was started
+                // sorted, e.g. by a prefetch, is not known until the sort capabilities are.
+                || (mSortCriteria == null && mCurrentListing.isSorted() && !mCurrentContainer.isSearch()))
+            return;
+
+        mPageRequestInFlight = true;
+        if (mListener != null) {
+            mListener.getListingPrefetcher().yieldTo(mCurrentContainer.getId());
+        }
+        if (mCurrentContainer.isSearch()) {
+            // Search results are not cached, so are never persisted either.
+            PageRequest pageRequest = new PageRequest(
+                    mCurrentContainer.getId(), mCurrentListing.getNextStartingIndex(), BROWSE_PAGE_SIZE, false);
+            mRequestScope.execute(mUpnpService.getControlPoint(),
+                    new SearchPage(mContentDirectoryService, mCurrentContainer.getSearchCriteria(), pageRequest),
+                    ActionScheduler.Priority.INTERACTIVE);
+            return;
+        }
+
+        SortCriterion[] sortCriteria = getBrowseSortCriteria(mCurrentListing);
+        if (mCurrentListing.getNextStartingIndex() == 0) {
+            mCurrentListing.setSorted(sortCriteria.length > 0);
+            if (mCurrentListing.getSystemUpdateId() == ContainerListingCache.UNKNOWN_SYSTEM_UPDATE_ID) {
+                requestSystemUpdateId(mCurrentListing);
+            }
+        }
+
+        PageRequest pageRequest = new PageRequest(
+                mCurrentContainer.getId(), mCurrentListing.getNextStartingIndex(), BROWSE_PAGE_SIZE, true);
+        mRequestScope.execute(mUpnpService.getControlPoint(),
+                new SelectContainerBrowse(mContentDirectoryService, pageRequest, sortCriteria),
+                ActionScheduler.Priority.INTERACTIVE);
+    }
+
+    /**
+     * Prefetches the listings of the subfolders the user is most likely to open next, while no page of the current
+     * container is being fetched.
+     */
+    private void startPrefetch() {
+        if (mUpnpService == null || mContentDirectoryService == null || mListener == null || mPageRequestInFlight)
+            return;
+
+        List<Container> subfolders = new ArrayList<>();
+        for (Container container : mCurrentListing.getContainers()) {
+            // An empty container has nothing worth fetching.
+            if (container.getChildCount() == null || container.getChildCount() != 0) {
+                subfolders.add(container);
+            }
+        }
+
+        List<Container> mostOpened = new ArrayList<>();
+        for (Container container : subfolders) {
+            if (mSession.getOpenCount(container.getId()) > 0) {
+                mostOpened.add(container);
+            }
+        }
+        Collections.sort(mostOpened, new Comparator<Container>() {
+            @Override
+            public int compare(Container o1, Container o2) {
+                return mSession.getOpenCount(o2.getId()) - mSession.getOpenCount(o1.getId());
+            }
+        });
+
+        Set<String> containerIds = new LinkedHashSet<>();
+        for (Container container : mostOpened.subList(0, Math.min(mostOpened.size(), PREFETCH_MOST_OPENED_COUNT))) {
+            containerIds.add(container.getId());
+        }
+        for (int i = 0; i < subfolders.size() && i < PREFETCH_FIRST_SUBFOLDERS_COUNT; i++) {
+            if (containerIds.size() >= PREFETCH_MAX_COUNT)
+                break;
+            containerIds.add(subfolders.get(i).getId());
+        }
+        mListener.getListingPrefetcher().prefetch(mUpnpService.getControlPoint(), mDeviceUdn, mContentDirectoryService,
+                new ArrayList<>(containerIds), BROWSE_PAGE_SIZE, getBrowseSortCriteria());
+    }
+
+    /**
+     * Fetches the SystemUpdateID that a new listing is being fetched under, so that it can be persisted.
+     */
+    private void requestSystemUpdateId(final ContainerListing listing) {
+        mRequestScope.execute(mUpnpService.getControlPoint(), new GetSystemUpdateId(mContentDirectoryService) {
+            @Override
+            public void received(ActionInvocation invocation, final long systemUpdateId) {
+                if (getActivity() == null)
+                    return;
+
+                getActivity().runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (listing.getSystemUpdateId() == ContainerListingCache.UNKNOWN_SYSTEM_UPDATE_ID) {
+                            listing.setSystemUpdateId(systemUpdateId);
+                        }
+                    }
+                });
+            }
+
+            @Override
+            public void failure(ActionInvocation invocation, UpnpResponse operation, String defaultMsg) {
+                // Do nothing; the listing just won't be persisted.
+            }
+        }, ActionScheduler.Priority.INTERACTIVE);
     }
 
     public interface OnFragmentInteractionListener {
         void onQuitFileBrowsing();
         SQLiteOpenHelper getDbHelper();
+        ActionCoalescer getActionCoalescer();
+        ContainerListingCache getListingCache();
+        SQLiteOpenHelper getListingCacheDbHelper();
+        DeviceCapabilitiesCache getCapabilitiesCache();
+
+        /**
+         * @return The navigation session for the device, which should be kept for as long as the activity is.
+         */
+        NavigationSession getNavigationSession(String udn);
+        LibraryIndexer getLibraryIndexer();
+        ListingPrefetcher getListingPrefetcher();
+        SQLiteOpenHelper getLibraryIndexDbHelper();
         void playFiles(List<MediaQueueItem> mediaItems);
+
+        /**
+         * Adds files to the end of the queue started by playFiles().
+         */
+        void appendFiles(List<MediaQueueItem> mediaItems);
     }
 
-    private class SelectContainerBrowse extends Browse {
+    /**
+     * Fetches a page of the current container (or search results) and adds it to the list. The Browse or Search
+     * callback delegates its results here.
+     */
+    private class PageRequest {
+        private final RequestScope mScope = mRequestScope;
+        private final String mContainerId;
+        private final long mFirstResult;
+        private final long mMaxResults;
+        private final boolean mCacheable;
+
+        PageRequest(String containerId, long firstResult, long maxResults, boolean cacheable) {
+            mContainerId = containerId;
+            mFirstResult = firstResult;
+            mMaxResults = maxResults;
+            mCacheable = cacheable;
+        }
+
+        /**
+         * Decodes the Result with DidlLiteParser rather than letting cling build a DIDLContent, so that rows are
+         * shown batch by batch as they are parsed.
+         */
+        void onSuccess(ActionInvocation actionInvocation) {
+            if (getActivity() == null || mScope.isCancelled())
+                return;
+
+            Object result = actionInvocation.getOutput("Result") != null
+                    ? actionInvocation.getOutput("Result").getValue() : null;
+            final List<Container> containers = new ArrayList<>();
+            final List<CompactItem> items = new ArrayList<>();
+            if (result != null && !result.toString().isEmpty()) {
+                try {
+                    new DidlLiteParser(DIDL_BATCH_SIZE).parse(new StringReader(result.toString()),
+                            new DidlLiteParser.BatchListener() {
+                        @Override
+                        public void onBatch(List<Container> batchContainers, List<CompactItem> batchItems) {
+                            postBatch(batchContainers, batchItems, containers.isEmpty() && items.isEmpty());
+                            containers.addAll(batchContainers);
+                            items.addAll(batchItems);
+                        }
+                    });
+                } catch (XmlPullParserException | IOException e) {
+                    Log.w(TAG, "onSuccess: unable to parse result for " + mContainerId, e);
+                    onFailure();
+                    return;
+                }
+            }
+
+            long numberReturned = BrowsePaging.getUnsignedOutput(actionInvocation, "NumberReturned");
+            if (numberReturned < 0) {
+                numberReturned = containers.size() + items.size();
+            }
+            final long pageSize = numberReturned;
+            final long totalMatches = BrowsePaging.getUnsignedOutput(actionInvocation, "TotalMatches");
+            final boolean emptyPage = containers.isEmpty() && items.isEmpty();
+
+            getActivity().runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    // Drop pages for a container that is no longer being shown.
+                    if (!isCurrentPage())
+                        return;
 
-        SelectContainerBrowse(Service service, String containerId, BrowseFlag flag) {
-            super(service, containerId, flag);
+                    if (emptyPage && mFirstResult == 0) {
+                        showChildren(containers, items);
+                    }
+                    onPageLoaded(containers, items, pageSize, totalMatches);
+                }
+            });
         }
 
-        @Override
-        public void received(ActionInvocation actionInvocation, final DIDLContent didl) {
+        /**
+         * Adds a batch of children from the page to the list. Must be called on the parsing thread.
+         */
+        private void postBatch(final List<Container> containers, final List<CompactItem> items,
+                               final boolean firstBatch) {
             if (getActivity() == null)
                 return;
 
             getActivity().runOnUiThread(new Runnable() {
                 @Override
                 public void run() {
-                    mFileBrowserAdapter.clear();
-                    mFileBrowserAdapter.add(FileBrowserAdapter.ListItem.PREVIOUS_CONTAINER_LIST_ITEM);
-
-                    for (Container container : didl.getContainers()) {
-                        FileBrowserAdapter.ListItem listItem = new FileBrowserAdapter.ListItem(
-                                new ContainerWrapper(container));
-                        mFileBrowserAdapter.add(listItem);
-                        new BookmarksReadTask(mListener.getDbHelper(), FileBrowserFragment.this)
-                                .execute(mDeviceUdn, container.getId());
-                        if (!mContainerMap.containsKey(container.getId())) {
-                            mContainerMap.put(container.getId(), listItem.getContainer());
-                        }
+                    if (!isCurrentPage())
+                        return;
 
-                        CheckForMediaItemsBrowse mediaItemsBrowse = new CheckForMediaItemsBrowse(
-                                mContentDirectoryService, container.getId(), BrowseFlag.DIRECT_CHILDREN);
-                        mUpnpService.getControlPoint().execute(mediaItemsBrowse);
+                    if (firstBatch && mFirstResult == 0) {
+                        // Probes are restarted by onListItemsReplaced() once the new rows are shown.
+                        cancelSubfolderProbes();
+                        showChildren(containers, items);
+                        return;
                     }
 
-                    for (Item item : didl.getItems()) {
-                        mFileBrowserAdapter.add(new FileBrowserAdapter.ListItem(item));
-                    }
+                    addChildren(containers, items);
+
+                    // The list will also report the new rows through onScrolled once it has laid them out, but the
+                    // visible range may already be known.
+                    updateVisibleSubfolderProbes();
                 }
             });
         }
 
-        @Override
-        public void updateStatus(Status status) {
-            // Do nothing.
-        }
-
-        @Override
-        public void failure(ActionInvocation invocation, UpnpResponse operation, String defaultMsg) {
+        void onFailure() {
             if (getActivity() == null)
                 return;
 
             getActivity().runOnUiThread(new Runnable() {
                 @Override
                 public void run() {
+                    // Also covers requests that were aborted because the user moved on.
+                    if (!isCurrentPage())
+                        return;
+
+                    // Stop paging; the user can re-enter the container to retry.
+                    mPageRequestInFlight = false;
+                    mHasMorePages = false;
+                    mFileBrowserAdapter.setPendingCount(0);
                     Toast.makeText(getActivity(), "Unable to retrieve results", Toast.LENGTH_SHORT)
                             .show();
                 }
             });
         }
+
+        private boolean isCurrentPage() {
+            return !mScope.isCancelled() && mCurrentContainer.getId().equals(mContainerId)
+                    && mCurrentListing.getNextStartingIndex() == mFirstResult;
+        }
+
+        /**
+         * Updates the paging state and cache once a page has been added to the adapter. Must be called on the main
+         * thread.
+         *
+         * @param containers The containers in the page.
+         * @param items The items in the page.
+         * @param numberReturned The number of children in the page.
+         * @param totalMatches The TotalMatches reported by the server, or 0 or less if unknown.
+         */
+        private void onPageLoaded(List<Container> containers, List<CompactItem> items, long numberReturned,
+                                  long totalMatches) {
+            mPageRequestInFlight = false;
+
+            mHasMorePages =
+                    BrowsePaging.hasMorePages(mFirstResult + numberReturned, numberReturned, totalMatches, mMaxResults);
+
+            mCurrentListing.addPage(containers, items, numberReturned, totalMatches,
+                    mHasMorePages);
+            Log.d(TAG, "onPageLoaded: " + mContainerId + " now holds " + mCurrentListing.getNextStartingIndex()
+                    + " children, ~" + mCurrentListing.getEstimatedSizeBytes() + " bytes");
+            if (mListener != null && mCacheable) {
+                mListener.getListingCache().put(mDeviceUdn, mContainerId, mCurrentListing);
+
+                // Persist the first page, so that it can be shown immediately next time, and the complete listing.
+                boolean canValidate =
+                        mCurrentListing.getSystemUpdateId() != ContainerListingCache.UNKNOWN_SYSTEM_UPDATE_ID;
+                if (canValidate && (mFirstResult == 0 || !mHasMorePages)) {
+                    new ListingCacheWriteTask(mListener.getListingCacheDbHelper(), mDeviceUdn, mContainerId,
+                            mCurrentListing.getSystemUpdateId(), mCurrentListing).execute();
+                }
+            }
+            updatePendingCount();
+            if (mCacheable) {
+                sortCurrentListing();
+            }
+            startPrefetch();
+        }
     }
 
-    private class CheckForMediaItemsBrowse extends Browse {
-        private final String mContainerId;
+    private class SelectContainerBrowse extends Browse {
+        private final PageRequest mPageRequest;
 
-        CheckForMediaItemsBrowse(Service service, String containerId, BrowseFlag flag) {
-            super(service, containerId, flag);
-            mContainerId = containerId;
+        SelectContainerBrowse(Service service, PageRequest pageRequest, SortCriterion[] sortCriteria) {
+            super(service, pageRequest.mContainerId, BrowseFlag.DIRECT_CHILDREN,
+                    BrowseFilter.Profile.PLAYBACK.getFilter(), pageRequest.mFirstResult, pageRequest.mMaxResults,
+                    sortCriteria);
+            mPageRequest = pageRequest;
         }
 
         @Override
-        public void received(ActionInvocation actionInvocation, final DIDLContent didl) {
-            if (getActivity() == null || didl.getItems().isEmpty())
-                return;
+        public void success(ActionInvocation invocation) {
+            BrowseFilter.recordResult(BrowseFilter.Profile.PLAYBACK, invocation);
+            mPageRequest.onSuccess(invocation);
+        }
 
-            getActivity().runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    for (int i = 0; i < mFileBrowserAdapter.getCount(); i++) {
-                        FileBrowserAdapter.ListItem listItem = mFileBrowserAdapter.getItem(i);
-                        if (listItem != null && listItem.holdsContainer() &&
-                                Objects.equals(listItem.getContainer().getId(), mContainerId)) {
-                            listItem.setMediaItems(didl.getItems());
-                            mFileBrowserAdapter.notifyDataSetChanged();
-                        }
-                    }
-                }
-            });
+        @Override
+        public void received(ActionInvocation invocation, DIDLContent didl) {
+            // Not called, as success() is overridden.
         }
 
         @Override
@@ -401,7 +1551,104 @@ public class FileBrowserFragment extends Fragment implements AdapterView.OnItemC
 
         @Override
         public void failure(ActionInvocation invocation, UpnpResponse operation, String defaultMsg) {
+            mPageRequest.onFailure();
+        }
+    }
+
+    /**
+     * Searches the whole device, for the results shown by a search pseudo-container.
+     */
+    private class SearchPage extends Search {
+        private final PageRequest mPageRequest;
+
+        SearchPage(Service service, String searchCriteria, PageRequest pageRequest) {
+            super(service, ContainerWrapper.ROOT_CONTAINER_ID, searchCriteria,
+                    BrowseFilter.Profile.PLAYBACK.getFilter(), pageRequest.mFirstResult, pageRequest.mMaxResults);
+            mPageRequest = pageRequest;
+        }
+
+        @Override
+        public void success(ActionInvocation invocation) {
+            BrowseFilter.recordResult(BrowseFilter.Profile.PLAYBACK, invocation);
+            mPageRequest.onSuccess(invocation);
+        }
+
+        @Override
+        public void received(ActionInvocation invocation, DIDLContent didl) {
+            // Not called, as success() is overridden.
+        }
+
+        @Override
+        public void updateStatus(Status status) {
             // Do nothing.
         }
+
+        @Override
+        public void failure(ActionInvocation invocation, UpnpResponse operation, String defaultMsg) {
+            mPageRequest.onFailure();
+        }
+    }
+
+    /**
+     * Probes whether a container has anything to play, by fetching only its first child. Subfolders count, as playing
+     * a container plays its whole subtree.
+     */
+    private class CheckForMediaItemsBrowse extends Browse {
+        private final RequestScope mScope = mRequestScope;
+        private final FileBrowserAdapter.ListItem mListItem;
+        private final int mPosition;
+        private final ContainerListing mListing;
+
+        CheckForMediaItemsBrowse(Service service, FileBrowserAdapter.ListItem listItem, int position,
+                                 ContainerListing listing) {
+            super(service, listItem.getContainer().getId(), BrowseFlag.DIRECT_CHILDREN,
+                    BrowseFilter.Profile.MINIMAL.getFilter(), 0, 1L);
+            mListItem = listItem;
+            mPosition = position;
+            mListing = listing;
+        }
+
+        @Override
+        public void received(ActionInvocation actionInvocation, final DIDLContent didl) {
+            BrowseFilter.recordResult(BrowseFilter.Profile.MINIMAL, actionInvocation);
+            onProbeFinished(true, !didl.getItems().isEmpty() || !didl.getContainers().isEmpty());
+        }
+
+        @Override
+        public void updateStatus(Status status) {
+            // Do nothing.
+        }
+
+        @Override
+        public void failure(ActionInvocation invocation, UpnpResponse operation, String defaultMsg) {
+            onProbeFinished(false, false);
+        }
+
+        private void onProbeFinished(final boolean succeeded, final boolean hasMediaItems) {
+            if (getActivity() == null)
+                return;
+
+            getActivity().runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    // The probe belongs to a listing that has been replaced, and may have been aborted.
+                    if (mScope.isCancelled())
+                        return;
+
+                    String containerId = mListItem.getContainer().getId();
+                    if (mPendingProbes.get(containerId) == CheckForMediaItemsBrowse.this) {
+                        mPendingProbes.remove(containerId);
+                    }
+                    if (succeeded) {
+                        mListing.setHasMediaItems(containerId, hasMediaItems);
+                    }
+
+                    if (hasMediaItems) {
+                        mListItem.setHasMediaItems(true);
+                        mFileBrowserAdapter.notifyItemChangedOnNextFrame(mListItem);
+                    }
+                }
+            });
+        }
     }
 }
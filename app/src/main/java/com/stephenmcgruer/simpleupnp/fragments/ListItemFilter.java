@@ -0,0 +1,192 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR 'CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.stephenmcgruer.simpleupnp.fragments;
+
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.stephenmcgruer.simpleupnp.cling.FilterKeys;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Filters the rows of the file browser by title as the user types.
+ *
+ * Each row's title is reduced to a normalized key (see FilterKeys) once, where its child is parsed, and the key is
+ * kept on the row, so that each query is just a substring scan. Queries are debounced and matched on a
+ * background thread, and the rows matching the latest query are delivered as a single list.
+ *
+ * Should only be used on the main thread.
+ */
+class ListItemFilter {
+    static final long DEBOUNCE_MILLIS = 150;
+
+    interface Listener {
+        /**
+         * Called with the rows to show, whenever the query or the rows matching it change.
+         */
+        void onRowsFiltered(List<FileBrowserAdapter.ListItem> rows);
+    }
+
+    private final Listener mListener;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    // Every row of the listing, whether or not it matches.
+    private final List<FileBrowserAdapter.ListItem> mRows = new ArrayList<>();
+    private String mQuery = "";
+    private FilterTask mPendingTask;
+
+    private final Runnable mStartFilter = new Runnable() {
+        @Override
+        public void run() {
+            startFilter();
+        }
+    };
+
+    ListItemFilter(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * @return Whether rows are currently being filtered.
+     */
+    boolean isActive() {
+        return !mQuery.isEmpty();
+    }
+
+    /**
+     * Replaces the rows being filtered, e.g. because another container is being shown. If a query is active, the rows
+     * matching it are delivered once they have been found.
+     */
+    void setRows(List<FileBrowserAdapter.ListItem> rows) {
+        mRows.clear();
+        mRows.addAll(rows);
+        if (isActive()) {
+            mHandler.removeCallbacks(mStartFilter);
+            startFilter();
+        }
+    }
+
+    /**
+     * Adds rows to those being filtered.
+     *
+     * @return Those of the rows that should be shown straight away, which are the ones matching the query.
+     */
+    List<FileBrowserAdapter.ListItem> addRows(List<FileBrowserAdapter.ListItem> rows) {
+        mRows.addAll(rows);
+        if (!isActive())
+            return rows;
+
+        // A filter that is still to deliver its results will pick up the new rows too.
+        if (mPendingTask != null)
+            return new ArrayList<>();
+        return match(rows, mQuery);
+    }
+
+    /**
+     * Filters the rows by a query, once the user has stopped typing for DEBOUNCE_MILLIS. An empty query shows every
+     * row again, immediately.
+     */
+    void setQuery(String query) {
+        String normalizedQuery = normalize(query);
+        if (normalizedQuery.equals(mQuery))
+            return;
+
+        mQuery = normalizedQuery;
+        cancelPendingFilter();
+        if (isActive()) {
+            mHandler.postDelayed(mStartFilter, DEBOUNCE_MILLIS);
+        } else {
+            mListener.onRowsFiltered(new ArrayList<>(mRows));
+        }
+    }
+
+    /**
+     * Drops the query and any filtering in progress, without delivering the unfiltered rows.
+     */
+    void reset() {
+        mQuery = "";
+        cancelPendingFilter();
+    }
+
+    private void cancelPendingFilter() {
+        mHandler.removeCallbacks(mStartFilter);
+        if (mPendingTask != null) {
+            mPendingTask.cancel(false);
+            mPendingTask = null;
+        }
+    }
+
+    private void startFilter() {
+        if (mPendingTask != null) {
+            mPendingTask.cancel(false);
+        }
+        mPendingTask = new FilterTask(new ArrayList<>(mRows), mQuery);
+        // Filtering should not have to wait behind database tasks on the default serial executor.
+        mPendingTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    private void onFilterFinished(FilterTask task, List<FileBrowserAdapter.ListItem> matches) {
+        if (task != mPendingTask)
+            return;
+        mPendingTask = null;
+
+        // Rows added while the filter was running.
+        matches.addAll(match(mRows.subList(task.mRows.size(), mRows.size()), mQuery));
+        mListener.onRowsFiltered(matches);
+    }
+
+    /**
+     * @return The rows whose keys contain the query. The row for the previous container always matches.
+     */
+    private static List<FileBrowserAdapter.ListItem> match(List<FileBrowserAdapter.ListItem> rows, String query) {
+        List<FileBrowserAdapter.ListItem> matches = new ArrayList<>();
+        for (FileBrowserAdapter.ListItem row : rows) {
+            if (row.isPreviousContainerListItem() || row.getFilterKey().contains(query)) {
+                matches.add(row);
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Reduces a query to the form that rows are matched in.
+     */
+    static String normalize(String text) {
+        return FilterKeys.normalize(text);
+    }
+
+    private class FilterTask extends AsyncTask<Void, Void, List<FileBrowserAdapter.ListItem>> {
+        private final List<FileBrowserAdapter.ListItem> mRows;
+        private final String mQuery;
+
+        FilterTask(List<FileBrowserAdapter.ListItem> rows, String query) {
+            mRows = rows;
+            mQuery = query;
+        }
+
+        @Override
+        protected List<FileBrowserAdapter.ListItem> doInBackground(Void... params) {
+            return match(mRows, mQuery);
+        }
+
+        @Override
+        protected void onPostExecute(List<FileBrowserAdapter.ListItem> matches) {
+            onFilterFinished(this, matches);
+        }
+    }
+}
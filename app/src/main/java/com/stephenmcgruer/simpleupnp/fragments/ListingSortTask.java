@@ -0,0 +1,68 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR 'CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.stephenmcgruer.simpleupnp.fragments;
+
+import android.os.AsyncTask;
+
+import com.stephenmcgruer.simpleupnp.cling.CompactItem;
+import com.stephenmcgruer.simpleupnp.cling.ContainerListing;
+import com.stephenmcgruer.simpleupnp.cling.ListingSorter;
+
+import org.fourthline.cling.support.model.container.Container;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs ListingSorter over a complete listing on a background thread.
+ */
+class ListingSortTask extends AsyncTask<Void, Void, ListingSorter.Result> {
+
+    interface ResultListener {
+        /**
+         * Called on the main thread. The listing itself has not been changed.
+         */
+        void onListingSorted(ContainerListing listing, ListingSorter.Result result);
+    }
+
+    private final ContainerListing mListing;
+    private final List<Container> mContainers;
+    private final List<CompactItem> mItems;
+    private final boolean mReorder;
+    private final ResultListener mListener;
+
+    /**
+     * Must be created on the main thread, as it takes a copy of the listing's children.
+     *
+     * @param reorder Whether to sort the children, or just build a section index for them.
+     */
+    ListingSortTask(ContainerListing listing, boolean reorder, ResultListener listener) {
+        mListing = listing;
+        mContainers = new ArrayList<>(listing.getContainers());
+        mItems = new ArrayList<>(listing.getItems());
+        mReorder = reorder;
+        mListener = listener;
+    }
+
+    @Override
+    protected ListingSorter.Result doInBackground(Void... params) {
+        return ListingSorter.sort(mContainers, mItems, mReorder);
+    }
+
+    @Override
+    protected void onPostExecute(ListingSorter.Result result) {
+        mListener.onListingSorted(mListing, result);
+    }
+}
@@ -0,0 +1,210 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR 'CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.stephenmcgruer.simpleupnp.fragments;
+
+import com.stephenmcgruer.simpleupnp.cling.ContainerListing;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Where the user is on a device, kept by the activity so that it survives the file browser being thrown away when the
+ * user goes back to the server list.
+ *
+ * Holds the containers seen so far, the container being shown, the search the user is in, and for each level of the
+ * navigation stack the listing that was shown and how far it was scrolled, so that going back redraws it without
+ * browsing again. Levels are dropped, starting from the root, once their listings exceed MAX_SIZE_BYTES. Also counts
+ * how often each container has been opened, as a hint of where the user is likely to go next.
+ *
+ * Should only be accessed on the main thread.
+ */
+public class NavigationSession {
+    static final long MAX_SIZE_BYTES = 2 * 1024 * 1024;
+
+    private final Map<String, ContainerWrapper> mContainerMap = new HashMap<>();
+    private ContainerWrapper mCurrentContainer;
+
+    // The search the user is in, and the containers it found, re-parented so that leaving them returns to the
+    // results. Kept apart from mContainerMap so that the re-parenting ends with the search.
+    private ContainerWrapper mSearch;
+    private final Map<String, ContainerWrapper> mSearchResults = new HashMap<>();
+
+    // Keyed by container id, in the order they were left, so roughly from the root down.
+    private final LinkedHashMap<String, Level> mLevels = new LinkedHashMap<>();
+    private long mSizeBytes = 0;
+
+    private final Map<String, Integer> mOpenCounts = new HashMap<>();
+
+    public NavigationSession() {
+        this(ContainerWrapper.ROOT_CONTAINER);
+    }
+
+    /**
+     * @param start The container the session starts in, e.g. a bookmark, whose parent need not exist on the device.
+     */
+    NavigationSession(ContainerWrapper start) {
+        mContainerMap.put(start.getId(), start);
+        mCurrentContainer = start;
+    }
+
+    /**
+     * @return The container with the given id, as seen from the current search if there is one, or null if it has not
+     *     been seen.
+     */
+    ContainerWrapper getContainer(String id) {
+        if (mSearch != null) {
+            if (mSearch.getId().equals(id))
+                return mSearch;
+            ContainerWrapper searchResult = mSearchResults.get(id);
+            if (searchResult != null)
+                return searchResult;
+        }
+        return mContainerMap.get(id);
+    }
+
+    /**
+     * Records a container found in a listing, unless it has already been seen.
+     */
+    void addContainer(ContainerWrapper container) {
+        if (!mContainerMap.containsKey(container.getId())) {
+            mContainerMap.put(container.getId(), container);
+        }
+    }
+
+    /**
+     * Starts a search, replacing any previous one. It lasts until the user leaves its results and the containers
+     * opened from them.
+     */
+    void startSearch(ContainerWrapper search) {
+        mSearch = search;
+        mSearchResults.clear();
+    }
+
+    /**
+     * Records a container found by the current search.
+     *
+     * @return The container as seen from the search, i.e. with the search results as its parent.
+     */
+    ContainerWrapper addSearchResult(ContainerWrapper container) {
+        addContainer(container);
+        if (mSearch == null)
+            return container;
+
+        ContainerWrapper searchResult = container.withParentId(mSearch.getId());
+        mSearchResults.put(searchResult.getId(), searchResult);
+        return searchResult;
+    }
+
+    ContainerWrapper getCurrentContainer() {
+        return mCurrentContainer;
+    }
+
+    /**
+     * Records the container being shown, and drops the levels of any containers that are no longer on its path to the
+     * root. Ends the current search if the container is not in it.
+     */
+    void setCurrentContainer(ContainerWrapper container) {
+        mCurrentContainer = container;
+
+        Set<String> stack = new HashSet<>();
+        ContainerWrapper level = container;
+        // Stops at the first repeat, in case a server's hierarchy has a cycle in it.
+        while (level != null && stack.add(level.getId())) {
+            level = getContainer(level.getParentID());
+        }
+
+        if (mSearch != null && !stack.contains(mSearch.getId())) {
+            mSearch = null;
+            mSearchResults.clear();
+        }
+
+        Iterator<Map.Entry<String, Level>> iterator = mLevels.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Level> entry = iterator.next();
+            if (!stack.contains(entry.getKey())) {
+                mSizeBytes -= entry.getValue().mSizeBytes;
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Records that the user opened a container from a listing.
+     */
+    void recordOpen(String containerId) {
+        mOpenCounts.put(containerId, getOpenCount(containerId) + 1);
+    }
+
+    /**
+     * @return The number of times the user has opened a container from a listing in this session.
+     */
+    int getOpenCount(String containerId) {
+        Integer count = mOpenCounts.get(containerId);
+        return count != null ? count : 0;
+    }
+
+    /**
+     * Keeps the listing of a container that is being left, along with its scroll position.
+     *
+     * @param position The adapter position of the first visible row.
+     * @param offset The offset of that row from the top of the list, in pixels.
+     */
+    void saveLevel(String containerId, ContainerListing listing, int position, int offset) {
+        removeLevel(containerId);
+        Level level = new Level(listing, position, offset);
+        mLevels.put(containerId, level);
+        mSizeBytes += level.mSizeBytes;
+
+        Iterator<Level> iterator = mLevels.values().iterator();
+        while (iterator.hasNext() && mSizeBytes > MAX_SIZE_BYTES) {
+            mSizeBytes -= iterator.next().mSizeBytes;
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Removes and returns the saved level of a container, if there is one.
+     */
+    Level takeLevel(String containerId) {
+        return removeLevel(containerId);
+    }
+
+    private Level removeLevel(String containerId) {
+        Level level = mLevels.remove(containerId);
+        if (level != null) {
+            mSizeBytes -= level.mSizeBytes;
+        }
+        return level;
+    }
+
+    static class Level {
+        final ContainerListing mListing;
+        final int mPosition;
+        final int mOffset;
+        // Captured when saved, as the listing does not change afterwards.
+        private final long mSizeBytes;
+
+        Level(ContainerListing listing, int position, int offset) {
+            mListing = listing;
+            mPosition = position;
+            mOffset = offset;
+            mSizeBytes = listing.getEstimatedSizeBytes();
+        }
+    }
+}
@@ -39,11 +39,15 @@ import com.stephenmcgruer.simpleupnp.database.BookmarksContract.Bookmark;
 import org.fourthline.cling.android.AndroidUpnpService;
 import org.fourthline.cling.android.AndroidUpnpServiceImpl;
 import org.fourthline.cling.model.meta.Device;
-import org.fourthline.cling.model.types.UDAServiceType;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 
 public class ServerBrowserFragment extends Fragment implements AdapterView.OnItemClickListener,
         DeviceRegistryListener.DeviceChangeHandler {
@@ -52,6 +56,14 @@ public class ServerBrowserFragment extends Fragment implements AdapterView.OnIte
 
     private OnFragmentInteractionListener mListener;
 
+    // The adapters are backed directly by these lists, which are kept sorted by display name so that each change is a
+    // binary search and a single insert or remove rather than a full sort.
+    private final List<DeviceWrapper> mDevices = new ArrayList<>();
+    private final Map<String, DeviceWrapper> mDevicesByUdn = new HashMap<>();
+    private final List<BookmarkWrapper> mBookmarks = new ArrayList<>();
+    private final Set<Bookmark> mBookmarkSet = new HashSet<>();
+    private final Map<String, List<BookmarkWrapper>> mBookmarksByUdn = new HashMap<>();
+
     private ArrayAdapter<DeviceWrapper> mServerListAdapter;
     private TextView mBookmarkTextView;
     private ArrayAdapter<BookmarkWrapper> mBookmarkListAdapter;
@@ -65,14 +77,20 @@ public class ServerBrowserFragment extends Fragment implements AdapterView.OnIte
             Log.d(TAG, "onServiceConnected: " + name.flattenToShortString() + ", " + service.toString());
             mUpnpService = (AndroidUpnpService) service;
 
-            mServerListAdapter.clear();
+            mDevices.clear();
+            mDevicesByUdn.clear();
+            mServerListAdapter.notifyDataSetChanged();
 
             mUpnpService.getRegistry().addListener(mRegistryListener);
 
             // Add any already-cached devices.
+            List<Device> devices = new ArrayList<>();
             for (Device device : mUpnpService.getRegistry().getDevices()) {
-                onDeviceAdded(device);
+                if (DeviceRegistryListener.isMediaServer(device)) {
+                    devices.add(device);
+                }
             }
+            onDevicesChanged(devices, Collections.<Device>emptyList());
 
             // Kick off a search for all devices on the network.
             mUpnpService.getControlPoint().search();
@@ -120,15 +138,16 @@ public class ServerBrowserFragment extends Fragment implements AdapterView.OnIte
 
         ListView serverListView = (ListView) relativeLayoutView.findViewById(R.id.server_browser_list);
         mServerListAdapter =
-                new ArrayAdapter<>(serverListView.getContext(), R.layout.fragment_server_browser_item);
+                new ArrayAdapter<>(serverListView.getContext(), R.layout.fragment_server_browser_item, mDevices);
         serverListView.setAdapter(mServerListAdapter);
         serverListView.setOnItemClickListener(this);
 
         mBookmarkTextView = (TextView) relativeLayoutView.findViewById(R.id.bookmarks_text);
+        mBookmarkTextView.setVisibility(mBookmarks.isEmpty() ? View.GONE : View.VISIBLE);
 
         ListView bookmarkListView = (ListView) relativeLayoutView.findViewById(R.id.bookmarks_list);
         mBookmarkListAdapter =
-                new ArrayAdapter<>(bookmarkListView.getContext(), R.layout.fragment_server_browser_item);
+                new ArrayAdapter<>(bookmarkListView.getContext(), R.layout.fragment_server_browser_item, mBookmarks);
         bookmarkListView.setAdapter(mBookmarkListAdapter);
         bookmarkListView.setOnItemClickListener(this);
 
@@ -173,114 +192,175 @@ public class ServerBrowserFragment extends Fragment implements AdapterView.OnIte
     }
 
     @Override
-    public void onDeviceAdded(Device device) {
-        if (device.findService(new UDAServiceType("ContentDirectory")) == null)
-            return;
+    public void onDevicesChanged(List<Device> added, List<Device> removed) {
+        boolean devicesChanged = false;
+        boolean bookmarksChanged = false;
+        for (Device device : removed) {
+            devicesChanged |= removeDevice(device);
+            bookmarksChanged |= removeBookmarks(device);
+        }
+        for (Device device : added) {
+            devicesChanged |= addDevice(device);
+        }
 
-        DeviceWrapper wrapper = new DeviceWrapper(device);
-        int position = mServerListAdapter.getPosition(wrapper);
-        if (position >= 0) {
-            mServerListAdapter.remove(wrapper);
-            mServerListAdapter.insert(wrapper, position);
-        } else {
-            mServerListAdapter.add(wrapper);
+        if (devicesChanged) {
+            mServerListAdapter.notifyDataSetChanged();
+        }
+        if (bookmarksChanged) {
+            if (mBookmarks.isEmpty()) {
+                mBookmarkTextView.setVisibility(View.GONE);
+            }
+            mBookmarkListAdapter.notifyDataSetChanged();
         }
-        mServerListAdapter.sort(new DeviceWrapper.Comparator());
-        mServerListAdapter.notifyDataSetChanged();
+    }
+
+    /**
+     * @return Whether the list of devices changed.
+     */
+    private boolean addDevice(Device device) {
+        String udn = getUdn(device);
+        DeviceWrapper previous = mDevicesByUdn.get(udn);
+        if (previous != null && previous.isRevisionOf(device))
+            return false;
+
+        if (previous != null) {
+            mDevices.remove(Collections.binarySearch(mDevices, previous, DeviceWrapper.COMPARATOR));
+        }
+        DeviceWrapper wrapper = new DeviceWrapper(device, udn);
+        mDevicesByUdn.put(udn, wrapper);
+        insertSorted(mDevices, wrapper, DeviceWrapper.COMPARATOR);
 
         mListener.requestBookmarksForDevice(device);
+        return true;
     }
 
-    @Override
-    public void onDeviceRemoved(Device device) {
-        mServerListAdapter.remove(new DeviceWrapper(device));
-        mServerListAdapter.sort(new DeviceWrapper.Comparator());
-        mServerListAdapter.notifyDataSetChanged();
-
-        // Remove any related bookmarks.
-        String udn = device.getIdentity().getUdn().getIdentifierString();
-        List<BookmarkWrapper> toRemove = new ArrayList<>();
-        for (int i = 0; i < mBookmarkListAdapter.getCount(); i++) {
-            BookmarkWrapper wrapper = mBookmarkListAdapter.getItem(i);
-            if (wrapper != null && wrapper.getBookmark().getUdn().equals(udn)) {
-                toRemove.add(wrapper);
-            }
-        }
-        if (toRemove.isEmpty())
-            return;
+    /**
+     * @return Whether the list of devices changed.
+     */
+    private boolean removeDevice(Device device) {
+        DeviceWrapper previous = mDevicesByUdn.remove(getUdn(device));
+        if (previous == null)
+            return false;
+
+        mDevices.remove(Collections.binarySearch(mDevices, previous, DeviceWrapper.COMPARATOR));
+        return true;
+    }
+
+    /**
+     * Removes the bookmarks for a device.
+     *
+     * @return Whether the list of bookmarks changed.
+     */
+    private boolean removeBookmarks(Device device) {
+        List<BookmarkWrapper> toRemove = mBookmarksByUdn.remove(getUdn(device));
+        if (toRemove == null)
+            return false;
 
         for (BookmarkWrapper wrapper : toRemove) {
-            mBookmarkListAdapter.remove(wrapper);
+            mBookmarks.remove(Collections.binarySearch(mBookmarks, wrapper, BookmarkWrapper.COMPARATOR));
+            mBookmarkSet.remove(wrapper.getBookmark());
         }
-        if (mBookmarkListAdapter.isEmpty()) {
-            mBookmarkTextView.setVisibility(View.GONE);
-        }
-        mBookmarkListAdapter.notifyDataSetChanged();
+        return true;
     }
 
     public void addBookmarks(List<Bookmark> bookmarks) {
-        if (bookmarks.isEmpty())
-            return;
-
+        boolean added = false;
         for (Bookmark bookmark : bookmarks) {
+            if (!mBookmarkSet.add(bookmark))
+                continue;
+
             BookmarkWrapper wrapper = new BookmarkWrapper(bookmark);
-            if (mBookmarkListAdapter.getPosition(wrapper) < 0) {
-                mBookmarkListAdapter.add(wrapper);
+            insertSorted(mBookmarks, wrapper, BookmarkWrapper.COMPARATOR);
+            List<BookmarkWrapper> forDevice = mBookmarksByUdn.get(bookmark.getUdn());
+            if (forDevice == null) {
+                forDevice = new ArrayList<>();
+                mBookmarksByUdn.put(bookmark.getUdn(), forDevice);
             }
+            forDevice.add(wrapper);
+            added = true;
         }
+        if (!added)
+            return;
+
         mBookmarkTextView.setVisibility(View.VISIBLE);
         mBookmarkListAdapter.notifyDataSetChanged();
     }
 
+    private static String getUdn(Device device) {
+        return device.getIdentity().getUdn().getIdentifierString();
+    }
+
+    private static <T> void insertSorted(List<T> list, T element, java.util.Comparator<? super T> comparator) {
+        int position = Collections.binarySearch(list, element, comparator);
+        list.add(position < 0 ? -(position + 1) : position, element);
+    }
+
     /**
      * Simple wrapper of a @link{Device} for the list @link{ArrayAdapter}.
      */
     private static class DeviceWrapper {
+        // Orders by display name, then by UDN so that every device has a distinct position for binary searches.
+        static final java.util.Comparator<DeviceWrapper> COMPARATOR = new java.util.Comparator<DeviceWrapper>() {
+            @Override
+            public int compare(DeviceWrapper o1, DeviceWrapper o2) {
+                int result = o1.mDisplayName.compareTo(o2.mDisplayName);
+                return result != 0 ? result : o1.mUdn.compareTo(o2.mUdn);
+            }
+        };
+
         private final Device mDevice;
+        private final String mUdn;
+        private final boolean mFullyHydrated;
+        // Computed once per device revision, as it is needed on every comparison.
+        private final String mDisplayName;
 
-        DeviceWrapper(Device device) {
+        DeviceWrapper(Device device, String udn) {
             mDevice = device;
+            mUdn = udn;
+            mFullyHydrated = device.isFullyHydrated();
+
+            String name = (device.getDetails() != null && device.getDetails().getFriendlyName() != null)
+                    ? device.getDetails().getFriendlyName() : device.getDisplayString();
+            // Mark not yet fully loaded devices with an asterix.
+            mDisplayName = mFullyHydrated ? name : name + "*";
         }
 
         Device getDevice() {
             return mDevice;
         }
 
-        @Override
-        public boolean equals(Object obj) {
-            if (obj instanceof DeviceWrapper) {
-                DeviceWrapper other = (DeviceWrapper) obj;
-                return Objects.equals(mDevice, other.mDevice);
-            }
-            return false;
-        }
-
-        @Override
-        public int hashCode() {
-            return Objects.hash(mDevice);
+        /**
+         * @return Whether this wraps the given device in the same state, so that its display name is still current.
+         */
+        boolean isRevisionOf(Device device) {
+            return mDevice == device && mFullyHydrated == device.isFullyHydrated();
         }
 
         @Override
         public String toString() {
-            String name = (mDevice.getDetails() != null && mDevice.getDetails().getFriendlyName() != null)
-                    ? mDevice.getDetails().getFriendlyName() : mDevice.getDisplayString();
-            // Mark not yet fully loaded devices with an asterix.
-            return mDevice.isFullyHydrated() ? name : name + "*";
+            return mDisplayName;
         }
+    }
 
-        static class Comparator implements java.util.Comparator<DeviceWrapper> {
+    private static class BookmarkWrapper {
+        // Orders by display name, then by container id so that bookmarks with the same name have a stable position.
+        static final java.util.Comparator<BookmarkWrapper> COMPARATOR = new java.util.Comparator<BookmarkWrapper>() {
             @Override
-            public int compare(DeviceWrapper o1, DeviceWrapper o2) {
-                return o1.toString().compareTo(o2.toString());
+            public int compare(BookmarkWrapper o1, BookmarkWrapper o2) {
+                int result = o1.mDisplayName.compareTo(o2.mDisplayName);
+                if (result != 0)
+                    return result;
+                result = o1.mBookmark.getUdn().compareTo(o2.mBookmark.getUdn());
+                return result != 0 ? result : o1.mBookmark.getContainerId().compareTo(o2.mBookmark.getContainerId());
             }
-        }
-    }
+        };
 
-    private static class BookmarkWrapper {
         private final Bookmark mBookmark;
+        private final String mDisplayName;
 
         BookmarkWrapper(Bookmark bookmark) {
             mBookmark = bookmark;
+            mDisplayName = bookmark.getContainerName() + " (on " + bookmark.getDeviceName() + ")";
         }
 
         Bookmark getBookmark() {
@@ -303,8 +383,7 @@ public class ServerBrowserFragment extends Fragment implements AdapterView.OnIte
 
         @Override
         public String toString() {
-            return mBookmark.getContainerName() + " (on " + mBookmark.getDeviceName() + ")";
-
+            return mDisplayName;
         }
     }
 }
\ No newline at end of file
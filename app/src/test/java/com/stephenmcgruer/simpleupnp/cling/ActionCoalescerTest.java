@@ -0,0 +1,203 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR 'CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.stephenmcgruer.simpleupnp.cling;
+
+import org.fourthline.cling.controlpoint.ActionCallback;
+import org.fourthline.cling.controlpoint.ControlPoint;
+import org.fourthline.cling.model.action.ActionArgumentValue;
+import org.fourthline.cling.model.action.ActionException;
+import org.fourthline.cling.model.action.ActionInvocation;
+import org.fourthline.cling.model.message.UpnpResponse;
+import org.fourthline.cling.model.meta.Action;
+import org.fourthline.cling.model.meta.ActionArgument;
+import org.fourthline.cling.model.types.ErrorCode;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ActionCoalescerTest {
+    private static final String UDN = "uuid:device";
+
+    private ActionScheduler mScheduler;
+    private ControlPoint mControlPoint;
+    private ActionCoalescer mCoalescer;
+    private Action mAction;
+
+    @Before
+    public void setUp() {
+        mScheduler = mock(ActionScheduler.class);
+        mControlPoint = mock(ControlPoint.class);
+        mCoalescer = new ActionCoalescer(mScheduler);
+        mAction = mock(Action.class);
+        when(mAction.getName()).thenReturn("Browse");
+    }
+
+    @Test
+    public void identicalActionsShareOneCall() {
+        RecordingCallback first = execute(ActionScheduler.Priority.VISIBLE);
+        RecordingCallback second = execute(ActionScheduler.Priority.VISIBLE);
+
+        verify(mScheduler, times(1)).execute(eq(mControlPoint), eq(UDN), any(ActionCallback.class),
+                eq(ActionScheduler.Priority.VISIBLE));
+        assertTrue(mCoalescer.isActive(first));
+        assertTrue(mCoalescer.isActive(second));
+    }
+
+    @Test
+    public void joiningWithAHigherPriorityPromotesTheSharedCall() {
+        execute(ActionScheduler.Priority.BACKGROUND);
+        execute(ActionScheduler.Priority.INTERACTIVE);
+
+        verify(mScheduler).promote(eq(UDN), any(ActionCallback.class), eq(ActionScheduler.Priority.INTERACTIVE));
+    }
+
+    @Test
+    public void subscribersReceiveTheOutputsInTheirOwnInvocations() {
+        RecordingCallback first = execute(ActionScheduler.Priority.VISIBLE);
+        RecordingCallback second = execute(ActionScheduler.Priority.VISIBLE);
+        ActionCallback sharedAction = captureSharedAction();
+        ActionArgumentValue result = output("Result", "<DIDL-Lite/>");
+        sharedAction.getActionInvocation().setOutput(result);
+
+        sharedAction.success(sharedAction.getActionInvocation());
+
+        assertSame(first.getActionInvocation(), first.mSucceededWith);
+        assertSame(second.getActionInvocation(), second.mSucceededWith);
+        assertSame(result, first.getActionInvocation().getOutput("Result"));
+        assertSame(result, second.getActionInvocation().getOutput("Result"));
+        assertFalse(mCoalescer.isActive(first));
+        assertFalse(mCoalescer.isActive(second));
+    }
+
+    @Test
+    public void aSubscriberFailingToDecodeTheResultDoesNotAffectTheOthers() {
+        RecordingCallback first = execute(ActionScheduler.Priority.VISIBLE);
+        first.mFailToDecode = true;
+        RecordingCallback second = execute(ActionScheduler.Priority.VISIBLE);
+        ActionCallback sharedAction = captureSharedAction();
+
+        sharedAction.success(sharedAction.getActionInvocation());
+
+        assertTrue(first.mFailed);
+        assertFalse(second.mFailed);
+        assertNull(second.getActionInvocation().getFailure());
+        // The scheduler judges congestion by the shared invocation's failure.
+        assertNull(sharedAction.getActionInvocation().getFailure());
+    }
+
+    @Test
+    public void subscribersReceiveTheFailureOfTheSharedCall() {
+        RecordingCallback first = execute(ActionScheduler.Priority.VISIBLE);
+        RecordingCallback second = execute(ActionScheduler.Priority.VISIBLE);
+        ActionCallback sharedAction = captureSharedAction();
+        ActionException failure = new ActionException(ErrorCode.ACTION_FAILED.getCode(), "failed");
+        sharedAction.getActionInvocation().setFailure(failure);
+
+        sharedAction.failure(sharedAction.getActionInvocation(), null, "failed");
+
+        assertTrue(first.mFailed);
+        assertTrue(second.mFailed);
+        assertSame(failure, first.getActionInvocation().getFailure());
+        assertSame(failure, second.getActionInvocation().getFailure());
+    }
+
+    @Test
+    public void abortingOneSubscriberLeavesTheSharedCallRunning() {
+        RecordingCallback first = execute(ActionScheduler.Priority.VISIBLE);
+        RecordingCallback second = execute(ActionScheduler.Priority.VISIBLE);
+        ActionCallback sharedAction = captureSharedAction();
+
+        mCoalescer.abort(UDN, first);
+        verify(mScheduler, times(0)).abort(UDN, sharedAction);
+        assertFalse(mCoalescer.isActive(first));
+
+        mCoalescer.abort(UDN, second);
+        verify(mScheduler).abort(UDN, sharedAction);
+    }
+
+    @Test
+    public void actionsStartedAfterTheSharedCallFinishesAreSentAgain() {
+        execute(ActionScheduler.Priority.VISIBLE);
+        ActionCallback sharedAction = captureSharedAction();
+        sharedAction.success(sharedAction.getActionInvocation());
+
+        execute(ActionScheduler.Priority.VISIBLE);
+
+        verify(mScheduler, times(2)).execute(eq(mControlPoint), eq(UDN), any(ActionCallback.class),
+                eq(ActionScheduler.Priority.VISIBLE));
+    }
+
+    private RecordingCallback execute(ActionScheduler.Priority priority) {
+        RecordingCallback callback = new RecordingCallback(new ActionInvocation(mAction));
+        mCoalescer.execute(mControlPoint, UDN, callback, priority);
+        return callback;
+    }
+
+    private ActionCallback captureSharedAction() {
+        ArgumentCaptor<ActionCallback> captor = ArgumentCaptor.forClass(ActionCallback.class);
+        verify(mScheduler).execute(eq(mControlPoint), eq(UDN), captor.capture(), any(ActionScheduler.Priority.class));
+        return captor.getValue();
+    }
+
+    private static ActionArgumentValue output(String name, Object value) {
+        ActionArgument argument = mock(ActionArgument.class);
+        when(argument.getName()).thenReturn(name);
+        ActionArgumentValue argumentValue = mock(ActionArgumentValue.class);
+        when(argumentValue.getArgument()).thenReturn(argument);
+        when(argumentValue.getValue()).thenReturn(value);
+        return argumentValue;
+    }
+
+    /**
+     * Records how it was called back. If mFailToDecode is set, it fails the way cling's Browse does when the Result
+     * cannot be parsed.
+     */
+    private static class RecordingCallback extends ActionCallback {
+        boolean mFailToDecode = false;
+        ActionInvocation mSucceededWith;
+        boolean mFailed = false;
+
+        RecordingCallback(ActionInvocation invocation) {
+            super(invocation);
+        }
+
+        @Override
+        public void success(ActionInvocation invocation) {
+            if (mFailToDecode) {
+                invocation.setFailure(new ActionException(ErrorCode.ACTION_FAILED.getCode(), "bad DIDL"));
+                failure(invocation, null, "bad DIDL");
+                return;
+            }
+            mSucceededWith = invocation;
+        }
+
+        @Override
+        public void failure(ActionInvocation invocation, UpnpResponse operation, String defaultMsg) {
+            mFailed = true;
+        }
+    }
+}
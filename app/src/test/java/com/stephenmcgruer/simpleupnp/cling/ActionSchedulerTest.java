@@ -0,0 +1,286 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR 'CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.stephenmcgruer.simpleupnp.cling;
+
+import org.fourthline.cling.UpnpServiceConfiguration;
+import org.fourthline.cling.controlpoint.ActionCallback;
+import org.fourthline.cling.controlpoint.ControlPoint;
+import org.fourthline.cling.model.action.ActionException;
+import org.fourthline.cling.model.action.ActionInvocation;
+import org.fourthline.cling.model.message.UpnpResponse;
+import org.fourthline.cling.model.types.ErrorCode;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ActionSchedulerTest {
+    private static final String UDN = "uuid:device";
+    private static final double DELTA = 1e-9;
+
+    private ManualExecutor mExecutor;
+    private ControlPoint mControlPoint;
+    private long mNowMillis;
+    private ActionScheduler mScheduler;
+
+    @Before
+    public void setUp() {
+        mExecutor = new ManualExecutor();
+        UpnpServiceConfiguration configuration = mock(UpnpServiceConfiguration.class);
+        when(configuration.getSyncProtocolExecutorService()).thenReturn(mExecutor);
+        mControlPoint = mock(ControlPoint.class);
+        when(mControlPoint.getConfiguration()).thenReturn(configuration);
+
+        mNowMillis = 1000;
+        mScheduler = new ActionScheduler() {
+            @Override
+            long elapsedRealtime() {
+                return mNowMillis;
+            }
+        };
+    }
+
+    @Test
+    public void actionsBeyondTheWindowAreQueued() {
+        for (int i = 0; i < 6; i++) {
+            execute(ActionScheduler.Priority.VISIBLE);
+        }
+
+        assertEquals((int) ActionScheduler.INITIAL_WINDOW, mScheduler.getInFlightCount(UDN));
+        assertEquals(6 - (int) ActionScheduler.INITIAL_WINDOW, mScheduler.getQueueDepth(UDN));
+    }
+
+    @Test
+    public void fastSuccessesGrowTheWindowByAboutOnePerWindow() {
+        List<TestAction> actions = new ArrayList<>();
+        for (int i = 0; i < ActionScheduler.INITIAL_WINDOW; i++) {
+            actions.add(execute(ActionScheduler.Priority.VISIBLE));
+        }
+        runAll();
+
+        double window = mScheduler.getWindow(UDN);
+        assertTrue("window " + window, window > ActionScheduler.INITIAL_WINDOW + 0.9);
+        assertTrue("window " + window, window < ActionScheduler.INITIAL_WINDOW + 1);
+    }
+
+    @Test
+    public void slowSuccessesDoNotGrowTheWindow() {
+        execute(ActionScheduler.Priority.VISIBLE).mElapsedMillis = ActionScheduler.FAST_REPLY_MILLIS + 1;
+        runAll();
+
+        assertEquals(ActionScheduler.INITIAL_WINDOW, mScheduler.getWindow(UDN), DELTA);
+    }
+
+    @Test
+    public void congestionFailuresHalveTheWindowOncePerWindow() {
+        for (int i = 0; i < ActionScheduler.INITIAL_WINDOW; i++) {
+            execute(ActionScheduler.Priority.VISIBLE).fail(ErrorCode.ACTION_FAILED.getCode());
+        }
+
+        // All of the actions were in flight together, so only the first failure counts.
+        runAll();
+        assertEquals(ActionScheduler.INITIAL_WINDOW / 2, mScheduler.getWindow(UDN), DELTA);
+
+        // An action started after the decrease can shrink the window again.
+        mNowMillis += 10;
+        execute(ActionScheduler.Priority.VISIBLE).fail(ErrorCode.ACTION_FAILED.getCode());
+        runAll();
+        assertEquals(ActionScheduler.INITIAL_WINDOW / 4, mScheduler.getWindow(UDN), DELTA);
+    }
+
+    @Test
+    public void theWindowNeverDropsBelowTheMinimum() {
+        for (int i = 0; i < 10; i++) {
+            mNowMillis += 10;
+            execute(ActionScheduler.Priority.VISIBLE).fail(ErrorCode.ACTION_FAILED.getCode());
+            runAll();
+        }
+
+        assertEquals(ActionScheduler.MIN_WINDOW, mScheduler.getWindow(UDN), DELTA);
+        assertEquals(0, mScheduler.getInFlightCount(UDN));
+    }
+
+    @Test
+    public void theWindowNeverGrowsAboveTheMaximum() {
+        for (int i = 0; i < 1000; i++) {
+            execute(ActionScheduler.Priority.VISIBLE);
+            runAll();
+        }
+
+        assertEquals(ActionScheduler.MAX_WINDOW, mScheduler.getWindow(UDN), DELTA);
+    }
+
+    @Test
+    public void upnpErrorsDoNotChangeTheWindow() {
+        // 701, "No such object".
+        execute(ActionScheduler.Priority.VISIBLE).fail(701);
+        runAll();
+
+        assertEquals(ActionScheduler.INITIAL_WINDOW, mScheduler.getWindow(UDN), DELTA);
+    }
+
+    @Test
+    public void finishingAnActionStartsTheNextQueuedOne() {
+        for (int i = 0; i < ActionScheduler.INITIAL_WINDOW + 1; i++) {
+            execute(ActionScheduler.Priority.VISIBLE);
+        }
+
+        mExecutor.runNext();
+        assertEquals((int) ActionScheduler.INITIAL_WINDOW, mScheduler.getInFlightCount(UDN));
+        assertEquals(0, mScheduler.getQueueDepth(UDN));
+    }
+
+    @Test
+    public void interactiveActionOvertakesAFullWindow() {
+        int window = (int) ActionScheduler.INITIAL_WINDOW;
+        for (int i = 0; i < window + 1; i++) {
+            execute(ActionScheduler.Priority.VISIBLE);
+        }
+
+        execute(ActionScheduler.Priority.INTERACTIVE);
+
+        // The interactive action is handed to cling at once, while the extra VISIBLE action keeps waiting.
+        assertEquals(window + 1, mExecutor.getTaskCount());
+        assertEquals(window + 1, mScheduler.getInFlightCount(UDN));
+        assertEquals(1, mScheduler.getQueueDepth(UDN));
+    }
+
+    @Test
+    public void lowerLanesWaitUntilTheOvertakenWindowHasRoom() {
+        int window = (int) ActionScheduler.INITIAL_WINDOW;
+        for (int i = 0; i < window; i++) {
+            execute(ActionScheduler.Priority.BACKGROUND);
+        }
+        execute(ActionScheduler.Priority.INTERACTIVE);
+        execute(ActionScheduler.Priority.VISIBLE);
+
+        // Only RESERVED_FOREGROUND_SLOTS less than the window went to BACKGROUND, so the interactive action leaves
+        // the window full.
+        assertEquals(window, mScheduler.getInFlightCount(UDN));
+        assertEquals(2, mScheduler.getQueueDepth(UDN));
+
+        mExecutor.runNext();
+        assertEquals(window, mScheduler.getInFlightCount(UDN));
+        assertEquals(1, mScheduler.getQueueDepth(UDN));
+    }
+
+    @Test
+    public void interactiveActionsAreStillLimitedByTheWindow() {
+        int window = (int) ActionScheduler.INITIAL_WINDOW;
+        for (int i = 0; i < window + 1; i++) {
+            execute(ActionScheduler.Priority.INTERACTIVE);
+        }
+
+        assertEquals(window, mScheduler.getInFlightCount(UDN));
+        assertEquals(1, mScheduler.getQueueDepth(UDN));
+    }
+
+    private TestAction execute(ActionScheduler.Priority priority) {
+        TestAction action = new TestAction();
+        mScheduler.execute(mControlPoint, UDN, action, priority);
+        return action;
+    }
+
+    private void runAll() {
+        while (mExecutor.runNext()) {
+            // Keep going until the queues are empty.
+        }
+    }
+
+    /**
+     * An action that finishes immediately when run, taking mElapsedMillis of the scheduler's clock.
+     */
+    private class TestAction extends ActionCallback {
+        long mElapsedMillis = 0;
+        private ActionException mFailure;
+
+        TestAction() {
+            super(mock(ActionInvocation.class));
+        }
+
+        void fail(int errorCode) {
+            mFailure = new ActionException(errorCode, "failed");
+        }
+
+        @Override
+        public void run() {
+            mNowMillis += mElapsedMillis;
+            when(getActionInvocation().getFailure()).thenReturn(mFailure);
+        }
+
+        @Override
+        public void success(ActionInvocation invocation) {
+        }
+
+        @Override
+        public void failure(ActionInvocation invocation, UpnpResponse operation, String defaultMsg) {
+        }
+    }
+
+    /**
+     * An executor that only runs tasks when asked to, in submission order.
+     */
+    static class ManualExecutor extends AbstractExecutorService {
+        private final List<Runnable> mTasks = new ArrayList<>();
+
+        int getTaskCount() {
+            return mTasks.size();
+        }
+
+        boolean runNext() {
+            if (mTasks.isEmpty())
+                return false;
+            mTasks.remove(0).run();
+            return true;
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            mTasks.add(command);
+        }
+
+        @Override
+        public void shutdown() {
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            return new ArrayList<>();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return false;
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return false;
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR 'CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.stephenmcgruer.simpleupnp.cling;
+
+import org.fourthline.cling.model.action.ActionArgumentValue;
+import org.fourthline.cling.model.action.ActionInvocation;
+import org.fourthline.cling.model.types.UnsignedIntegerFourBytes;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class BrowsePagingTest {
+
+    @Test
+    public void getUnsignedOutputReadsTheArgument() {
+        ActionInvocation invocation = mock(ActionInvocation.class);
+        ActionArgumentValue value = mock(ActionArgumentValue.class);
+        when(value.getValue()).thenReturn(new UnsignedIntegerFourBytes(42));
+        when(invocation.getOutput("TotalMatches")).thenReturn(value);
+
+        assertEquals(42, BrowsePaging.getUnsignedOutput(invocation, "TotalMatches"));
+    }
+
+    @Test
+    public void getUnsignedOutputReturnsMinusOneWhenMissing() {
+        ActionInvocation invocation = mock(ActionInvocation.class);
+
+        assertEquals(-1, BrowsePaging.getUnsignedOutput(invocation, "TotalMatches"));
+    }
+
+    @Test
+    public void getUnsignedOutputReturnsMinusOneForOtherTypes() {
+        ActionInvocation invocation = mock(ActionInvocation.class);
+        ActionArgumentValue value = mock(ActionArgumentValue.class);
+        when(value.getValue()).thenReturn("42");
+        when(invocation.getOutput("TotalMatches")).thenReturn(value);
+
+        assertEquals(-1, BrowsePaging.getUnsignedOutput(invocation, "TotalMatches"));
+    }
+
+    @Test
+    public void hasMorePagesUntilTotalMatchesIsReached() {
+        assertTrue(BrowsePaging.hasMorePages(200, 200, 450, 200));
+        assertTrue(BrowsePaging.hasMorePages(400, 200, 450, 200));
+        assertFalse(BrowsePaging.hasMorePages(450, 50, 450, 200));
+    }
+
+    @Test
+    public void hasMorePagesTrustsTotalMatchesOverShortPages() {
+        // Servers may return fewer children than requested even when more remain.
+        assertTrue(BrowsePaging.hasMorePages(50, 50, 450, 200));
+    }
+
+    @Test
+    public void hasMorePagesStopsOnAnEmptyPage() {
+        assertFalse(BrowsePaging.hasMorePages(200, 0, 450, 200));
+    }
+
+    @Test
+    public void hasMorePagesUntilAShortPageWhenTotalMatchesIsUnknown() {
+        assertTrue(BrowsePaging.hasMorePages(400, 200, 0, 200));
+        assertFalse(BrowsePaging.hasMorePages(450, 50, 0, 200));
+        assertFalse(BrowsePaging.hasMorePages(450, 50, -1, 200));
+    }
+
+    @Test
+    public void hasMorePagesIgnoresATotalMatchesBelowTheLoadedCount() {
+        assertTrue(BrowsePaging.hasMorePages(400, 200, 300, 200));
+        assertFalse(BrowsePaging.hasMorePages(450, 50, 300, 200));
+    }
+}
@@ -0,0 +1,88 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR 'CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.stephenmcgruer.simpleupnp.cling;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class CompactItemTest {
+
+    @Test
+    public void parseDurationParsesWholeSeconds() {
+        assertEquals(3723000, CompactItem.parseDuration("1:02:03"));
+        assertEquals(0, CompactItem.parseDuration("0:00:00"));
+    }
+
+    @Test
+    public void parseDurationAllowsLongHours() {
+        assertEquals(100L * 3600 * 1000, CompactItem.parseDuration("100:00:00"));
+    }
+
+    @Test
+    public void parseDurationParsesDecimalFractions() {
+        assertEquals(1500, CompactItem.parseDuration("0:00:01.5"));
+        assertEquals(1050, CompactItem.parseDuration("0:00:01.05"));
+        assertEquals(1123, CompactItem.parseDuration("0:00:01.123456"));
+        assertEquals(1000, CompactItem.parseDuration("0:00:01."));
+    }
+
+    @Test
+    public void parseDurationParsesRatioFractions() {
+        assertEquals(1250, CompactItem.parseDuration("0:00:01.1/4"));
+        assertEquals(2333, CompactItem.parseDuration("0:00:02.1/3"));
+    }
+
+    @Test
+    public void parseDurationIgnoresSurroundingWhitespace() {
+        assertEquals(61000, CompactItem.parseDuration(" 0:01:01\n"));
+    }
+
+    @Test
+    public void parseDurationRejectsInvalidRatios() {
+        assertEquals(CompactItem.UNKNOWN_DURATION, CompactItem.parseDuration("0:00:01.1/0"));
+        assertEquals(CompactItem.UNKNOWN_DURATION, CompactItem.parseDuration("0:00:01.4/4"));
+        assertEquals(CompactItem.UNKNOWN_DURATION, CompactItem.parseDuration("0:00:01./4"));
+    }
+
+    @Test
+    public void parseDurationRejectsGarbage() {
+        assertEquals(CompactItem.UNKNOWN_DURATION, CompactItem.parseDuration(null));
+        assertEquals(CompactItem.UNKNOWN_DURATION, CompactItem.parseDuration(""));
+        assertEquals(CompactItem.UNKNOWN_DURATION, CompactItem.parseDuration("abc"));
+        assertEquals(CompactItem.UNKNOWN_DURATION, CompactItem.parseDuration("1:02"));
+        assertEquals(CompactItem.UNKNOWN_DURATION, CompactItem.parseDuration("1:02:03:04"));
+        assertEquals(CompactItem.UNKNOWN_DURATION, CompactItem.parseDuration("1::03"));
+        assertEquals(CompactItem.UNKNOWN_DURATION, CompactItem.parseDuration("-1:00:00"));
+        assertEquals(CompactItem.UNKNOWN_DURATION, CompactItem.parseDuration("+1:00:00"));
+        assertEquals(CompactItem.UNKNOWN_DURATION, CompactItem.parseDuration("0:00:01.5e3"));
+        assertEquals(CompactItem.UNKNOWN_DURATION, CompactItem.parseDuration("99999999999999:00:00"));
+    }
+
+    @Test
+    public void formatDurationWritesMilliseconds() {
+        assertEquals("1:02:03.500", CompactItem.formatDuration(3723500));
+        assertEquals("0:00:00.000", CompactItem.formatDuration(0));
+        assertEquals("100:00:00.001", CompactItem.formatDuration(100L * 3600 * 1000 + 1));
+    }
+
+    @Test
+    public void formattedDurationsParseBackToTheSameValue() {
+        long[] durations = { 0, 1, 999, 1000, 59999, 3600000, 3723500, 86400123 };
+        for (long duration : durations) {
+            assertEquals(duration, CompactItem.parseDuration(CompactItem.formatDuration(duration)));
+        }
+    }
+}
@@ -0,0 +1,51 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR 'CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.stephenmcgruer.simpleupnp.cling;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+
+public class ContainerListingCacheTest {
+
+    @Test
+    public void parseContainerUpdateIdsReturnsTheContainerIds() {
+        assertEquals(Arrays.asList("1$2", "7"), ContainerListingCache.parseContainerUpdateIds("1$2,15,7,3"));
+    }
+
+    @Test
+    public void parseContainerUpdateIdsUnescapesCommas() {
+        assertEquals(Arrays.asList("a,b", "c\\d"),
+                ContainerListingCache.parseContainerUpdateIds("a\\,b,4,c\\\\d,5"));
+    }
+
+    @Test
+    public void parseContainerUpdateIdsIgnoresATrailingIdWithoutAnUpdateId() {
+        assertEquals(Collections.singletonList("1"), ContainerListingCache.parseContainerUpdateIds("1,2,3"));
+    }
+
+    @Test
+    public void parseContainerUpdateIdsHandlesAnEmptyValue() {
+        assertEquals(Collections.<String>emptyList(), ContainerListingCache.parseContainerUpdateIds(""));
+    }
+
+    @Test
+    public void parseContainerUpdateIdsKeepsEmptyContainerIds() {
+        assertEquals(Arrays.asList("", "0"), ContainerListingCache.parseContainerUpdateIds(",1,0,2"));
+    }
+}
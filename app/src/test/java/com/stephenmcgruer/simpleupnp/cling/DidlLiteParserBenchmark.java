@@ -0,0 +1,103 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR 'CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.stephenmcgruer.simpleupnp.cling;
+
+import org.fourthline.cling.support.contentdirectory.DIDLParser;
+import org.fourthline.cling.support.model.container.Container;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.kxml2.io.KXmlParser;
+
+import java.io.StringReader;
+import java.util.List;
+
+/**
+ * Compares DidlLiteParser with cling's DIDLParser on a generated Browse result.
+ *
+ * Skipped unless run with -DrunBenchmarks=true, e.g.
+ * ./gradlew testDebugUnitTest -DrunBenchmarks=true --tests '*DidlLiteParserBenchmark'
+ */
+public class DidlLiteParserBenchmark {
+
+    private static final int CHILDREN = 5000;
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int ROUNDS = 20;
+    private static final int BATCH_SIZE = 200;
+
+    private String mDidl;
+
+    @Before
+    public void setUp() {
+        Assume.assumeTrue(Boolean.getBoolean("runBenchmarks"));
+
+        StringBuilder didl = new StringBuilder("<DIDL-Lite xmlns=\"urn:schemas-upnp-org:metadata-1-0/DIDL-Lite/\""
+                + " xmlns:dc=\"http://purl.org/dc/elements/1.1/\""
+                + " xmlns:upnp=\"urn:schemas-upnp-org:metadata-1-0/upnp/\">");
+        for (int i = 0; i < CHILDREN; i++) {
+            if (i % 10 == 0) {
+                didl.append("<container id=\"c").append(i).append("\" parentID=\"0\" childCount=\"12\">")
+                        .append("<dc:title>Album ").append(i).append("</dc:title>")
+                        .append("<upnp:class>object.container.album.musicAlbum</upnp:class></container>");
+            } else {
+                didl.append("<item id=\"i").append(i).append("\" parentID=\"0\" restricted=\"1\">")
+                        .append("<dc:title>Track ").append(i).append("</dc:title>")
+                        .append("<dc:creator>Artist</dc:creator><upnp:album>Album</upnp:album>")
+                        .append("<upnp:class>object.item.audioItem.musicTrack</upnp:class>")
+                        .append("<res protocolInfo=\"http-get:*:audio/mpeg:*\" duration=\"0:03:25.000\"")
+                        .append(" size=\"4923001\">http://192.168.1.2:8200/MediaItems/").append(i).append(".mp3</res>")
+                        .append("<res protocolInfo=\"http-get:*:image/jpeg:DLNA.ORG_PN=JPEG_TN\">")
+                        .append("http://192.168.1.2:8200/AlbumArt/").append(i).append(".jpg</res></item>");
+            }
+        }
+        mDidl = didl.append("</DIDL-Lite>").toString();
+    }
+
+    @Test
+    public void compareWithDidlParser() throws Exception {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            parseWithDidlLiteParser();
+            parseWithDidlParser();
+        }
+
+        long didlLiteNanos = 0;
+        long didlNanos = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            long start = System.nanoTime();
+            parseWithDidlLiteParser();
+            didlLiteNanos += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            parseWithDidlParser();
+            didlNanos += System.nanoTime() - start;
+        }
+
+        System.out.println(String.format("%d children: DidlLiteParser %.1fms, DIDLParser %.1fms per parse",
+                CHILDREN, didlLiteNanos / 1e6 / ROUNDS, didlNanos / 1e6 / ROUNDS));
+    }
+
+    private void parseWithDidlLiteParser() throws Exception {
+        new DidlLiteParser(BATCH_SIZE).parse(new KXmlParser(), new StringReader(mDidl),
+                new DidlLiteParser.BatchListener() {
+                    @Override
+                    public void onBatch(List<Container> containers, List<CompactItem> items) {
+                    }
+                });
+    }
+
+    private void parseWithDidlParser() throws Exception {
+        new DIDLParser().parse(mDidl);
+    }
+}
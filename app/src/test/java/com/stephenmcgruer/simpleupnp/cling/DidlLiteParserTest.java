@@ -0,0 +1,215 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR 'CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.stephenmcgruer.simpleupnp.cling;
+
+import org.fourthline.cling.support.model.container.Container;
+import org.junit.Test;
+import org.kxml2.io.KXmlParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class DidlLiteParserTest {
+
+    private static final String DIDL_START = "<DIDL-Lite xmlns=\"urn:schemas-upnp-org:metadata-1-0/DIDL-Lite/\""
+            + " xmlns:dc=\"http://purl.org/dc/elements/1.1/\" xmlns:upnp=\"urn:schemas-upnp-org:metadata-1-0/upnp/\">";
+    private static final String DIDL_END = "</DIDL-Lite>";
+
+    /** Records the size of each batch, and every child in document order. */
+    private static class RecordingListener implements DidlLiteParser.BatchListener {
+        final List<Integer> mBatchSizes = new ArrayList<>();
+        final List<Container> mContainers = new ArrayList<>();
+        final List<CompactItem> mItems = new ArrayList<>();
+
+        @Override
+        public void onBatch(List<Container> containers, List<CompactItem> items) {
+            mBatchSizes.add(containers.size() + items.size());
+            mContainers.addAll(containers);
+            mItems.addAll(items);
+        }
+    }
+
+    private static String container(String id, String title) {
+        return "<container id=\"" + id + "\" parentID=\"0\" childCount=\"3\"><dc:title>" + title + "</dc:title>"
+                + "<upnp:class>object.container.storageFolder</upnp:class></container>";
+    }
+
+    private static String item(String id, String title) {
+        return "<item id=\"" + id + "\" parentID=\"0\"><dc:title>" + title + "</dc:title>"
+                + "<upnp:class>object.item.audioItem.musicTrack</upnp:class>"
+                + "<res protocolInfo=\"http-get:*:audio/mpeg:*\" duration=\"0:03:25.500\">http://host/" + id
+                + ".mp3</res></item>";
+    }
+
+    private static RecordingListener parse(int batchSize, String didl) throws XmlPullParserException, IOException {
+        RecordingListener listener = new RecordingListener();
+        new DidlLiteParser(batchSize).parse(new KXmlParser(), new StringReader(didl), listener);
+        return listener;
+    }
+
+    @Test
+    public void parsesContainers() throws Exception {
+        RecordingListener listener = parse(10, DIDL_START + container("1", "Music") + DIDL_END);
+
+        assertEquals(1, listener.mContainers.size());
+        Container container = listener.mContainers.get(0);
+        assertEquals("1", container.getId());
+        assertEquals("0", container.getParentID());
+        assertEquals("Music", container.getTitle());
+        assertEquals("object.container.storageFolder", container.getClazz().getValue());
+        assertEquals(Integer.valueOf(3), container.getChildCount());
+    }
+
+    @Test
+    public void leavesInvalidChildCountUnknown() throws Exception {
+        RecordingListener listener = parse(10, DIDL_START
+                + "<container id=\"1\" parentID=\"0\" childCount=\"many\"><dc:title>A</dc:title></container>"
+                + DIDL_END);
+
+        Container container = listener.mContainers.get(0);
+        assertNull(container.getChildCount());
+        assertEquals("object.container", container.getClazz().getValue());
+    }
+
+    @Test
+    public void parsesItems() throws Exception {
+        RecordingListener listener = parse(10, DIDL_START + item("7", "Song") + DIDL_END);
+
+        assertEquals(1, listener.mItems.size());
+        CompactItem item = listener.mItems.get(0);
+        assertEquals("7", item.getId());
+        assertEquals("0", item.getParentId());
+        assertEquals("Song", item.getTitle());
+        assertEquals("object.item.audioItem.musicTrack", item.getUpnpClass());
+        assertEquals("http://host/7.mp3", item.getUrl());
+        assertEquals("http-get:*:audio/mpeg:*", item.getProtocolInfo());
+        assertEquals("audio/mpeg", item.getMimeType());
+        assertEquals(205500, item.getDurationMillis());
+    }
+
+    @Test
+    public void keepsOnlyTheFirstResource() throws Exception {
+        RecordingListener listener = parse(10, DIDL_START
+                + "<item id=\"7\" parentID=\"0\"><dc:title>Song</dc:title>"
+                + "<res protocolInfo=\"http-get:*:audio/flac:*\">http://host/7.flac</res>"
+                + "<res protocolInfo=\"http-get:*:audio/mpeg:*\" duration=\"0:01:00\">http://host/7.mp3</res>"
+                + "</item>" + DIDL_END);
+
+        CompactItem item = listener.mItems.get(0);
+        assertEquals("http://host/7.flac", item.getUrl());
+        assertEquals("audio/flac", item.getMimeType());
+        assertEquals(CompactItem.UNKNOWN_DURATION, item.getDurationMillis());
+    }
+
+    @Test
+    public void leavesMimeTypeUnknownForShortProtocolInfo() throws Exception {
+        RecordingListener listener = parse(10, DIDL_START
+                + "<item id=\"7\" parentID=\"0\"><res protocolInfo=\"http-get:*\">http://host/7</res></item>"
+                + DIDL_END);
+
+        assertNull(listener.mItems.get(0).getMimeType());
+    }
+
+    @Test
+    public void keepsDocumentOrderWithinEachKind() throws Exception {
+        RecordingListener listener = parse(10, DIDL_START + container("1", "A") + item("2", "B")
+                + container("3", "C") + item("4", "D") + DIDL_END);
+
+        assertEquals("1", listener.mContainers.get(0).getId());
+        assertEquals("3", listener.mContainers.get(1).getId());
+        assertEquals("2", listener.mItems.get(0).getId());
+        assertEquals("4", listener.mItems.get(1).getId());
+    }
+
+    @Test
+    public void splitsChildrenIntoBatches() throws Exception {
+        RecordingListener listener = parse(2, DIDL_START + container("1", "A") + item("2", "B")
+                + item("3", "C") + container("4", "D") + item("5", "E") + DIDL_END);
+
+        assertEquals(5, listener.mContainers.size() + listener.mItems.size());
+        assertEquals(3, listener.mBatchSizes.size());
+        assertEquals(Integer.valueOf(2), listener.mBatchSizes.get(0));
+        assertEquals(Integer.valueOf(2), listener.mBatchSizes.get(1));
+        assertEquals(Integer.valueOf(1), listener.mBatchSizes.get(2));
+    }
+
+    @Test
+    public void sendsNoEmptyTrailingBatch() throws Exception {
+        RecordingListener listener = parse(2, DIDL_START + item("1", "A") + item("2", "B") + item("3", "C")
+                + item("4", "D") + DIDL_END);
+
+        assertEquals(2, listener.mBatchSizes.size());
+        assertEquals(Integer.valueOf(2), listener.mBatchSizes.get(1));
+    }
+
+    @Test
+    public void sendsNoBatchForAnEmptyDocument() throws Exception {
+        RecordingListener listener = parse(2, DIDL_START + DIDL_END);
+
+        assertEquals(0, listener.mBatchSizes.size());
+    }
+
+    @Test
+    public void returnsTheNumberOfChildren() throws Exception {
+        int count = new DidlLiteParser(2).parse(new KXmlParser(),
+                new StringReader(DIDL_START + container("1", "A") + item("2", "B") + item("3", "C") + DIDL_END),
+                new RecordingListener());
+
+        assertEquals(3, count);
+    }
+
+    @Test
+    public void ignoresUnknownAndNestedElements() throws Exception {
+        RecordingListener listener = parse(10, DIDL_START
+                + "<desc id=\"d\"><item id=\"nested\" parentID=\"0\"/></desc>"
+                + "<item id=\"7\" parentID=\"0\"><dc:title>Song</dc:title><upnp:albumArtURI>http://host/art"
+                + "</upnp:albumArtURI><upnp:extra><dc:title>Not the title</dc:title></upnp:extra></item>"
+                + DIDL_END);
+
+        assertEquals(1, listener.mItems.size());
+        assertEquals("7", listener.mItems.get(0).getId());
+        assertEquals("Song", listener.mItems.get(0).getTitle());
+    }
+
+    @Test(expected = XmlPullParserException.class)
+    public void rejectsUnclosedElements() throws Exception {
+        parse(10, DIDL_START + "<item id=\"7\" parentID=\"0\"><dc:title>Song</dc:title>" + DIDL_END);
+    }
+
+    @Test(expected = XmlPullParserException.class)
+    public void rejectsUnboundPrefixes() throws Exception {
+        parse(10, "<DIDL-Lite><item id=\"7\"><dc:title>Song</dc:title></item></DIDL-Lite>");
+    }
+
+    @Test
+    public void deliversBatchesBeforeAMalformedTail() throws Exception {
+        RecordingListener listener = new RecordingListener();
+        try {
+            new DidlLiteParser(1).parse(new KXmlParser(),
+                    new StringReader(DIDL_START + item("1", "A") + "<item id=\"2\"><dc:title>B</item>"), listener);
+        } catch (XmlPullParserException e) {
+            assertEquals(1, listener.mItems.size());
+            return;
+        }
+        fail("Expected an XmlPullParserException");
+    }
+}
@@ -0,0 +1,73 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR 'CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.stephenmcgruer.simpleupnp.cling;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SearchCriteriaTest {
+
+    @Test
+    public void forTextQueryMatchesEachWordInAnySupportedProperty() {
+        assertEquals("(dc:title contains \"blue\" or upnp:artist contains \"blue\")"
+                        + " and (dc:title contains \"moon\" or upnp:artist contains \"moon\")",
+                SearchCriteria.forTextQuery("blue moon", Arrays.asList("dc:title", "upnp:artist", "upnp:genre")));
+    }
+
+    @Test
+    public void forTextQueryUsesEveryPropertyForAWildcard() {
+        assertEquals("(dc:title contains \"x\" or upnp:artist contains \"x\" or upnp:album contains \"x\")",
+                SearchCriteria.forTextQuery("x", Collections.singletonList("*")));
+    }
+
+    @Test
+    public void forTextQueryCollapsesWhitespace() {
+        assertEquals("(dc:title contains \"a\") and (dc:title contains \"b\")",
+                SearchCriteria.forTextQuery("  a \t\n b  ", Collections.singletonList("dc:title")));
+    }
+
+    @Test
+    public void forTextQueryEscapesQuotesAndBackslashes() {
+        assertEquals("(dc:title contains \"say\\\"hi\\\\\")",
+                SearchCriteria.forTextQuery("say\"hi\\", Collections.singletonList("dc:title")));
+        assertEquals("\"a\\\\b\\\"c\"", SearchCriteria.quote("a\\b\"c"));
+    }
+
+    @Test
+    public void forTextQueryReturnsNullForBlankQueries() {
+        assertNull(SearchCriteria.forTextQuery("", Collections.singletonList("*")));
+        assertNull(SearchCriteria.forTextQuery(" \t ", Collections.singletonList("*")));
+    }
+
+    @Test
+    public void forTextQueryReturnsNullWithoutSearchableProperties() {
+        assertNull(SearchCriteria.forTextQuery("x", Collections.<String>emptyList()));
+        assertNull(SearchCriteria.forTextQuery("x", Collections.singletonList("upnp:genre")));
+    }
+
+    @Test
+    public void supportsTextQuery() {
+        assertTrue(SearchCriteria.supportsTextQuery(Collections.singletonList("*")));
+        assertTrue(SearchCriteria.supportsTextQuery(Arrays.asList("upnp:class", "upnp:album")));
+        assertFalse(SearchCriteria.supportsTextQuery(Collections.singletonList("upnp:class")));
+    }
+}
@@ -0,0 +1,52 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR 'CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.stephenmcgruer.simpleupnp.cling;
+
+import org.fourthline.cling.support.model.SortCriterion;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+
+public class SortCriteriaTest {
+
+    @Test
+    public void forListingSortsByTitleAlone() {
+        SortCriterion[] criteria = SortCriteria.forListing(Arrays.asList("upnp:class", "dc:title", "dc:date"));
+
+        assertEquals(1, criteria.length);
+        assertEquals("+dc:title", criteria[0].toString());
+    }
+
+    @Test
+    public void forListingSortsByTitleForAWildcard() {
+        SortCriterion[] criteria = SortCriteria.forListing(Collections.singletonList("*"));
+
+        assertEquals(1, criteria.length);
+        assertEquals("+dc:title", criteria[0].toString());
+    }
+
+    @Test
+    public void forListingIsEmptyWithoutTitle() {
+        assertEquals(0, SortCriteria.forListing(Arrays.asList("upnp:class", "dc:date")).length);
+    }
+
+    @Test
+    public void forListingIsEmptyWithoutCapabilities() {
+        assertEquals(0, SortCriteria.forListing(Collections.<String>emptyList()).length);
+    }
+}
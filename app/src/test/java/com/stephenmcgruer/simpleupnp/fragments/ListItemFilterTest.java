@@ -0,0 +1,93 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR 'CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.stephenmcgruer.simpleupnp.fragments;
+
+import com.stephenmcgruer.simpleupnp.cling.CompactItem;
+import com.stephenmcgruer.simpleupnp.cling.KeyedContainer;
+
+import org.fourthline.cling.support.model.DIDLObject;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class ListItemFilterTest {
+
+    @Test
+    public void normalizeFoldsCase() {
+        assertEquals("abbey road", ListItemFilter.normalize("ABBEY Road"));
+    }
+
+    @Test
+    public void normalizeStripsAccents() {
+        assertEquals("beyonce", ListItemFilter.normalize("Beyoncé"));
+        assertEquals("sigur ros", ListItemFilter.normalize("Sigur Rós"));
+    }
+
+    @Test
+    public void normalizeCollapsesPunctuationAndWhitespace() {
+        assertEquals("ac dc back in black", ListItemFilter.normalize("  AC/DC -- Back   in Black! "));
+    }
+
+    @Test
+    public void normalizeRemovesOneLeadingArticle() {
+        assertEquals("beatles", ListItemFilter.normalize("The Beatles"));
+        assertEquals("tribe called quest", ListItemFilter.normalize("A Tribe Called Quest"));
+        assertEquals("the end", ListItemFilter.normalize("The The End"));
+    }
+
+    @Test
+    public void normalizeKeepsArticlesThatAreNotWholeWords() {
+        assertEquals("theory", ListItemFilter.normalize("Theory"));
+        assertEquals("another", ListItemFilter.normalize("Another"));
+    }
+
+    @Test
+    public void normalizeKeepsDigitsAndNonLatinLetters() {
+        assertEquals("track 10", ListItemFilter.normalize("Track #10"));
+        assertEquals("東京", ListItemFilter.normalize("東京"));
+    }
+
+    @Test
+    public void normalizeTreatsNullAsEmpty() {
+        assertEquals("", ListItemFilter.normalize(null));
+        assertEquals("", ListItemFilter.normalize(" - "));
+    }
+
+    @Test
+    public void listItemsReuseTheKeysBuiltWhenParsed() {
+        KeyedContainer parsedContainer = new KeyedContainer("1", "0", "The Wall", null,
+                new DIDLObject.Class("object.container.album"), 26);
+        CompactItem parsedItem =
+                new CompactItem("2", "1", "Comfortably Numb", "object.item.audioItem", null, null, null, 0);
+
+        FileBrowserAdapter.ListItem container = new FileBrowserAdapter.ListItem(new ContainerWrapper(parsedContainer));
+        FileBrowserAdapter.ListItem item = new FileBrowserAdapter.ListItem(parsedItem);
+
+        assertEquals("wall", container.getFilterKey());
+        assertSame(parsedContainer.getFilterKey(), container.getFilterKey());
+        assertEquals("comfortably numb", item.getFilterKey());
+        assertSame(parsedItem.getFilterKey(), item.getFilterKey());
+    }
+
+    @Test
+    public void listItemsBuildMissingKeys() {
+        FileBrowserAdapter.ListItem container = new FileBrowserAdapter.ListItem(
+                new ContainerWrapper("The Wall", "1", "0"));
+
+        assertEquals("wall", container.getFilterKey());
+        assertEquals("", FileBrowserAdapter.ListItem.LOADING_LIST_ITEM.getFilterKey());
+    }
+}
@@ -0,0 +1,199 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR 'CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.stephenmcgruer.simpleupnp.fragments;
+
+import com.stephenmcgruer.simpleupnp.cling.CompactItem;
+import com.stephenmcgruer.simpleupnp.cling.ContainerListing;
+
+import org.fourthline.cling.support.model.container.Container;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class NavigationSessionTest {
+
+    private NavigationSession mSession;
+
+    @Before
+    public void setUp() {
+        mSession = new NavigationSession();
+    }
+
+    @Test
+    public void addContainerKeepsTheFirstSighting() {
+        ContainerWrapper first = new ContainerWrapper("A", "a", "0");
+        mSession.addContainer(first);
+        mSession.addContainer(new ContainerWrapper("A", "a", "elsewhere"));
+
+        assertSame(first, mSession.getContainer("a"));
+    }
+
+    @Test
+    public void searchResultsReturnToTheSearch() {
+        mSession.addContainer(new ContainerWrapper("A", "a", "0"));
+        ContainerWrapper search = ContainerWrapper.forLocalSearch("query", "0");
+        mSession.startSearch(search);
+        mSession.setCurrentContainer(search);
+
+        ContainerWrapper result = mSession.addSearchResult(new ContainerWrapper("A", "a", "0"));
+
+        assertEquals(search.getId(), result.getParentID());
+        assertSame(result, mSession.getContainer("a"));
+        assertSame(search, mSession.getContainer(search.getId()));
+    }
+
+    @Test
+    public void searchResultsDoNotReplaceTheirRealParents() {
+        ContainerWrapper search = ContainerWrapper.forLocalSearch("query", "0");
+        mSession.startSearch(search);
+        mSession.setCurrentContainer(search);
+        mSession.addSearchResult(new ContainerWrapper("A", "a", "0"));
+
+        // Leave the search results for the root, and browse to the container normally.
+        mSession.setCurrentContainer(ContainerWrapper.ROOT_CONTAINER);
+
+        assertEquals("0", mSession.getContainer("a").getParentID());
+        assertNull(mSession.getContainer(search.getId()));
+    }
+
+    @Test
+    public void searchLastsWhileBrowsingBelowItsResults() {
+        ContainerWrapper search = ContainerWrapper.forLocalSearch("query", "0");
+        mSession.startSearch(search);
+        mSession.setCurrentContainer(search);
+        ContainerWrapper result = mSession.addSearchResult(new ContainerWrapper("A", "a", "0"));
+        mSession.setCurrentContainer(result);
+        ContainerWrapper child = new ContainerWrapper("B", "b", "a");
+        mSession.addContainer(child);
+        mSession.setCurrentContainer(child);
+
+        assertSame(result, mSession.getContainer("a"));
+        assertSame(search, mSession.getContainer(result.getParentID()));
+    }
+
+    @Test
+    public void newSearchReplacesTheResultsOfThePreviousOne() {
+        ContainerWrapper first = ContainerWrapper.forLocalSearch("first", "0");
+        mSession.startSearch(first);
+        mSession.setCurrentContainer(first);
+        mSession.addSearchResult(new ContainerWrapper("A", "a", "0"));
+
+        ContainerWrapper second = ContainerWrapper.forLocalSearch("second", "0");
+        mSession.startSearch(second);
+        mSession.setCurrentContainer(second);
+
+        assertEquals("0", mSession.getContainer("a").getParentID());
+        assertNull(mSession.getContainer(first.getId()));
+    }
+
+    @Test
+    public void startContainerIsCurrentAndKnown() {
+        ContainerWrapper bookmark = new ContainerWrapper("Bookmark", "b", "-1");
+        NavigationSession session = new NavigationSession(bookmark);
+
+        assertSame(bookmark, session.getCurrentContainer());
+        assertSame(bookmark, session.getContainer("b"));
+        assertNull(session.getContainer(ContainerWrapper.ROOT_CONTAINER_ID));
+    }
+
+    @Test
+    public void levelsAreKeptWhileUnderTheLimit() {
+        descend("a", "b");
+        mSession.saveLevel("0", listingOfSize(1024), 3, 7);
+        mSession.saveLevel("a", listingOfSize(1024), 0, 0);
+
+        NavigationSession.Level level = mSession.takeLevel("0");
+        assertNotNull(level);
+        assertEquals(3, level.mPosition);
+        assertEquals(7, level.mOffset);
+        assertNotNull(mSession.takeLevel("a"));
+    }
+
+    @Test
+    public void levelsNearestTheRootAreEvictedFirst() {
+        descend("a", "b", "c");
+        long third = NavigationSession.MAX_SIZE_BYTES / 3 + 1;
+        mSession.saveLevel("0", listingOfSize(third), 0, 0);
+        mSession.saveLevel("a", listingOfSize(third), 0, 0);
+        mSession.saveLevel("b", listingOfSize(third), 0, 0);
+
+        assertNull(mSession.takeLevel("0"));
+        assertNotNull(mSession.takeLevel("a"));
+        assertNotNull(mSession.takeLevel("b"));
+    }
+
+    @Test
+    public void takenLevelsNoLongerCountTowardsTheLimit() {
+        descend("a", "b");
+        long half = NavigationSession.MAX_SIZE_BYTES / 2 + 1;
+        mSession.saveLevel("0", listingOfSize(half), 0, 0);
+        mSession.takeLevel("0");
+        mSession.saveLevel("a", listingOfSize(half), 0, 0);
+        mSession.saveLevel("0", listingOfSize(1024), 0, 0);
+
+        assertNotNull(mSession.takeLevel("a"));
+        assertNotNull(mSession.takeLevel("0"));
+    }
+
+    @Test
+    public void levelLargerThanTheLimitIsNotKept() {
+        descend("a");
+        mSession.saveLevel("0", listingOfSize(NavigationSession.MAX_SIZE_BYTES + 1), 0, 0);
+
+        assertNull(mSession.takeLevel("0"));
+    }
+
+    @Test
+    public void leavingTheStackDropsItsLevels() {
+        descend("a", "b");
+        mSession.saveLevel("a", listingOfSize(1024), 0, 0);
+
+        mSession.setCurrentContainer(ContainerWrapper.ROOT_CONTAINER);
+
+        assertNull(mSession.takeLevel("a"));
+    }
+
+    /** Browses down from the root through containers with the given ids, each the child of the last. */
+    private void descend(String... ids) {
+        String parentId = ContainerWrapper.ROOT_CONTAINER_ID;
+        for (String id : ids) {
+            ContainerWrapper container = new ContainerWrapper(id, id, parentId);
+            mSession.addContainer(container);
+            mSession.setCurrentContainer(container);
+            parentId = id;
+        }
+    }
+
+    /** @return A listing of a single item whose estimated size is at least sizeBytes. */
+    private static ContainerListing listingOfSize(long sizeBytes) {
+        StringBuilder url = new StringBuilder();
+        for (long i = 0; i < sizeBytes / 2; i++) {
+            url.append('x');
+        }
+        CompactItem item =
+                new CompactItem("i", "p", "Item", "object.item.audioItem", url.toString(), null, null, 0);
+        ContainerListing listing = new ContainerListing();
+        listing.addPage(Collections.<Container>emptyList(), Collections.singletonList(item), 1, 1, false);
+        assertTrue(listing.getEstimatedSizeBytes() >= sizeBytes);
+        return listing;
+    }
+}